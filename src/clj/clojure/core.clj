@@ -2154,10 +2154,25 @@
   are triggered only by root binding changes, not thread-local
   set!s. Keys must be unique per reference, and can be used to remove
   the watch with remove-watch, but are otherwise considered opaque by
-  the watch mechanism."
+  the watch mechanism.
+
+  When an opts map is supplied, the watch is timed (see watch-stats),
+  and it can be made asynchronous:
+
+  :async true - call fn on the send-off thread pool rather than the
+  thread that changed the reference
+  :executor - call fn on this java.util.concurrent.Executor instead
+
+  An async watch fn is called one notification at a time, in the order
+  they were made. Notifications made while an earlier one is still
+  waiting to run are coalesced into it, so the fn sees one change from
+  the earliest old-state to the latest new-state. Exceptions thrown by
+  an async watch fn are only recorded in its watch-stats."
   {:added "1.0"
    :static true}
-  [^clojure.lang.IRef reference key fn] (.addWatch reference key fn))
+  ([^clojure.lang.IRef reference key fn] (.addWatch reference key fn))
+  ([^clojure.lang.IRef reference key fn opts]
+   (.addWatch reference key (clojure.lang.WatchFn/create fn opts))))
 
 (defn remove-watch
   "Removes a watch (set by add-watch) from a reference"
@@ -2166,6 +2181,21 @@
   [^clojure.lang.IRef reference key]
   (.removeWatch reference key))
 
+(defn watch-stats
+  "Returns a map from key to the statistics of each watch on reference
+  that was added with options: counts of :notifications, :calls and
+  :errors (and the :last-error), and a :call-nanos histogram. Async
+  watches also report the notifications :coalesced, and a :delay-nanos
+  histogram of the time from notification to call."
+  {:added "1.11"}
+  [^clojure.lang.IRef reference]
+  (reduce1 (fn [ret e]
+             (let [w (val e)]
+               (if (instance? clojure.lang.WatchFn w)
+                 (assoc ret (key e) (.stats ^clojure.lang.WatchFn w))
+                 ret)))
+           {} (.getWatches reference)))
+
 (defn agent-error
   "Returns the exception thrown during an asynchronous action of the
   agent if the agent is failed.  Returns nil if the agent is not
@@ -2270,6 +2300,8 @@
   :min-history (default 0)
   :max-history (default 10)
 
+  :commutative true/false (default false)
+
   If metadata-map is supplied, it will become the metadata on the
   ref. validate-fn must be nil or a side-effect-free fn of one
   argument, which will be passed the intended new state on any state
@@ -2278,10 +2310,18 @@
   transaction commit, when all refs have their final values.
 
   Normally refs accumulate history dynamically as needed to deal with
-  read demands. If you know in advance you will need history you can
-  set :min-history to ensure it will be available when first needed (instead
-  of after a read fault). History is limited, and the limit can be set
-  with :max-history."
+  read demands: history capacity doubles after a read fault and is
+  halved again after a long run of commits without one. If you know in
+  advance you will need history you can set :min-history to ensure it
+  will be available when first needed (instead of after a read fault).
+  History is limited, and the limit can be set with :max-history.
+
+  Setting :commutative declares that all fns the ref is commuted with
+  commute with each other (e.g. +, conj onto a set, merge-with +). A
+  transaction whose only effect on such a ref is commute then commits
+  it to one of several per-thread cells instead of taking the ref's
+  write lock, and pending commutes are applied when the ref is read. Use
+  for high-frequency counters and accumulators."
   {:added "1.0"
    :static true
    }
@@ -2293,6 +2333,8 @@
       (.setMaxHistory r (:max-history opts)))
     (when (:min-history opts)
       (.setMinHistory r (:min-history opts)))
+    (when (:commutative opts)
+      (.enableCommuteCells r))
     r)))
 
 (defn ^:private deref-future
@@ -2332,15 +2374,29 @@
 
   :validator validate-fn
 
+  :contention nil, :backoff or :combining
+
   If metadata-map is supplied, it will become the metadata on the
   atom. validate-fn must be nil or a side-effect-free fn of one
   argument, which will be passed the intended new state on any state
   change. If the new state is unacceptable, the validate-fn should
-  return false or throw an exception."
+  return false or throw an exception.
+
+  :contention sets how swaps behave when they lose a race with another
+  swap. By default they retry at once. With :backoff they first wait a
+  randomized, exponentially growing time. With :combining, swaps are
+  queued, and one waiting thread at a time applies every queued fn in
+  order with a single compare-and-set. The waiting threads still get
+  their own results, exceptions and watch calls. See atom-stats."
   {:added "1.0"
    :static true}
   ([x] (new clojure.lang.Atom x))
-  ([x & options] (setup-reference (atom x) options)))
+  ([x & options]
+   (let [^clojure.lang.Atom a (setup-reference (atom x) options)
+         opts (apply hash-map options)]
+     (when (:contention opts)
+       (.setContentionMode a (:contention opts)))
+     a)))
 
 (defn swap!
   "Atomically swaps the value of atom to be:
@@ -2386,6 +2442,60 @@
   {:added "1.9"}
   ^clojure.lang.IPersistentVector [^clojure.lang.IAtom2 atom newval] (.resetVals atom newval))
 
+(defn atom-stats
+  "Returns a map of the contention recorded for atom: its :mode, the
+  number of :cas-failures, total :backoff-nanos, and the swaps
+  :combined in :combine-passes. Returns nil if no swap on atom has
+  lost a race yet and no contention mode was set."
+  {:added "1.11"}
+  [^clojure.lang.Atom atom]
+  (.getStats atom))
+
+(defn sharded-atom
+  "Creates and returns a ShardedAtom holding the map m, with zero or
+  more options (in any order):
+
+  :shards n (default 4x available processors)
+
+  :meta metadata-map
+
+  :validator validate-fn
+
+  A sharded atom splits its map across n shards (rounded up to a power
+  of two) by key hash. swap-in! updates a single key, and only contends
+  with other updates to keys in the same shard. deref returns a
+  consistent snapshot of every shard, as a map which looks keys up in
+  their shard and is only merged when needed. swap!, reset! and
+  compare-and-set! work on the whole map and lock every shard; a
+  compare-and-set! only succeeds against a value obtained from this
+  atom. Shards are only locked to store a new value: as with swap! on
+  an atom, update fns run without locks, and may be run more than once,
+  so they may deref this atom but should be free of side effects.
+
+  A validator is passed the map after each change. For swap-in! the
+  other shards are as read at that moment, so validators should only
+  check the changed entry. Watches are passed old and new maps that
+  differ by exactly the change made."
+  {:added "1.11"}
+  ([m] (new clojure.lang.ShardedAtom m))
+  ([m & options]
+   (let [opts (apply hash-map options)]
+     (setup-reference (if-let [n (:shards opts)]
+                        (new clojure.lang.ShardedAtom m (int n))
+                        (new clojure.lang.ShardedAtom m))
+                      options))))
+
+(defn swap-in!
+  "Atomically swaps the value at key k in sharded-atom to be
+  (apply f current-value-at-k args), locking only k's shard to store
+  it. Note that f may be called multiple times, and thus should be
+  free of side effects, and that other shards may change concurrently.
+  Returns the new value at k."
+  {:added "1.11"}
+  ([^clojure.lang.ShardedAtom sharded-atom k f] (.swapIn sharded-atom k f))
+  ([^clojure.lang.ShardedAtom sharded-atom k f x] (.swapIn sharded-atom k f x))
+  ([^clojure.lang.ShardedAtom sharded-atom k f x & args] (.swapIn sharded-atom k f x args)))
+
 (defn set-validator!
   "Sets the validator-fn for a var/ref/agent/atom. validator-fn must be nil or a
   side-effect-free fn of one argument, which will be passed the intended
@@ -2485,6 +2595,29 @@
   ([^clojure.lang.Ref ref n]
     (.setMaxHistory ref n)))
 
+(defn ref-stats
+  "Returns a map of the contention statistics recorded for ref
+  (:commits, :retries, :barges, :faults, :history-growth,
+  :history-shrinks, :commute-reruns and a :lock-wait-nanos
+  histogram), or nil if none have been recorded. Statistics are only
+  collected while STM stats are enabled, see stm-stats."
+  {:added "1.11"}
+  [^clojure.lang.Ref ref]
+    (.getStats ref))
+
+(defn stm-stats
+  "Returns a map of STM-wide transaction statistics: totals of
+  :transactions, :retries, :barges and :retry-limit-failures,
+  histograms of :retries-per-transaction, :commit-nanos and
+  :lock-wait-nanos, and the most contended refs as :hot-refs.
+
+  Collection is off by default. Enable it with the system property
+  clojure.stm.stats=true, or at runtime with
+  (clojure.lang.TransactionStats/enable true). The same statistics are
+  exported over JMX as clojure.lang:type=TransactionStats."
+  {:added "1.11"}
+  [] (clojure.lang.TransactionStats/snapshot))
+
 (defn ensure
   "Must be called in a transaction. Protects the ref from modification
   by other transactions.  Returns the in-transaction-value of
@@ -5078,7 +5211,10 @@
   exprs and any nested calls.  Starts a transaction if none is already
   running on this thread. Any uncaught exception will abort the
   transaction and flow out of dosync. The exprs may be run more than
-  once, but any effects on Refs will be atomic."
+  once, but any effects on Refs will be atomic. A transaction that only
+  reads refs sees a consistent snapshot, and normally takes no locks: a
+  read of a ref while another transaction commits it waits for the
+  commit."
   {:added "1.0"}
   [& exprs]
   `(sync nil ~@exprs))
@@ -5555,11 +5691,7 @@
   {:added "1.0"
    :static true}
   [^Class class]
-  (loop [ret (set (bases class)) cs ret]
-    (if (seq cs)
-      (let [c (first cs) bs (bases c)]
-        (recur (into1 ret bs) (into1 (disj cs c) bs)))
-      (not-empty ret))))
+  (clojure.lang.HierarchyIndex/supers class))
 
 (defn isa?
   "Returns true if (= child parent), or child is directly or indirectly derived from
@@ -5570,17 +5702,7 @@
   {:added "1.0"}
   ([child parent] (isa? global-hierarchy child parent))
   ([h child parent]
-   (or (= child parent)
-       (and (class? parent) (class? child)
-            (. ^Class parent isAssignableFrom child))
-       (contains? ((:ancestors h) child) parent)
-       (and (class? child) (some #(contains? ((:ancestors h) %) parent) (supers child)))
-       (and (vector? parent) (vector? child)
-            (= (count parent) (count child))
-            (loop [ret true i 0]
-              (if (or (not ret) (= i (count parent)))
-                ret
-                (recur (isa? h (child i) (parent i)) (inc i))))))))
+   (clojure.lang.HierarchyIndex/isa h child parent)))
 
 (defn parents
   "Returns the immediate parents of tag, either via a Java type
@@ -5602,14 +5724,7 @@
   defaults to the global hierarchy"
   {:added "1.0"}
   ([tag] (ancestors global-hierarchy tag))
-  ([h tag] (not-empty
-            (let [ta (get (:ancestors h) tag)]
-              (if (class? tag)
-                (let [superclasses (set (supers tag))]
-                  (reduce1 into1 superclasses
-                    (cons ta
-                          (map #(get (:ancestors h) %) superclasses))))
-                ta)))))
+  ([h tag] (clojure.lang.HierarchyIndex/ancestors h tag)))
 
 (defn descendants
   "Returns the immediate and indirect children of tag, through a
@@ -5851,6 +5966,12 @@
      "True while a verbose load is pending"}
   *loading-verbosely* false)
 
+(defonce ^:dynamic
+  ^{:private true :doc
+     "The clojure.lang.ParallelLoader through which libs are loaded during
+  a require with the :parallel flag, or nil"}
+  *parallel-loader* nil)
+
 (defn- throw-if
   "Throws a CompilerException with a message if pred is true"
   [pred fmt & args]
@@ -5943,9 +6064,17 @@
         filter-opts (select-keys opts '(:exclude :only :rename :refer))
         undefined-on-entry (not (find-ns lib))]
     (binding [*loading-verbosely* (or *loading-verbosely* verbose)]
+      (when (and (not load) *parallel-loader*)
+        (.await ^clojure.lang.ParallelLoader *parallel-loader* lib))
       (if load
         (try
-          (load lib need-ns require)
+          (if (and *parallel-loader* require (identical? load load-one) (not reload))
+            (do
+              (.loadOnce ^clojure.lang.ParallelLoader *parallel-loader* lib)
+              (throw-if (and need-ns (not (find-ns lib)))
+                        "namespace '%s' not found after loading '%s'"
+                        lib (root-resource lib)))
+            (load lib need-ns require))
           (catch Exception e
             (when undefined-on-entry
               (remove-ns lib))
@@ -5966,11 +6095,94 @@
           (printf ")\n"))
         (apply refer lib (mapcat seq filter-opts))))))
 
+(defn- libspec-libs
+  "Returns the names of the libs in libspecs and prefix lists, as given to
+  require or in a :require or :use clause"
+  [args]
+  (mapcat (fn [arg]
+            (cond
+              (symbol? arg) [arg]
+              (not (instance? clojure.lang.Sequential arg)) nil
+              (libspec? arg) [(first arg)]
+              :else (let [[prefix & specs] arg]
+                      (for [spec specs
+                            :let [lib (if (instance? clojure.lang.Sequential spec) (first spec) spec)]
+                            :when (symbol? lib)]
+                        (symbol (str prefix \. lib))))))
+          args))
+
+(defn- ns-form-info
+  "Reads the ns form at the start of lib's source, returning a map of
+  the :deps it names in :require and :use clauses, and :serial, true if
+  its name or attr-map has :serial-load metadata. Returns nil if lib has
+  no source, or the source doesn't start with an ns form."
+  [lib]
+  (let [base (subs (root-resource lib) 1)
+        loader (clojure.lang.RT/baseLoader)
+        [^java.net.URL url cljc] (some (fn [[ext cljc]]
+                                         (when-let [url (clojure.lang.RT/getResource loader (str base ext))]
+                                           [url cljc]))
+                                       [[".clj" false] [".cljc" true]])]
+    (when url
+      (try
+        (with-open [r (java.io.PushbackReader.
+                        (java.io.InputStreamReader. (.openStream url) "UTF-8"))]
+          (let [form (binding [*read-eval* false]
+                       (read (if cljc {:read-cond :allow :eof nil} {:eof nil}) r))]
+            (when (and (seq? form) ('#{ns clojure.core/ns} (first form)))
+              (let [[_ nm & more] form
+                    more (if (string? (first more)) (next more) more)
+                    attrs (when (map? (first more)) (first more))]
+                {:deps (distinct
+                         (mapcat #(when (and (seq? %) (#{:require :use} (first %)))
+                                    (libspec-libs (rest %)))
+                                 more))
+                 :serial (boolean (:serial-load (merge (meta nm) attrs)))}))))
+        (catch Exception e nil)))))
+
+(defn- load-graph
+  "Returns [order deps serial] for libs and the libs their ns forms
+  require, leaving out those already loaded. order lists each lib after
+  the libs it requires, deps maps each lib to those, and serial is the
+  set of libs with :serial-load metadata. Throws on a cyclic dependency."
+  [libs]
+  (let [order (volatile! [])
+        deps (volatile! {})
+        serial (volatile! #{})
+        visit (fn visit [path lib]
+                (throw-if (some #{lib} path)
+                          "Cyclic load dependency: %s"
+                          (apply str (interpose "->" (map #(if (= % lib) (str "[ " % " ]") %)
+                                                          (conj path lib)))))
+                (when-not (or (contains? @deps lib) (contains? @*loaded-libs* lib))
+                  (let [{ds :deps s :serial} (ns-form-info lib)]
+                    (vswap! deps assoc lib (vec ds))
+                    (doseq [d ds]
+                      (visit (conj path lib) d))
+                    (when s
+                      (vswap! serial conj lib))
+                    (vswap! order conj lib))))]
+    (doseq [lib libs]
+      (visit [] lib))
+    [@order @deps @serial]))
+
+(defn- load-parallel
+  "Loads libs and the libs they require, not yet loaded, each once the
+  libs its ns form requires have loaded, in parallel where they don't
+  depend on each other"
+  [libs]
+  (let [[order deps serial] (load-graph libs)]
+    (clojure.lang.ParallelLoader/run order deps serial
+                                     (.availableProcessors (Runtime/getRuntime))
+                                     (fn [lib] (load-lib nil lib :require true)))))
+
 (defn- load-libs
   "Loads libs, interpreting libspecs, prefix lists, and flags for
   forwarding to load-lib"
   [& args]
   (let [flags (filter keyword? args)
+        parallel (some #{:parallel} flags)
+        flags (remove #{:parallel} flags)
         opts (interleave flags (repeat true))
         args (filter (complement keyword?) args)]
     ; check for unsupported options
@@ -5981,13 +6193,20 @@
                      (interpose \, unsupported))))
     ; check a load target was specified
     (throw-if (not (seq args)) "Nothing specified to load")
-    (doseq [arg args]
-      (if (libspec? arg)
-        (apply load-lib nil (prependss arg opts))
-        (let [[prefix & args] arg]
-          (throw-if (nil? prefix) "prefix cannot be nil")
-          (doseq [arg args]
-            (apply load-lib prefix (prependss arg opts))))))))
+    (throw-if (and parallel (some #{:reload :reload-all} flags))
+              "The :parallel flag can't be combined with :reload or :reload-all")
+    (binding [*parallel-loader* (if (and parallel (not *parallel-loader*))
+                                  (clojure.lang.ParallelLoader. (fn [lib] (load-one lib false true)))
+                                  *parallel-loader*)]
+      (when parallel
+        (load-parallel (libspec-libs args)))
+      (doseq [arg args]
+        (if (libspec? arg)
+          (apply load-lib nil (prependss arg opts))
+          (let [[prefix & args] arg]
+            (throw-if (nil? prefix) "prefix cannot be nil")
+            (doseq [arg args]
+              (apply load-lib prefix (prependss arg opts)))))))))
 
 (defn- check-cyclic-dependency
   "Detects and rejects non-trivial cyclic load dependencies. The
@@ -6052,12 +6271,17 @@
   Flags
 
   A flag is a keyword.
-  Recognized flags: :reload, :reload-all, :verbose
+  Recognized flags: :reload, :reload-all, :verbose, :parallel
   :reload forces loading of all the identified libs even if they are
     already loaded
   :reload-all implies :reload and also forces loading of all libs that the
     identified libs directly or indirectly load via require or use
   :verbose triggers printing information about each load, alias, and refer
+  :parallel reads the ns forms of the identified libs, and of the libs
+    they require in turn, and loads those not yet loaded on a pool of
+    threads, each once the libs it requires have loaded. A lib whose ns
+    name or attr-map has :serial-load metadata is loaded while no other
+    lib is loading. Can't be combined with :reload or :reload-all
 
   Example:
 
@@ -6076,8 +6300,12 @@
   Future changes may make these equivalent."
   {:added "1.10"}
   [& args]
-  (locking clojure.lang.RT/REQUIRE_LOCK
-    (apply require args)))
+  (if *parallel-loader*
+    ;; loads are already serialized per lib, and a thread waiting on
+    ;; another's load mustn't hold the lock
+    (apply require args)
+    (locking clojure.lang.RT/REQUIRE_LOCK
+      (apply require args))))
 
 (defn requiring-resolve
   "Resolves namespace-qualified sym per 'resolve'. If initial resolve
@@ -6137,6 +6365,29 @@ fails, attempts to require sym's namespace and retries."
     (load-one lib true true))
   lib)
 
+(defn- compile-libs
+  "Compiles libs, as compile does each, and the libs they require not yet
+  loaded, on a pool of nthreads threads. Each lib is compiled with its own
+  class loader once the libs its ns form requires have been, and libs
+  already loaded are compiled after the rest. Calls (report lib ms) with
+  the time taken to compile each lib."
+  [libs nthreads report]
+  (binding [*compile-files* true]
+    (let [loaded @*loaded-libs*
+          compile-one (fn [lib]
+                        (let [start (System/nanoTime)]
+                          (with-bindings {clojure.lang.Compiler/LOADER (clojure.lang.RT/makeClassLoader)}
+                            (load-one lib true true))
+                          (report lib (/ (- (System/nanoTime) start) 1e6))))
+          loader (clojure.lang.ParallelLoader. compile-one)
+          [order deps serial] (load-graph libs)]
+      (binding [*parallel-loader* loader]
+        (clojure.lang.ParallelLoader/run order deps serial nthreads
+                                         (fn [lib] (.loadOnce loader lib))))
+      (doseq [lib (distinct libs)
+              :when (contains? loaded lib)]
+        (compile-one lib)))))
+
 ;;;;;;;;;;;;; nested associative ops ;;;;;;;;;;;
 
 (defn get-in
@@ -532,16 +532,25 @@
   ([^Class a ^Class b]
      (if (.isAssignableFrom a b) b a)))
 
+(defn- find-class-impl [protocol c]
+  (let [impl #(get (:impls protocol) %)]
+    (or (impl c)
+        (and c (or (first (remove nil? (map impl (butlast (super-chain c)))))
+                   (when-let [t (reduce1 pref (filter impl (disj (supers c) Object)))]
+                     (impl t))
+                   (impl Object))))))
+
 (defn find-protocol-impl [protocol x]
   (if (instance? (:on-interface protocol) x)
     x
-    (let [c (class x)
-          impl #(get (:impls protocol) %)]
-      (or (impl c)
-          (and c (or (first (remove nil? (map impl (butlast (super-chain c)))))
-                     (when-let [t (reduce1 pref (filter impl (disj (supers c) Object)))]
-                       (impl t))
-                     (impl Object)))))))
+    (let [c (class x)]
+      (if-let [^clojure.lang.ProtocolImplCache cache (:impl-cache protocol)]
+        (let [impls (:impls protocol)
+              impl (.get cache impls c)]
+          (if (identical? impl clojure.lang.ProtocolImplCache/MISSING)
+            (.put cache impls c (find-class-impl protocol c))
+            impl))
+        (find-class-impl protocol c)))))
 
 (defn find-protocol-method [protocol methodk x]
   (get (find-protocol-impl protocol x) methodk))
@@ -626,6 +635,8 @@
          f#))))
 
 (defn -reset-methods [protocol]
+  (when-let [^clojure.lang.ProtocolImplCache cache (:impl-cache protocol)]
+    (.reset cache))
   (doseq [[^clojure.lang.Var v build] (:method-builders protocol)]
     (let [cache (clojure.lang.MethodImplCache. (symbol v) protocol (keyword (.sym v)))]
       (.bindRoot v (build cache)))))
@@ -683,6 +694,7 @@
                      (assoc ~opts 
                        :sigs '~sigs 
                        :var (var ~name)
+                       :impl-cache (clojure.lang.ProtocolImplCache.)
                        :method-map 
                          ~(and (:on opts)
                                (apply hash-map 
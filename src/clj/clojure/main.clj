@@ -491,13 +491,20 @@ by default when a new command-line REPL is started."} repl-requires
               (prn value))
             (recur (with-read-known (read reader false eof))))))))
 
+(defn- parallel-require-opt
+  "Requires the namespaces named in str, separated by commas, with the
+  :parallel flag"
+  [^String str]
+  (apply require :parallel (map symbol (remove empty? (.split (.trim str) "\\s*,\\s*")))))
+
 (defn- init-dispatch
   "Returns the handler associated with an init opt"
   [opt]
   ({"-i"     init-opt
     "--init" init-opt
     "-e"     eval-opt
-    "--eval" eval-opt} opt))
+    "--eval" eval-opt
+    "--parallel-require" parallel-require-opt} opt))
 
 (defn- initialize
   "Common initialize routine for repl, script, and null opts"
@@ -623,6 +630,9 @@ java -cp clojure.jar clojure.main -i init.clj script.clj args...")
     -e, --eval string   Evaluate expressions in string; print non-nil values
     --report target     Report uncaught exception to \"file\" (default), \"stderr\",
                         or \"none\", overrides System property clojure.main.report
+    --parallel-require ns-names
+                        Require the comma separated namespaces, loading them
+                        and the namespaces they require in parallel
 
   main options:
     -m, --main ns-name  Call the -main function from a namespace with args
@@ -16,6 +16,8 @@ import java.util.concurrent.atomic.AtomicReference;
 
 final public class Atom extends ARef implements IAtom2{
 final AtomicReference state;
+//created on the first lost CAS, or when a contention mode is set
+volatile AtomContention contention;
 
 public Atom(Object state){
 	this.state = new AtomicReference(state);
@@ -31,7 +33,14 @@ public Object deref(){
 }
 
 public Object swap(IFn f) {
-	for(; ;)
+	AtomContention c = contention;
+	if(c != null && c.combines())
+		{
+		AtomContention.Swap s = c.swap(this, new AtomContention.Swap(f, 0, null, null, null));
+		notifyWatches(s.oldv, s.newv);
+		return s.newv;
+		}
+	for(int failures = 0; ; failures++)
 		{
 		Object v = deref();
 		Object newv = f.invoke(v);
@@ -41,11 +50,19 @@ public Object swap(IFn f) {
 			notifyWatches(v, newv);
 			return newv;
 			}
+		casFailed(failures);
 		}
 }
 
 public Object swap(IFn f, Object arg) {
-	for(; ;)
+	AtomContention c = contention;
+	if(c != null && c.combines())
+		{
+		AtomContention.Swap s = c.swap(this, new AtomContention.Swap(f, 1, arg, null, null));
+		notifyWatches(s.oldv, s.newv);
+		return s.newv;
+		}
+	for(int failures = 0; ; failures++)
 		{
 		Object v = deref();
 		Object newv = f.invoke(v, arg);
@@ -55,11 +72,19 @@ public Object swap(IFn f, Object arg) {
 			notifyWatches(v, newv);
 			return newv;
 			}
+		casFailed(failures);
 		}
 }
 
 public Object swap(IFn f, Object arg1, Object arg2) {
-	for(; ;)
+	AtomContention c = contention;
+	if(c != null && c.combines())
+		{
+		AtomContention.Swap s = c.swap(this, new AtomContention.Swap(f, 2, arg1, arg2, null));
+		notifyWatches(s.oldv, s.newv);
+		return s.newv;
+		}
+	for(int failures = 0; ; failures++)
 		{
 		Object v = deref();
 		Object newv = f.invoke(v, arg1, arg2);
@@ -69,11 +94,19 @@ public Object swap(IFn f, Object arg1, Object arg2) {
 			notifyWatches(v, newv);
 			return newv;
 			}
+		casFailed(failures);
 		}
 }
 
 public Object swap(IFn f, Object x, Object y, ISeq args) {
-	for(; ;)
+	AtomContention c = contention;
+	if(c != null && c.combines())
+		{
+		AtomContention.Swap s = c.swap(this, new AtomContention.Swap(f, 3, x, y, args));
+		notifyWatches(s.oldv, s.newv);
+		return s.newv;
+		}
+	for(int failures = 0; ; failures++)
 		{
 		Object v = deref();
 		Object newv = f.applyTo(RT.listStar(v, x, y, args));
@@ -83,11 +116,19 @@ public Object swap(IFn f, Object x, Object y, ISeq args) {
 			notifyWatches(v, newv);
 			return newv;
 			}
+		casFailed(failures);
 		}
 }
 
 public IPersistentVector swapVals(IFn f) {
-	for(; ;)
+	AtomContention c = contention;
+	if(c != null && c.combines())
+		{
+		AtomContention.Swap s = c.swap(this, new AtomContention.Swap(f, 0, null, null, null));
+		notifyWatches(s.oldv, s.newv);
+		return LazilyPersistentVector.createOwning(s.oldv, s.newv);
+		}
+	for(int failures = 0; ; failures++)
 		{
 		Object oldv = deref();
 		Object newv = f.invoke(oldv);
@@ -97,11 +138,19 @@ public IPersistentVector swapVals(IFn f) {
 			notifyWatches(oldv, newv);
 			return LazilyPersistentVector.createOwning(oldv, newv);
 			}
+		casFailed(failures);
 		}
 }
 
 public IPersistentVector swapVals(IFn f, Object arg) {
-	for(; ;)
+	AtomContention c = contention;
+	if(c != null && c.combines())
+		{
+		AtomContention.Swap s = c.swap(this, new AtomContention.Swap(f, 1, arg, null, null));
+		notifyWatches(s.oldv, s.newv);
+		return LazilyPersistentVector.createOwning(s.oldv, s.newv);
+		}
+	for(int failures = 0; ; failures++)
 		{
 		Object oldv = deref();
 		Object newv = f.invoke(oldv, arg);
@@ -111,11 +160,19 @@ public IPersistentVector swapVals(IFn f, Object arg) {
 			notifyWatches(oldv, newv);
 			return LazilyPersistentVector.createOwning(oldv, newv);
 			}
+		casFailed(failures);
 		}
 }
 
 public IPersistentVector swapVals(IFn f, Object arg1, Object arg2) {
-	for(; ;)
+	AtomContention c = contention;
+	if(c != null && c.combines())
+		{
+		AtomContention.Swap s = c.swap(this, new AtomContention.Swap(f, 2, arg1, arg2, null));
+		notifyWatches(s.oldv, s.newv);
+		return LazilyPersistentVector.createOwning(s.oldv, s.newv);
+		}
+	for(int failures = 0; ; failures++)
 		{
 		Object oldv = deref();
 		Object newv = f.invoke(oldv, arg1, arg2);
@@ -125,11 +182,19 @@ public IPersistentVector swapVals(IFn f, Object arg1, Object arg2) {
 			notifyWatches(oldv, newv);
 			return LazilyPersistentVector.createOwning(oldv, newv);
 			}
+		casFailed(failures);
 		}
 }
 
 public IPersistentVector swapVals(IFn f, Object x, Object y, ISeq args) {
-	for(; ;)
+	AtomContention c = contention;
+	if(c != null && c.combines())
+		{
+		AtomContention.Swap s = c.swap(this, new AtomContention.Swap(f, 3, x, y, args));
+		notifyWatches(s.oldv, s.newv);
+		return LazilyPersistentVector.createOwning(s.oldv, s.newv);
+		}
+	for(int failures = 0; ; failures++)
 		{
 		Object oldv = deref();
 		Object newv = f.applyTo(RT.listStar(oldv, x, y, args));
@@ -139,6 +204,7 @@ public IPersistentVector swapVals(IFn f, Object x, Object y, ISeq args) {
 			notifyWatches(oldv, newv);
 			return LazilyPersistentVector.createOwning(oldv, newv);
 			}
+		casFailed(failures);
 		}
 }
 
@@ -160,7 +226,7 @@ public Object reset(Object newval){
 
 public IPersistentVector resetVals(Object newv){
 	validate(newv);
-	for(; ;)
+	for(int failures = 0; ; failures++)
 	{
 		Object oldv = deref();
 		if(state.compareAndSet(oldv, newv))
@@ -168,7 +234,42 @@ public IPersistentVector resetVals(Object newv){
 			notifyWatches(oldv, newv);
 			return LazilyPersistentVector.createOwning(oldv, newv);
 		}
+		casFailed(failures);
 	}
 }
 
+void casFailed(int failures){
+	AtomContention c = contention;
+	if(c == null)
+		c = setContention(null, false);
+	c.casFailed(failures);
+}
+
+synchronized AtomContention setContention(Keyword mode, boolean replace){
+	AtomContention c = contention;
+	if(c == null || replace)
+		contention = c = new AtomContention(mode, c);
+	return c;
+}
+
+/**
+ * Sets how swaps handle contention: nil (retry immediately), :backoff
+ * (randomized exponential backoff after a lost CAS) or :combining
+ * (queued swaps are applied in batches by one thread at a time).
+ */
+public Atom setContentionMode(Keyword mode){
+	setContention(mode, true);
+	return this;
+}
+
+public Keyword getContentionMode(){
+	AtomContention c = contention;
+	return c == null ? null : c.mode;
+}
+
+public IPersistentMap getStats(){
+	AtomContention c = contention;
+	return c == null ? null : c.toMap();
+}
+
 }
@@ -0,0 +1,222 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Contention counters and policy for an Atom, created on its first lost
+ * CAS or when a contention mode is set.
+ *
+ * :backoff parks a swapping thread for a randomized, exponentially
+ * growing time after each lost CAS, so fewer threads re-run their update
+ * fns against a value that is about to change again.
+ *
+ * :combining queues swaps instead, and whichever waiting thread takes the
+ * combiner role applies a whole batch of queued fns in order with a single
+ * CAS. Each swapping thread still rethrows its own fn's or validator's
+ * exception, and calls the watches for its own change. The combiner runs
+ * each queued fn and the validator under the bindings of the thread that
+ * queued it, so fns see the same dynamic bindings as in the other modes.
+ * A swap of the atom made by a fn the combiner runs can't wait for the
+ * combiner, and is applied with a plain CAS, as in the other modes.
+ */
+final class AtomContention{
+
+static final Keyword BACKOFF = Keyword.intern(null, "backoff");
+static final Keyword COMBINING = Keyword.intern(null, "combining");
+
+static final Keyword MODE = Keyword.intern(null, "mode");
+static final Keyword CAS_FAILURES = Keyword.intern(null, "cas-failures");
+static final Keyword BACKOFF_NANOS = Keyword.intern(null, "backoff-nanos");
+static final Keyword COMBINED = Keyword.intern(null, "combined");
+static final Keyword COMBINE_PASSES = Keyword.intern(null, "combine-passes");
+
+static final long MIN_BACKOFF_NANOS = 1000;
+static final long MAX_BACKOFF_NANOS = 1000000;
+//a leaving combiner wakes the head of the queue, so queued swaps only
+//time out of their wait as a safeguard
+static final long COMBINE_PARK_NANOS = 1000000;
+
+//nil, :backoff or :combining
+final Keyword mode;
+final LongAdder casFailures;
+final LongAdder backoffNanos;
+//swaps applied by a combiner, and the batches they came in
+final LongAdder combined;
+final LongAdder combinePasses;
+
+final ConcurrentLinkedQueue<Swap> queue;
+//the combining thread, or null
+final AtomicReference<Thread> combiner;
+
+AtomContention(Keyword mode, AtomContention prior){
+	if(mode != null && mode != BACKOFF && mode != COMBINING)
+		throw new IllegalArgumentException("Unknown atom contention mode: " + mode);
+	this.mode = mode;
+	boolean keep = prior != null;
+	this.casFailures = keep ? prior.casFailures : new LongAdder();
+	this.backoffNanos = keep ? prior.backoffNanos : new LongAdder();
+	this.combined = keep ? prior.combined : new LongAdder();
+	this.combinePasses = keep ? prior.combinePasses : new LongAdder();
+	this.queue = keep ? prior.queue : new ConcurrentLinkedQueue<Swap>();
+	this.combiner = keep ? prior.combiner : new AtomicReference<Thread>();
+}
+
+//a queued swap, completed by the combiner
+static final class Swap{
+	final Thread thread = Thread.currentThread();
+	//the swapping thread waits until its swap is done, so its frame can
+	//be used as is
+	final Object frame = Var.getThreadBindingFrame();
+	final IFn f;
+	final int nargs;
+	final Object x;
+	final Object y;
+	final ISeq args;
+	Object oldv;
+	Object newv;
+	Throwable error;
+	volatile boolean done;
+
+	Swap(IFn f, int nargs, Object x, Object y, ISeq args){
+		this.f = f;
+		this.nargs = nargs;
+		this.x = x;
+		this.y = y;
+		this.args = args;
+	}
+
+	Object apply(Object v){
+		switch(nargs)
+			{
+			case 0:
+				return f.invoke(v);
+			case 1:
+				return f.invoke(v, x);
+			case 2:
+				return f.invoke(v, x, y);
+			default:
+				return f.applyTo(RT.listStar(v, x, y, args));
+			}
+	}
+}
+
+//true if a swap by this thread is to be queued
+boolean combines(){
+	return mode == COMBINING && combiner.get() != Thread.currentThread();
+}
+
+void casFailed(int failures){
+	casFailures.increment();
+	if(mode == BACKOFF)
+		backoff(failures);
+}
+
+//the first couple of retries only yield
+void backoff(int failures){
+	if(failures < 2)
+		{
+		Thread.yield();
+		return;
+		}
+	long max = Math.min(MIN_BACKOFF_NANOS << Math.min(failures - 2, 20), MAX_BACKOFF_NANOS);
+	long nanos = ThreadLocalRandom.current().nextLong(max) + 1;
+	backoffNanos.add(nanos);
+	LockSupport.parkNanos(this, nanos);
+}
+
+//queues s and waits until some combiner, maybe this thread, applies it.
+//Rethrows whatever its fn or the validator threw
+Swap swap(Atom atom, Swap s){
+	queue.add(s);
+	while(!s.done)
+		{
+		if(combiner.compareAndSet(null, Thread.currentThread()))
+			{
+			try
+				{
+				combine(atom);
+				}
+			finally
+				{
+				combiner.set(null);
+				}
+			Swap next = queue.peek();
+			if(next != null)
+				LockSupport.unpark(next.thread);
+			}
+		else
+			LockSupport.parkNanos(this, COMBINE_PARK_NANOS);
+		}
+	if(s.error != null)
+		throw Util.sneakyThrow(s.error);
+	return s;
+}
+
+void combine(Atom atom){
+	ArrayList<Swap> batch = new ArrayList<Swap>();
+	for(Swap s = queue.poll(); s != null; s = queue.poll())
+		batch.add(s);
+	if(batch.isEmpty())
+		return;
+	Object frame = Var.getThreadBindingFrame();
+	for(;;)
+		{
+		Object v = atom.state.get();
+		Object cur = v;
+		for(Swap s : batch)
+			{
+			s.oldv = cur;
+			Var.resetThreadBindingFrame(s.frame);
+			try
+				{
+				Object newv = s.apply(cur);
+				atom.validate(newv);
+				s.newv = cur = newv;
+				s.error = null;
+				}
+			catch(Throwable e)
+				{
+				s.error = e;
+				}
+			finally
+				{
+				Var.resetThreadBindingFrame(frame);
+				}
+			}
+		//only reset! and compare-and-set! can get in ahead of us
+		if(atom.state.compareAndSet(v, cur))
+			break;
+		casFailures.increment();
+		}
+	combined.add(batch.size());
+	combinePasses.increment();
+	for(Swap s : batch)
+		{
+		s.done = true;
+		LockSupport.unpark(s.thread);
+		}
+}
+
+IPersistentMap toMap(){
+	return RT.mapUniqueKeys(MODE, mode,
+	                        CAS_FAILURES, casFailures.sum(),
+	                        BACKOFF_NANOS, backoffNanos.sum(),
+	                        COMBINED, combined.sum(),
+	                        COMBINE_PASSES, combinePasses.sum());
+}
+}
@@ -0,0 +1,153 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// Creates a class data sharing (CDS) archive, at the path named by the
+// Java System property "clojure.archive.path", of the classes loaded from
+// the classpath in requiring the libs named by the arguments: the classes
+// of Clojure itself, and of the libs and their dependencies that were
+// compiled ahead of time. Running the application on the same JVM, with
+// the same classpath and -XX:SharedArchiveFile=<path>, maps those classes
+// from the archive rather than loading, parsing and verifying them.
+//
+// The libs are required in a new JVM, given this one's classpath and
+// clojure.* System properties, and the options in the System property
+// "clojure.archive.jvm-opts", separated by whitespace. CDS needs Java 10
+// or later, and a classpath of jar files only. On Java 10 the application
+// must also be run with -XX:+UseAppCDS.
+
+public class ClassArchive{
+
+private static final String PATH_PROP = "clojure.archive.path";
+private static final String JVM_OPTS_PROP = "clojure.archive.jvm-opts";
+
+public static void main(String[] args) throws IOException, InterruptedException{
+	String path = System.getProperty(PATH_PROP);
+	int version = javaVersion(System.getProperty("java.specification.version"));
+	String classpath = System.getProperty("java.class.path");
+	String problem = check(path, version, classpath);
+	if(problem != null)
+		fail(problem);
+
+	StringBuilder requires = new StringBuilder("(require");
+	for(String lib : args)
+		requires.append(" '").append(Symbol.intern(lib));
+	requires.append(")");
+
+	List<String> java = javaCommand(classpath, version);
+	if(version >= 13)
+		{
+		System.out.println("Archiving classes loaded by " + requires + " to " + path);
+		java.add("-XX:ArchiveClassesAtExit=" + path);
+		run(java, "clojure.main", "-e", requires.toString());
+		}
+	else
+		{
+		//record the classes loaded, then dump those into the archive
+		File classList = File.createTempFile("classes", ".lst");
+		try
+			{
+			System.out.println("Listing classes loaded by " + requires);
+			List<String> list = new ArrayList<String>(java);
+			list.add("-XX:DumpLoadedClassList=" + classList.getPath());
+			run(list, "clojure.main", "-e", requires.toString());
+			System.out.println("Archiving listed classes to " + path);
+			java.add("-Xshare:dump");
+			java.add("-XX:SharedClassListFile=" + classList.getPath());
+			java.add("-XX:SharedArchiveFile=" + path);
+			run(java);
+			}
+		finally
+			{
+			classList.delete();
+			}
+		}
+	System.out.println("Run with the same classpath and "
+	                   + (version == 10 ? "-XX:+UseAppCDS " : "") + "-XX:SharedArchiveFile=" + path);
+}
+
+static void fail(String msg){
+	System.err.println("ERROR: " + msg);
+	System.exit(1);
+}
+
+//why an archive can't be made at path, or null if it can
+static public String check(String path, int version, String classpath){
+	if(path == null)
+		return "Must set system property " + PATH_PROP +
+		       "\nto the location for the archive file.";
+	if(version < 10)
+		return "Class data sharing archives of application classes need Java 10 or later.";
+	List<String> dirs = classpathDirectories(classpath);
+	if(!dirs.isEmpty())
+		return "Class data sharing archives need a classpath of jar files only, found directories: " + dirs;
+	return null;
+}
+
+//the feature release of a java.specification.version, as 8 for "1.8"
+static public int javaVersion(String v){
+	if(v.startsWith("1."))
+		v = v.substring(2);
+	return Integer.parseInt(v);
+}
+
+//the non-empty directories on classpath, which CDS refuses
+static public List<String> classpathDirectories(String classpath){
+	List<String> ret = new ArrayList<String>();
+	for(String p : classpath.split(File.pathSeparator))
+		{
+		File f = new File(p.length() == 0 ? "." : p);
+		String[] files = f.list();
+		if(files != null && files.length > 0)
+			ret.add(p);
+		}
+	return ret;
+}
+
+//the command for a JVM to archive classes with
+static public List<String> javaCommand(String classpath, int version){
+	List<String> ret = new ArrayList<String>();
+	ret.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+	for(Map.Entry<Object, Object> e : System.getProperties().entrySet())
+		{
+		String k = (String) e.getKey();
+		if(k.startsWith("clojure.") && !k.startsWith("clojure.archive."))
+			ret.add("-D" + k + "=" + e.getValue());
+		}
+	String opts = System.getProperty(JVM_OPTS_PROP, "").trim();
+	if(opts.length() > 0)
+		{
+		for(String opt : opts.split("\\s+"))
+			ret.add(opt);
+		}
+	//Java 10 only archives classes from the classpath when asked
+	if(version == 10)
+		ret.add("-XX:+UseAppCDS");
+	ret.add("-cp");
+	ret.add(classpath);
+	return ret;
+}
+
+static void run(List<String> command, String... args) throws IOException, InterruptedException{
+	List<String> cmd = new ArrayList<String>(command);
+	for(String a : args)
+		cmd.add(a);
+	int exit = new ProcessBuilder(cmd).inheritIO().start().waitFor();
+	if(exit != 0)
+		fail("Command exited with status " + exit + ": " + cmd);
+}
+}
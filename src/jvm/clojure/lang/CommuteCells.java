@@ -0,0 +1,321 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Striped commit cells for a Ref whose commutes all commute with each
+ * other. A transaction whose only effect on such a ref is commute locks
+ * one cell (picked by thread) instead of the ref, and appends its commute
+ * fns there stamped with its commit point. Reading the ref at a point
+ * applies the pending fns committed up to that point to the history
+ * value they follow. Writes through the ref's own lock fold every
+ * pending entry back into history first.
+ *
+ * Cells follow the ref's locking protocol: a cell is write locked before
+ * its committer takes a commit point, so a reader at that point either
+ * sees the entry or finds the cell locked.
+ *
+ * A fold records the points of the entries it dropped, so that a read
+ * only faults when one of them falls between the history value it starts
+ * from and its read point. The latest value, as read outside transactions,
+ * is kept with the point of the newest commit it includes, and reused
+ * while no later commit has been made.
+ *
+ * The value at a read point never changes once read, so the values read
+ * at recent points are kept too. A transaction rereading the ref then
+ * finds its value there rather than applying the pending fns again.
+ */
+final class CommuteCells{
+
+//entries in a cell before its committer tries to fold them into history
+static final int FOLD_THRESHOLD = 32;
+static final int MAX_CELLS = 64;
+//folds whose dropped points are kept
+static final int FOLDS = 16;
+//values kept by the point they were read at
+static final int READS = 16;
+
+static final class Entry{
+	final long point;
+	final ArrayList<LockingTransaction.CFn> fns;
+
+	Entry(long point, ArrayList<LockingTransaction.CFn> fns){
+		this.point = point;
+		this.fns = fns;
+	}
+}
+
+static final class Cell{
+	final StampedLock lock = new StampedLock();
+	//append only, oldest first, until folded. Read under optimistic stamps,
+	//so readers bound their walk by the array they actually read
+	Entry[] entries = new Entry[4];
+	int count;
+	//point of the newest entry ever appended
+	volatile long lastPoint = -1;
+
+	void append(long point, ArrayList<LockingTransaction.CFn> fns){
+		if(count == entries.length)
+			{
+			Entry[] es = new Entry[count * 2];
+			System.arraycopy(entries, 0, es, 0, count);
+			entries = es;
+			}
+		entries[count++] = new Entry(point, fns);
+		lastPoint = point;
+	}
+
+	void clear(){
+		entries = new Entry[4];
+		count = 0;
+	}
+}
+
+static final class Latest{
+	final long point;
+	final Object val;
+
+	Latest(long point, Object val){
+		this.point = point;
+		this.val = val;
+	}
+}
+
+final Cell[] cells;
+//newest point folded into history and dropped from the cells. History
+//older than this may lack those entries
+long droppedThrough = -1;
+//the most recent folds, as the point each pushed into history and the
+//oldest point among the entries it dropped, -1 when unused. Like
+//droppedThrough, written under the ref's write lock and every cell's
+final long[] foldPoints = new long[FOLDS];
+final long[] foldFroms = new long[FOLDS];
+int nextFold;
+volatile Latest latest;
+//values read at points, by point. Racy: a reader missing a store only
+//recomputes the value
+final Latest[] reads = new Latest[READS];
+
+CommuteCells(){
+	int n = 1;
+	while(n < 2 * Runtime.getRuntime().availableProcessors() && n < MAX_CELLS)
+		n <<= 1;
+	cells = new Cell[n];
+	for(int i = 0; i < n; i++)
+		cells[i] = new Cell();
+	Arrays.fill(foldPoints, -1);
+}
+
+Cell cellFor(Thread thread){
+	long h = thread.getId() * 0x9E3779B97F4A7C15L;
+	return cells[(int) (h >>> 32) & (cells.length - 1)];
+}
+
+long lastPoint(){
+	long ret = -1;
+	for(Cell cell : cells)
+		ret = Math.max(ret, cell.lastPoint);
+	return ret;
+}
+
+//adds the entries with after < point <= upTo to out. Without locks held,
+//returns false if any cell changed while being read
+boolean collect(long after, long upTo, ArrayList<Entry> out, boolean optimistic){
+	for(Cell cell : cells)
+		{
+		long stamp = 0;
+		if(optimistic && (stamp = cell.lock.tryOptimisticRead()) == 0)
+			return false;
+		Entry[] es = cell.entries;
+		int n = Math.min(cell.count, es.length);
+		for(int i = 0; i < n; i++)
+			{
+			Entry e = es[i];
+			if(e != null && e.point > after && e.point <= upTo)
+				out.add(e);
+			}
+		if(optimistic && !cell.lock.validate(stamp))
+			return false;
+		}
+	return true;
+}
+
+static Object apply(Object val, ArrayList<Entry> pending){
+	for(Entry e : pending)
+		{
+		for(LockingTransaction.CFn f : e.fns)
+			val = f.fn.applyTo(RT.cons(val, f.args));
+		}
+	return val;
+}
+
+//true if entries dropped by a fold lie between the history entry at idx
+//and point, read under the ref's lock or a stamp validated after
+boolean droppedBetween(Ref.History h, int idx, long point){
+	if(idx == h.head || droppedThrough < 0)
+		return false;
+	long next = h.points[(idx + 1) % h.points.length];
+	if(next > droppedThrough)
+		return false;
+	for(int i = 0; i < FOLDS; i++)
+		{
+		if(foldPoints[i] == next)
+			return foldFroms[i] <= point;
+		}
+	//a fold no longer recorded, or the read raced one
+	return true;
+}
+
+//the latest value of ref, outside of any transaction
+Object currentVal(Ref ref){
+	Latest l = latest;
+	if(l != null)
+		{
+		long stamp = ref.lock.tryOptimisticRead();
+		Ref.History h = ref.hist;
+		long point = h.points[h.head];
+		if(stamp != 0 && ref.lock.validate(stamp) && Math.max(point, lastPoint()) == l.point)
+			return l.val;
+		}
+	return valAt(ref, Long.MAX_VALUE);
+}
+
+//the value of ref at point, or Ref.FAULT if history no longer reaches it
+Object valAt(Ref ref, long point){
+	int slot = (int) point & (READS - 1);
+	Latest read = reads[slot];
+	if(read != null && read.point == point)
+		return read.val;
+	ArrayList<Entry> pending = new ArrayList<Entry>();
+	long stamp = ref.lock.tryOptimisticRead();
+	Ref.History h = ref.hist;
+	int idx = h.indexAt(point);
+	long basePoint = idx < 0 ? -1 : h.points[idx];
+	Object base = idx < 0 ? null : h.vals[idx];
+	boolean dropped = idx >= 0 && droppedBetween(h, idx, point);
+	boolean valid = stamp != 0
+	                && collect(basePoint, point, pending, true)
+	                && ref.lock.validate(stamp);
+	if(!valid)
+		{
+		pending.clear();
+		stamp = ref.lock.readLock();
+		try
+			{
+			readLockAll();
+			try
+				{
+				h = ref.hist;
+				idx = h.indexAt(point);
+				basePoint = idx < 0 ? -1 : h.points[idx];
+				base = idx < 0 ? null : h.vals[idx];
+				dropped = idx >= 0 && droppedBetween(h, idx, point);
+				collect(basePoint, point, pending, false);
+				}
+			finally
+				{
+				unlockReadAll();
+				}
+			}
+		finally
+			{
+			ref.lock.unlockRead(stamp);
+			}
+		}
+	if(idx < 0 || dropped)
+		return Ref.FAULT;
+	Object ret = apply(base, pending);
+	if(point == Long.MAX_VALUE)
+		{
+		long newest = basePoint;
+		for(Entry e : pending)
+			newest = Math.max(newest, e.point);
+		latest = new Latest(newest, ret);
+		}
+	else if(!pending.isEmpty())
+		reads[slot] = new Latest(point, ret);
+	return ret;
+}
+
+//latest value, caller holds the ref's write lock and every cell's
+Object lockedVal(Ref ref){
+	ArrayList<Entry> pending = new ArrayList<Entry>();
+	collect(-1, Long.MAX_VALUE, pending, false);
+	return apply(ref.latestVal(), pending);
+}
+
+//moves every pending entry into ref's history, as a single value at the
+//newest entry's point. Caller holds the ref's write lock and every cell's.
+//Returns the change in history capacity
+int fold(Ref ref){
+	ArrayList<Entry> pending = new ArrayList<Entry>();
+	collect(-1, Long.MAX_VALUE, pending, false);
+	if(pending.isEmpty())
+		return 0;
+	long point = -1, from = Long.MAX_VALUE;
+	for(Entry e : pending)
+		{
+		point = Math.max(point, e.point);
+		from = Math.min(from, e.point);
+		}
+	int resized = ref.commitVal(apply(ref.latestVal(), pending), point);
+	droppedThrough = point;
+	foldPoints[nextFold] = point;
+	foldFroms[nextFold] = from;
+	nextFold = (nextFold + 1) % FOLDS;
+	for(Cell cell : cells)
+		cell.clear();
+	return resized;
+}
+
+//folds if the ref and every cell can be locked without waiting
+void tryFold(Ref ref){
+	long stamp = ref.lock.tryWriteLock();
+	if(stamp == 0)
+		return;
+	try
+		{
+		int locked = 0;
+		try
+			{
+			for(; locked < cells.length; locked++)
+				{
+				if(cells[locked].lock.tryWriteLock() == 0)
+					return;
+				}
+			fold(ref);
+			}
+		finally
+			{
+			for(int i = locked - 1; i >= 0; i--)
+				cells[i].lock.tryUnlockWrite();
+			}
+		}
+	finally
+		{
+		ref.lock.unlockWrite(stamp);
+		}
+}
+
+void readLockAll(){
+	for(Cell cell : cells)
+		cell.lock.readLock();
+}
+
+void unlockReadAll(){
+	for(int i = cells.length - 1; i >= 0; i--)
+		cells[i].lock.tryUnlockRead();
+}
+}
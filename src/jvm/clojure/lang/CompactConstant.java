@@ -0,0 +1,269 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Literal collections of plain data encoded as a string, for the compiler
+ * to emit as string constants a class decodes in its static init, rather
+ * than as code building them an element at a time.
+ *
+ * Each value is a tag char followed by its contents. Counts, lengths and
+ * integers are written in 15 bit groups, a char each, with the high bit
+ * set on all but the last. A keyword or symbol is written once, and as a
+ * back reference to its position among those written when it appears
+ * again. Decoding builds the same types the compiler's code would.
+ */
+public final class CompactConstant{
+
+static final char NIL = 'n', TRUE = 't', FALSE = 'f', INT = 'i', LONG = 'l', DOUBLE = 'd', CHAR = 'c',
+		STRING = 's', KEYWORD = 'k', SYMBOL = 'y', REF = 'r', BIGINT = 'N', BIGDEC = 'M', RATIO = 'q',
+		VECTOR = 'v', MAP = 'm', SET = 'h', LIST = 'L';
+
+/**
+ * The encoding of value, or null if it holds anything but nil, booleans,
+ * numbers, chars, strings, keywords, symbols and the collections of them
+ * the reader makes, or anything with metadata, or if it has no more than
+ * threshold elements counting those of nested collections.
+ */
+static public String encode(Object value, int threshold){
+	Encoder e = new Encoder();
+	if(!e.write(value) || e.elements <= threshold)
+		return null;
+	return e.sb.toString();
+}
+
+static final class Encoder{
+	final StringBuilder sb = new StringBuilder();
+	final Map<Object, Integer> refs = new HashMap<Object, Integer>();
+	int elements = 0;
+
+	boolean write(Object x){
+		elements++;
+		if(x == null)
+			sb.append(NIL);
+		else if(x instanceof Boolean)
+			sb.append(((Boolean) x) ? TRUE : FALSE);
+		else if(x instanceof Integer)
+			writeLong(sb.append(INT), (Integer) x);
+		else if(x instanceof Long)
+			writeLong(sb.append(LONG), (Long) x);
+		else if(x instanceof Double)
+			{
+			long bits = Double.doubleToRawLongBits((Double) x);
+			sb.append(DOUBLE).append((char) (bits >>> 48)).append((char) (bits >>> 32))
+					.append((char) (bits >>> 16)).append((char) bits);
+			}
+		else if(x instanceof Character)
+			sb.append(CHAR).append(((Character) x).charValue());
+		else if(x instanceof String)
+			writeString(sb.append(STRING), (String) x);
+		else if(x instanceof Keyword || x instanceof Symbol)
+			{
+			Symbol sym = x instanceof Keyword ? ((Keyword) x).sym : (Symbol) x;
+			if(RT.count(sym.meta()) > 0)
+				return false;
+			Integer ref = refs.get(x);
+			if(ref != null)
+				writeCount(sb.append(REF), ref);
+			else
+				{
+				refs.put(x, refs.size());
+				sb.append(x instanceof Keyword ? KEYWORD : SYMBOL);
+				//0 for no namespace, otherwise its length + 1
+				if(sym.ns == null)
+					writeCount(sb, 0);
+				else
+					{
+					writeCount(sb, sym.ns.length() + 1);
+					sb.append(sym.ns);
+					}
+				writeString(sb, sym.name);
+				}
+			}
+		else if(x instanceof BigInt)
+			writeString(sb.append(BIGINT), x.toString());
+		else if(x instanceof BigDecimal)
+			writeString(sb.append(BIGDEC), x.toString());
+		else if(x instanceof Ratio)
+			{
+			writeString(sb.append(RATIO), ((Ratio) x).numerator.toString());
+			writeString(sb, ((Ratio) x).denominator.toString());
+			}
+		else if(x instanceof IRecord || x instanceof IType
+		        || (x instanceof IObj && RT.count(((IObj) x).meta()) > 0))
+			return false;
+		else if(x instanceof IPersistentMap)
+			{
+			writeCount(sb.append(MAP), ((IPersistentMap) x).count());
+			for(ISeq s = RT.seq(x); s != null; s = s.next())
+				{
+				Map.Entry me = (Map.Entry) s.first();
+				if(!write(me.getKey()) || !write(me.getValue()))
+					return false;
+				}
+			}
+		else if(x instanceof IPersistentVector)
+			return writeAll(sb.append(VECTOR), x);
+		else if(x instanceof PersistentHashSet)
+			return writeAll(sb.append(SET), x);
+		else if(x instanceof ISeq || x instanceof IPersistentList)
+			return writeAll(sb.append(LIST), x);
+		else
+			return false;
+		return true;
+	}
+
+	boolean writeAll(StringBuilder sb, Object coll){
+		writeCount(sb, RT.count(coll));
+		for(ISeq s = RT.seq(coll); s != null; s = s.next())
+			{
+			if(!write(s.first()))
+				return false;
+			}
+		return true;
+	}
+}
+
+static void writeCount(StringBuilder sb, long n){
+	while((n >>> 15) != 0)
+		{
+		sb.append((char) (0x8000 | (n & 0x7fff)));
+		n >>>= 15;
+		}
+	sb.append((char) n);
+}
+
+static void writeLong(StringBuilder sb, long n){
+	//zigzag, so small negative numbers are short too
+	writeCount(sb, (n << 1) ^ (n >> 63));
+}
+
+static void writeString(StringBuilder sb, String s){
+	writeCount(sb, s.length());
+	sb.append(s);
+}
+
+/**
+ * The value encoded in s.
+ */
+static public Object decode(String s){
+	return new Decoder(s).read();
+}
+
+static final class Decoder{
+	final String s;
+	int pos = 0;
+	final List<Object> refs = new ArrayList<Object>();
+
+	Decoder(String s){
+		this.s = s;
+	}
+
+	Object read(){
+		char tag = s.charAt(pos++);
+		switch(tag)
+			{
+			case NIL:
+				return null;
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case INT:
+				return Integer.valueOf((int) readLong());
+			case LONG:
+				return Long.valueOf(readLong());
+			case DOUBLE:
+				{
+				long bits = ((long) s.charAt(pos) << 48) | ((long) s.charAt(pos + 1) << 32)
+				            | ((long) s.charAt(pos + 2) << 16) | (long) s.charAt(pos + 3);
+				pos += 4;
+				return Double.valueOf(Double.longBitsToDouble(bits));
+				}
+			case CHAR:
+				return Character.valueOf(s.charAt(pos++));
+			case STRING:
+				return readString();
+			case KEYWORD:
+			case SYMBOL:
+				{
+				int nslen = (int) readCount();
+				String ns = null;
+				if(nslen > 0)
+					{
+					ns = s.substring(pos, pos + nslen - 1);
+					pos += nslen - 1;
+					}
+				Object ret = tag == KEYWORD ? Keyword.intern(ns, readString()) : Symbol.intern(ns, readString());
+				refs.add(ret);
+				return ret;
+				}
+			case REF:
+				return refs.get((int) readCount());
+			case BIGINT:
+				return BigInt.fromBigInteger(new BigInteger(readString()));
+			case BIGDEC:
+				return new BigDecimal(readString());
+			case RATIO:
+				return new Ratio(new BigInteger(readString()), new BigInteger(readString()));
+			case MAP:
+				return RT.map(readArray(2 * (int) readCount()));
+			case VECTOR:
+				return LazilyPersistentVector.createOwning(readArray((int) readCount()));
+			case SET:
+				return PersistentHashSet.create(readArray((int) readCount()));
+			case LIST:
+				return PersistentList.create(Arrays.asList(readArray((int) readCount())));
+			default:
+				throw new IllegalStateException("Bad compact constant tag: " + tag);
+			}
+	}
+
+	Object[] readArray(int n){
+		Object[] ret = new Object[n];
+		for(int i = 0; i < n; i++)
+			ret[i] = read();
+		return ret;
+	}
+
+	long readCount(){
+		long n = 0;
+		int shift = 0;
+		char c;
+		while(((c = s.charAt(pos++)) & 0x8000) != 0)
+			{
+			n |= (long) (c & 0x7fff) << shift;
+			shift += 15;
+			}
+		return n | ((long) c << shift);
+	}
+
+	long readLong(){
+		long n = readCount();
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	String readString(){
+		int n = (int) readCount();
+		String ret = s.substring(pos, pos + n);
+		pos += n;
+		return ret;
+	}
+}
+}
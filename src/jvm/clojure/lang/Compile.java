@@ -11,25 +11,48 @@
 
 package clojure.lang;
 
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.io.IOException;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
 
 // Compiles libs and generates class files stored within the directory
 // named by the Java System property "clojure.compile.path". Arguments are
 // strings naming the libs to be compiled. The libs and compile-path must
 // all be within CLASSPATH.
+//
+// A compile-path ending in ".jar" names a jar file to write the class
+// files to instead, which need not be within CLASSPATH.
+//
+// Setting "clojure.compile.parallel" to a number of threads, or to true
+// for one per processor, compiles libs in parallel: the libs to compile,
+// and those they require, are ordered by the requires in their ns forms,
+// and each is compiled once those it requires have been. Setting
+// "clojure.compile.timings" to true prints the time taken to compile each
+// lib, slowest first, when done.
+//
+// Setting "clojure.compile.manifest" to a file compiles incrementally: the
+// file records what each lib compiled depended on, and only libs that
+// have changed, or depend on libs that have, are compiled again (see
+// CompileManifest). It needs a directory compile-path.
 
 public class Compile{
 
 private static final String PATH_PROP = "clojure.compile.path";
 private static final String REFLECTION_WARNING_PROP = "clojure.compile.warn-on-reflection";
 private static final String UNCHECKED_MATH_PROP = "clojure.compile.unchecked-math";
+private static final String PARALLEL_PROP = "clojure.compile.parallel";
+private static final String TIMINGS_PROP = "clojure.compile.timings";
+private static final String MANIFEST_PROP = "clojure.compile.manifest";
 
 private static final Var compile_path = RT.var("clojure.core", "*compile-path*");
 private static final Var compile = RT.var("clojure.core", "compile");
 private static final Var warn_on_reflection = RT.var("clojure.core", "*warn-on-reflection*");
 private static final Var unchecked_math = RT.var("clojure.core", "*unchecked-math*");
+private static final Var compile_libs = RT.var("clojure.core", "compile-libs");
 
 public static void main(String[] args) throws IOException, ClassNotFoundException{
 	RT.init();
@@ -54,25 +77,63 @@ public static void main(String[] args) throws IOException, ClassNotFoundExceptio
     else if("warn-on-boxed".equals(uncheckedMathProp))
         uncheckedMath = Keyword.intern("warn-on-boxed");
 
+    String parallelProp = System.getProperty(PARALLEL_PROP, "false");
+    int threads = 0;
+    if("true".equals(parallelProp))
+        threads = Runtime.getRuntime().availableProcessors();
+    else if(!"false".equals(parallelProp))
+        threads = Integer.parseInt(parallelProp);
+    boolean timings = System.getProperty(TIMINGS_PROP, "false").equals("true");
+    String manifestProp = System.getProperty(MANIFEST_PROP);
+    File manifest = manifestProp == null ? null : new File(manifestProp);
+
     // force load to avoid transitive compilation during lazy load
     RT.load("clojure/core/specs/alpha");
 
+    File jar = path.endsWith(".jar") ? new File(path) : null;
+    if(jar != null && manifest != null)
+        {
+        err.println("ERROR: System property " + MANIFEST_PROP +
+                    "\nneeds " + PATH_PROP + " to name a directory.");
+        System.exit(1);
+        }
+    String classes = path;
+    Associative bindings = RT.map(warn_on_reflection, warnOnReflection,
+                                  unchecked_math, uncheckedMath);
+    if(jar != null)
+        {
+        // compiled into a directory first, which the classes compiled are
+        // found in by later libs, as for gen-class
+        classes = Files.createTempDirectory("clojure-compile").toString();
+        DynamicClassLoader loader = new DynamicClassLoader(RT.baseLoader());
+        loader.addURL(new File(classes).toURI().toURL());
+        bindings = bindings.assoc(Compiler.LOADER, loader);
+        }
+
 	try
 		{
-               Var.pushThreadBindings(RT.map(compile_path, path,
-                       warn_on_reflection, warnOnReflection,
-                       unchecked_math, uncheckedMath));
+               Var.pushThreadBindings(bindings.assoc(compile_path, classes));
 
-		for(String lib : args)
-        {
-            out.write("Compiling " + lib + " to " + path + "\n");
-            out.flush();
-            compile.invoke(Symbol.intern(lib));
-        }
+		if(threads == 0 && !timings && manifest == null)
+			{
+			for(String lib : args)
+		        {
+		            out.write("Compiling " + lib + " to " + path + "\n");
+		            out.flush();
+		            compile.invoke(Symbol.intern(lib));
+		        }
+			}
+		else
+			compileLibs(args, Math.max(threads, 1), timings, path, manifest, out);
+
+		if(jar != null)
+			writeJar(new File(classes), jar);
 		}
 	finally
 		{
         Var.popThreadBindings();
+		if(jar != null)
+			delete(new File(classes));
 		try
 			{
 			out.flush();
@@ -83,4 +144,108 @@ public static void main(String[] args) throws IOException, ClassNotFoundExceptio
 			}
 		}
 }
+
+static void compileLibs(String[] args, int threads, boolean timings, final String path, File manifest,
+                        final Writer out) throws IOException{
+	final Map<Object, Double> times = new LinkedHashMap<Object, Double>();
+	List<Symbol> libs = new ArrayList<Symbol>();
+	for(String lib : args)
+		libs.add(Symbol.intern(lib));
+	IFn report = new AFn(){
+		public Object invoke(Object lib, Object ms){
+			synchronized(times)
+				{
+				times.put(lib, (Double) ms);
+				try
+					{
+					out.write(String.format("Compiled %s to %s in %.0f ms\n", lib, path, ms));
+					out.flush();
+					}
+				catch(IOException e)
+					{
+					throw Util.sneakyThrow(e);
+					}
+				}
+			return null;
+		}
+	};
+	if(manifest == null)
+		compile_libs.invoke(RT.seq(libs), threads, report);
+	else
+		{
+		int n = CompileManifest.compile(manifest, new File(path), RT.seq(libs), threads, report).size();
+		out.write("Compiled " + n + " changed or affected libs, see " + manifest + "\n");
+		out.flush();
+		}
+	if(timings)
+		{
+		List<Map.Entry<Object, Double>> es = new ArrayList<Map.Entry<Object, Double>>(times.entrySet());
+		Collections.sort(es, new Comparator<Map.Entry<Object, Double>>(){
+			public int compare(Map.Entry<Object, Double> a, Map.Entry<Object, Double> b){
+				return b.getValue().compareTo(a.getValue());
+			}
+		});
+		try
+			{
+			out.write("Compile times, slowest first:\n");
+			for(Map.Entry<Object, Double> e : es)
+				out.write(String.format("%10.0f ms  %s\n", e.getValue(), e.getKey()));
+			out.flush();
+			}
+		catch(IOException e)
+			{
+			throw Util.sneakyThrow(e);
+			}
+		}
+}
+
+static void writeJar(File classes, File jar) throws IOException{
+	Manifest manifest = new Manifest();
+	manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+	File parent = jar.getAbsoluteFile().getParentFile();
+	if(parent != null)
+		parent.mkdirs();
+	JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest);
+	try
+		{
+		addEntries(out, classes, "");
+		}
+	finally
+		{
+		out.close();
+		}
+}
+
+static void addEntries(JarOutputStream out, File dir, String prefix) throws IOException{
+	File[] files = dir.listFiles();
+	if(files == null)
+		return;
+	Arrays.sort(files);
+	for(File f : files)
+		{
+		String name = prefix + f.getName();
+		if(f.isDirectory())
+			{
+			out.putNextEntry(new JarEntry(name + "/"));
+			out.closeEntry();
+			addEntries(out, f, name + "/");
+			}
+		else
+			{
+			out.putNextEntry(new JarEntry(name));
+			Files.copy(f.toPath(), out);
+			out.closeEntry();
+			}
+		}
+}
+
+static void delete(File f){
+	File[] files = f.listFiles();
+	if(files != null)
+		{
+		for(File c : files)
+			delete(c);
+		}
+	f.delete();
+}
 }
@@ -0,0 +1,412 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An on-disk cache of the classes compiled for source files loaded by
+ * RT.load, enabled by naming a directory in the system property
+ * clojure.compile.cache.
+ *
+ * A file found only as source is compiled as if by compile, into an
+ * entry under a directory named by a hash of the source, its path, the
+ * Clojure version and the compiler options and flags affecting code
+ * generation. Later loads of the same file define the classes of the
+ * entry rather than compiling it again. *compile-files* stays false while
+ * compiling, so the file's code runs the same way on either load.
+ *
+ * Compiled code also depends on the namespaces whose Vars it uses, for
+ * macros, inlined fns and direct linking. While compiling, the cache
+ * records a hash of each file those namespaces were loaded from: the
+ * source or loader class their names find, and the files loaded into
+ * them with load, as RT.load reports them. An entry is only used while
+ * those files all still match. The entry is named by a hash of that
+ * record, so a file compiled against different versions of its
+ * dependencies has an entry for each.
+ *
+ * Entries are written to a temporary directory and moved into place
+ * whole, and are never replaced or removed, as another process may be
+ * loading classes from them. The directory can be deleted at any time.
+ */
+public final class CompileCache{
+
+static final String DIR_PROP = "clojure.compile.cache";
+static final String DEPS_FILE = "deps";
+static final Charset UTF8 = Charset.forName("UTF-8");
+
+//the cache directory, or nil when disabled
+static public final Var DIR = Var.create(System.getProperty(DIR_PROP)).setDynamic();
+//the names of the namespaces whose Vars are used by the file being
+//compiled into the cache, bound to a Set while compiling
+static final Var USED_NAMESPACES = Var.create(null).setDynamic();
+
+static final Var CLOJURE_VERSION = RT.var("clojure.core", "*clojure-version*");
+static final Var ASSERT = RT.var("clojure.core", "*assert*");
+
+//hashes of dependency resources, by url and modification time
+static final ConcurrentHashMap<String, String> resourceHashes = new ConcurrentHashMap<String, String>();
+
+//the resources each namespace was loaded from, while the cache or a
+//CompileManifest is in use, by the namespace's name
+static final ConcurrentHashMap<String, Set<String>> nsFiles = new ConcurrentHashMap<String, Set<String>>();
+//the Loading of the resource RT.load is loading on this thread
+static final Var LOADING = Var.create(null).setDynamic();
+
+//a resource being loaded, and the namespaces it switched to
+static final class Loading{
+	final Namespace ns = (Namespace) RT.CURRENT_NS.deref();
+	final Set<String> switched = new HashSet<String>();
+}
+
+static public boolean isEnabled(){
+	return DIR.deref() != null;
+}
+
+//true while compiling a file into the cache, so the files it loads use
+//the cache too rather than being compiled into its entry
+static public boolean isCompiling(){
+	return USED_NAMESPACES.deref() != null;
+}
+
+//called by RT.load before loading a resource, returning what's to be
+//passed to endLoad, or null when nothing is recorded
+static Loading startLoad(){
+	if(!isEnabled() && CompileManifest.USES.deref() == null)
+		return null;
+	Loading l = new Loading();
+	Var.pushThreadBindings(RT.map(LOADING, l));
+	return l;
+}
+
+//records file, the resource loaded, or null for none, as loaded into
+//the namespaces it switched to with in-ns, or else the one it was
+//loaded in
+static void endLoad(Loading l, String file){
+	if(l == null)
+		return;
+	Var.popThreadBindings();
+	if(file == null)
+		return;
+	if(l.switched.isEmpty())
+		l.switched.add(l.ns.name.name);
+	for(String nsname : l.switched)
+		{
+		Set<String> files = nsFiles.get(nsname);
+		if(files == null)
+			{
+			files = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			Set<String> prior = nsFiles.putIfAbsent(nsname, files);
+			if(prior != null)
+				files = prior;
+			}
+		files.add(file);
+		}
+}
+
+//called by in-ns
+static void inNamespace(Namespace ns){
+	Object l = LOADING.deref();
+	if(l != null)
+		((Loading) l).switched.add(ns.name.name);
+}
+
+//called by the compiler for each Var a form resolves to
+static void used(Var v){
+	Object names = USED_NAMESPACES.deref();
+	if(names != null)
+		((Set) names).add(v.ns.name.name);
+}
+
+/**
+ * Loads scriptfile, the source for scriptbase found at cljURL, from its
+ * cache entry, or compiles it into a new one.
+ */
+static public void load(String scriptbase, String scriptfile, URL cljURL) throws IOException, ClassNotFoundException{
+	File dir = new File((String) DIR.deref());
+	File entries = new File(dir, key(scriptbase, readAll(cljURL.openStream())));
+	File[] es = entries.listFiles();
+	if(es != null)
+		{
+		for(File entry : es)
+			{
+			if(entry.isDirectory() && isCurrent(entry))
+				{
+				loadEntry(entry, scriptbase);
+				return;
+				}
+			}
+		}
+	compileEntry(dir, entries, scriptfile);
+}
+
+static String key(String scriptbase, byte[] source){
+	MessageDigest md = sha();
+	md.update(source);
+	md.update(RT.printString(RT.vector(scriptbase,
+	                                   CLOJURE_VERSION.deref(),
+	                                   Compiler.COMPILER_OPTIONS.deref(),
+	                                   RT.UNCHECKED_MATH.deref(),
+	                                   ASSERT.deref())).getBytes(UTF8));
+	return hex(md.digest());
+}
+
+static boolean isCurrent(File entry) throws IOException{
+	File deps = new File(entry, DEPS_FILE);
+	//moved into place with its deps, so one without is temporary
+	if(!deps.isFile())
+		return false;
+	for(String line : Files.readAllLines(deps.toPath(), UTF8))
+		{
+		int i = line.indexOf(' ');
+		if(i > 0 && !line.substring(i + 1).equals(fingerprint(line.substring(0, i))))
+			return false;
+		}
+	return true;
+}
+
+//adds the fingerprints of the files the namespace was loaded from to
+//ret, other than scriptfile: those RT.load reported, and the source or
+//loader class its name finds, along with those ahead of it found missing
+static Map<String, String> fingerprints(String nsname, String scriptfile, Map<String, String> ret)
+		throws IOException{
+	Set<String> files = nsFiles.get(nsname);
+	if(files != null)
+		{
+		for(String file : files)
+			{
+			if(!file.equals(scriptfile))
+				ret.put(file, fingerprint(file));
+			}
+		}
+	String base = nsname.replace('-', '_').replace('.', '/');
+	for(String file : new String[]{base + ".clj", base + ".cljc", base + RT.LOADER_SUFFIX + ".class"})
+		{
+		if(file.equals(scriptfile))
+			break;
+		String fp = fingerprint(file);
+		ret.put(file, fp);
+		if(!fp.equals("-"))
+			break;
+		}
+	return ret;
+}
+
+//a hash of the resource file, or "-" if there's none
+static String fingerprint(String file) throws IOException{
+	URL url = RT.getResource(RT.baseLoader(), file);
+	if(url == null)
+		return "-";
+	String k = url + "@" + RT.lastModified(url, file);
+	String ret = resourceHashes.get(k);
+	if(ret == null)
+		{
+		ret = hex(sha().digest(readAll(url.openStream())));
+		resourceHashes.put(k, ret);
+		}
+	return ret;
+}
+
+//compiles scriptfile into a new entry under entries, named by its deps
+static void compileEntry(File dir, File entries, String scriptfile) throws IOException{
+	dir.mkdirs();
+	File tmp = Files.createTempDirectory(dir.toPath(), "tmp").toFile();
+	Set<String> used = new TreeSet<String>();
+	boolean done = false;
+	Var.pushThreadBindings(RT.mapUniqueKeys(Compiler.COMPILE_FILES, RT.F,
+	                                        Compiler.COMPILE_PATH, tmp.getPath(),
+	                                        USED_NAMESPACES, used));
+	try
+		{
+		RT.compile(scriptfile);
+		done = true;
+		}
+	finally
+		{
+		Var.popThreadBindings();
+		if(!done)
+			delete(tmp);
+		}
+
+	Map<String, String> fps = new TreeMap<String, String>();
+	for(String nsname : used)
+		fingerprints(nsname, scriptfile, fps);
+	StringBuilder sb = new StringBuilder();
+	for(Map.Entry<String, String> e : fps.entrySet())
+		sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+	byte[] deps = sb.toString().getBytes(UTF8);
+	Files.write(new File(tmp, DEPS_FILE).toPath(), deps);
+	File entry = new File(entries, hex(sha().digest(deps)));
+	entries.mkdirs();
+	if(entry.exists())
+		delete(tmp);
+	else
+		{
+		try
+			{
+			Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+		catch(IOException e)
+			{
+			//another process stored the same entry first
+			delete(tmp);
+			}
+		}
+}
+
+static void loadEntry(File entry, String scriptbase) throws ClassNotFoundException{
+	EntryLoader loader = new EntryLoader(entry, RT.baseLoader());
+	Var.pushThreadBindings(RT.mapUniqueKeys(Compiler.LOADER, loader,
+	                                        RT.CURRENT_NS, RT.CURRENT_NS.deref(),
+	                                        RT.WARN_ON_REFLECTION, RT.WARN_ON_REFLECTION.deref(),
+	                                        RT.UNCHECKED_MATH, RT.UNCHECKED_MATH.deref()));
+	try
+		{
+		Class.forName(scriptbase.replace('/', '.') + RT.LOADER_SUFFIX, true, loader);
+		//types and interfaces are found by name from other namespaces,
+		//which only see classes already defined
+		for(String name : classNames(entry, entry, new ArrayList<String>()))
+			{
+			String simple = name.substring(name.lastIndexOf('.') + 1);
+			if(simple.indexOf('$') < 0 && !simple.endsWith(RT.LOADER_SUFFIX))
+				loader.loadClass(name);
+			}
+		}
+	finally
+		{
+		Var.popThreadBindings();
+		}
+}
+
+static List<String> classNames(File root, File dir, List<String> ret){
+	File[] files = dir.listFiles();
+	if(files != null)
+		{
+		for(File f : files)
+			{
+			if(f.isDirectory())
+				classNames(root, f, ret);
+			else if(f.getName().endsWith(".class"))
+				{
+				String path = f.getPath().substring(root.getPath().length() + 1);
+				ret.add(path.substring(0, path.length() - ".class".length()).replace(File.separatorChar, '.'));
+				}
+			}
+		}
+	return ret;
+}
+
+//defines the classes of an entry itself, rather than finding those of an
+//earlier load of the same file in the classes already defined. The
+//loader class isn't added to those, or RT.load would find it there when
+//the file is loaded again, and not look at the source
+static final class EntryLoader extends DynamicClassLoader{
+	final File root;
+
+	EntryLoader(File root, ClassLoader parent){
+		super(parent);
+		this.root = root;
+	}
+
+	protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException{
+		File f = new File(root, name.replace('.', File.separatorChar) + ".class");
+		if(!f.isFile())
+			return super.loadClass(name, resolve);
+		Class c = findLoadedClass(name);
+		if(c == null)
+			{
+			try
+				{
+				byte[] bytes = Files.readAllBytes(f.toPath());
+				if(name.endsWith(RT.LOADER_SUFFIX))
+					c = defineClass(name, bytes, 0, bytes.length);
+				else
+					c = defineClass(name, bytes, null);
+				}
+			catch(IOException e)
+				{
+				throw new ClassNotFoundException(name, e);
+				}
+			}
+		if(resolve)
+			resolveClass(c);
+		return c;
+	}
+
+	//for the resources compiled alongside the classes, see ExternalMeta
+	public URL findResource(String name){
+		File f = new File(root, name.replace('/', File.separatorChar));
+		if(f.isFile())
+			{
+			try
+				{
+				return f.toURI().toURL();
+				}
+			catch(IOException e)
+				{
+				return null;
+				}
+			}
+		return super.findResource(name);
+	}
+}
+
+static byte[] readAll(InputStream ins) throws IOException{
+	try
+		{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		for(int n = ins.read(buf); n >= 0; n = ins.read(buf))
+			out.write(buf, 0, n);
+		return out.toByteArray();
+		}
+	finally
+		{
+		ins.close();
+		}
+}
+
+static MessageDigest sha(){
+	try
+		{
+		return MessageDigest.getInstance("SHA-256");
+		}
+	catch(NoSuchAlgorithmException e)
+		{
+		throw Util.sneakyThrow(e);
+		}
+}
+
+static String hex(byte[] bytes){
+	StringBuilder sb = new StringBuilder();
+	for(byte b : bytes)
+		sb.append(String.format("%02x", b & 0xff));
+	return sb.toString();
+}
+
+static void delete(File f){
+	File[] files = f.listFiles();
+	if(files != null)
+		{
+		for(File c : files)
+			delete(c);
+		}
+	f.delete();
+}
+}
@@ -0,0 +1,265 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A record of the libs compiled ahead of time into a directory, so that
+ * compiling them again only compiles those that may have changed.
+ *
+ * RT.load only compares the times of a lib's class and source, and so
+ * misses a change to a macro, inlined fn or constant of another lib that
+ * the lib's compiled code depends on. The manifest keeps, for each lib
+ * compiled, a hash of each file it was loaded from: its source and the
+ * files it loads with load. It keeps the same for the namespaces its ns
+ * form requires or whose Vars it used when compiled, hashing the files
+ * each was loaded from (see CompileCache).
+ *
+ * A lib is compiled again when any of its files has changed, its loader
+ * class is missing, or any of those namespaces has changed or must itself
+ * be compiled again. Its classes, and those compiled from the files it
+ * loads, are removed first, so RT.load compiles it rather than loading
+ * them.
+ */
+public final class CompileManifest{
+
+static final Keyword FILES = Keyword.intern(null, "files");
+static final Keyword DEPS = Keyword.intern(null, "deps");
+
+static final Var LOAD_GRAPH = RT.var("clojure.core", "load-graph");
+static final Var COMPILE_LIBS = RT.var("clojure.core", "compile-libs");
+
+//the names of the namespaces whose Vars each namespace compiled has
+//used, by its name, bound to a Map while compiling with a manifest
+static final Var USES = Var.create(null).setDynamic();
+
+final File file;
+//lib -> {:files {file hash}, :deps {lib {file hash}}}
+IPersistentMap entries;
+
+CompileManifest(File file, IPersistentMap entries){
+	this.file = file;
+	this.entries = entries;
+}
+
+//called by the compiler for each Var a form resolves to
+static void used(Var v){
+	Object uses = USES.deref();
+	if(uses != null)
+		{
+		String ns = ((Namespace) RT.CURRENT_NS.deref()).name.name;
+		String dep = v.ns.name.name;
+		if(!dep.equals(ns))
+			{
+			ConcurrentHashMap<String, Set<String>> m = (ConcurrentHashMap<String, Set<String>>) uses;
+			Set<String> deps = m.get(ns);
+			if(deps == null)
+				{
+				deps = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+				Set<String> prior = m.putIfAbsent(ns, deps);
+				if(prior != null)
+					deps = prior;
+				}
+			deps.add(dep);
+			}
+		}
+}
+
+/**
+ * Compiles libs, and the libs they require, into classes, as
+ * clojure.core/compile-libs does, skipping those unchanged since the
+ * manifest in file was written, and updates it. Calls (report lib ms) for
+ * each lib compiled, and returns their names.
+ */
+static public Set<Symbol> compile(File file, File classes, ISeq libs, int threads, final IFn report)
+		throws IOException{
+	CompileManifest m = read(file);
+	IPersistentVector graph = (IPersistentVector) LOAD_GRAPH.invoke(libs);
+	IPersistentVector order = (IPersistentVector) graph.nth(0);
+	IPersistentMap deps = (IPersistentMap) graph.nth(1);
+
+	Map<Symbol, Boolean> stale = new HashMap<Symbol, Boolean>();
+	for(int i = 0; i < order.count(); i++)
+		m.isStale((Symbol) order.nth(i), classes, stale);
+	for(Map.Entry<Symbol, Boolean> e : stale.entrySet())
+		{
+		if(e.getValue())
+			m.deleteClasses(classes, e.getKey());
+		}
+
+	final ConcurrentHashMap<String, Set<String>> uses = new ConcurrentHashMap<String, Set<String>>();
+	final Set<Symbol> compiled = Collections.synchronizedSet(new LinkedHashSet<Symbol>());
+	Var.pushThreadBindings(RT.map(USES, uses));
+	try
+		{
+		COMPILE_LIBS.invoke(libs, threads, new AFn(){
+			public Object invoke(Object lib, Object ms){
+				//the libs loaded from their classes used nothing
+				if(uses.containsKey(((Symbol) lib).name))
+					{
+					compiled.add((Symbol) lib);
+					report.invoke(lib, ms);
+					}
+				return null;
+			}
+		});
+		}
+	finally
+		{
+		Var.popThreadBindings();
+		}
+	synchronized(compiled)
+		{
+		for(Symbol lib : compiled)
+			m.record(lib, uses.get(lib.name), deps.valAt(lib));
+		}
+	m.write();
+	return compiled;
+}
+
+static CompileManifest read(File file) throws IOException{
+	IPersistentMap entries = PersistentHashMap.EMPTY;
+	if(file.isFile())
+		{
+		String s = new String(Files.readAllBytes(file.toPath()), CompileCache.UTF8);
+		Object m = EdnReader.readString(s, PersistentHashMap.EMPTY);
+		if(m != null)
+			entries = (IPersistentMap) m;
+		}
+	return new CompileManifest(file, entries);
+}
+
+//true if lib must be compiled again, given what's known in stale
+boolean isStale(Symbol lib, File classes, Map<Symbol, Boolean> stale) throws IOException{
+	Boolean known = stale.get(lib);
+	if(known != null)
+		return known;
+	//a cycle of libs doesn't make them stale
+	stale.put(lib, false);
+	IPersistentMap e = (IPersistentMap) entries.valAt(lib);
+	boolean ret = e == null
+	              || !new File(classes, base(lib) + RT.LOADER_SUFFIX + ".class").isFile()
+	              || !isCurrent(e.valAt(FILES));
+	for(ISeq s = ret ? null : RT.seq(e.valAt(DEPS)); s != null && !ret; s = s.next())
+		{
+		IMapEntry d = (IMapEntry) s.first();
+		Symbol dep = (Symbol) d.key();
+		ret = !isCurrent(d.val())
+		      || (entries.containsKey(dep) && isStale(dep, classes, stale));
+		}
+	stale.put(lib, ret);
+	return ret;
+}
+
+void record(Symbol lib, Set<String> used, Object requires) throws IOException{
+	Set<Symbol> names = new TreeSet<Symbol>();
+	if(used != null)
+		{
+		for(String n : used)
+			names.add(Symbol.intern(n));
+		}
+	for(ISeq s = RT.seq(requires); s != null; s = s.next())
+		names.add((Symbol) s.first());
+	names.remove(lib);
+	IPersistentMap deps = PersistentTreeMap.EMPTY;
+	for(Symbol n : names)
+		deps = deps.assoc(n, fingerprints(n));
+	entries = entries.assoc(lib, RT.mapUniqueKeys(FILES, fingerprints(lib), DEPS, deps));
+}
+
+void write() throws IOException{
+	Map<Symbol, Object> sorted = new TreeMap<Symbol, Object>();
+	for(ISeq s = RT.seq(entries); s != null; s = s.next())
+		{
+		IMapEntry e = (IMapEntry) s.first();
+		sorted.put((Symbol) e.key(), e.val());
+		}
+	StringBuilder sb = new StringBuilder("{\n");
+	Var.pushThreadBindings(RT.mapUniqueKeys(RT.PRINT_READABLY, RT.T,
+	                                        RT.PRINT_META, RT.F,
+	                                        RT.PRINT_DUP, RT.F));
+	try
+		{
+		for(Map.Entry<Symbol, Object> e : sorted.entrySet())
+			sb.append(RT.printString(e.getKey())).append(' ').append(RT.printString(e.getValue())).append('\n');
+		}
+	finally
+		{
+		Var.popThreadBindings();
+		}
+	sb.append("}\n");
+	File parent = file.getAbsoluteFile().getParentFile();
+	if(parent != null)
+		parent.mkdirs();
+	Files.write(file.toPath(), sb.toString().getBytes(CompileCache.UTF8));
+}
+
+//{file hash} for the files lib was loaded from
+static IPersistentMap fingerprints(Symbol lib) throws IOException{
+	IPersistentMap ret = PersistentTreeMap.EMPTY;
+	for(Map.Entry<String, String> e : CompileCache.fingerprints(lib.name, "", new HashMap<String, String>()).entrySet())
+		ret = ret.assoc(e.getKey(), e.getValue());
+	return ret;
+}
+
+//true if each file in fingerprints, a {file hash} map, still has its hash,
+//false for none, as written by an older manifest
+static boolean isCurrent(Object fingerprints) throws IOException{
+	if(!(fingerprints instanceof IPersistentMap))
+		return false;
+	for(ISeq s = RT.seq(fingerprints); s != null; s = s.next())
+		{
+		IMapEntry e = (IMapEntry) s.first();
+		if(!Util.equals(e.val(), CompileCache.fingerprint((String) e.key())))
+			return false;
+		}
+	return true;
+}
+
+static String base(Symbol lib){
+	return lib.name.replace('-', '_').replace('.', '/');
+}
+
+//removes the loader classes of lib and of the sources it loads, and the
+//classes and resources compiled with them, other than those of their
+//types, which are replaced when compiled
+void deleteClasses(File classes, Symbol lib){
+	deleteClasses(classes, base(lib));
+	IPersistentMap e = (IPersistentMap) entries.valAt(lib);
+	for(ISeq s = e == null ? null : RT.seq(e.valAt(FILES)); s != null; s = s.next())
+		{
+		String file = (String) ((IMapEntry) s.first()).key();
+		if(file.endsWith(".clj"))
+			deleteClasses(classes, file.substring(0, file.length() - 4));
+		else if(file.endsWith(".cljc"))
+			deleteClasses(classes, file.substring(0, file.length() - 5));
+		}
+}
+
+static void deleteClasses(File classes, String base){
+	File f = new File(classes, base);
+	String name = f.getName();
+	File[] files = f.getParentFile().listFiles();
+	if(files == null)
+		return;
+	for(File c : files)
+		{
+		String n = c.getName();
+		if(n.equals(name + RT.LOADER_SUFFIX + ".class") || n.equals(name + ExternalMeta.SUFFIX)
+		   || n.startsWith(name + "$"))
+			c.delete();
+		}
+}
+}
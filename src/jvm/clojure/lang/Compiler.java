@@ -156,6 +156,7 @@ final static Type BOOLEAN_OBJECT_TYPE = Type.getType(Boolean.class);
 final static Type IPERSISTENTMAP_TYPE = Type.getType(IPersistentMap.class);
 final static Type IOBJ_TYPE = Type.getType(IObj.class);
 final static Type TUPLE_TYPE = Type.getType(Tuple.class);
+final static Type PROTOCOL_CALLSITE_TYPE = Type.getType(ProtocolCallSite.class);
 final static Method createTupleMethods[] = {Method.getMethod("clojure.lang.IPersistentVector create()"),
         Method.getMethod("clojure.lang.IPersistentVector create(Object)"),
         Method.getMethod("clojure.lang.IPersistentVector create(Object,Object)"),
@@ -166,6 +167,7 @@ final static Method createTupleMethods[] = {Method.getMethod("clojure.lang.IPers
 };
 
 private static final Type[][] ARG_TYPES;
+private static final Class[][] OBJECT_PARAMS;
 //private static final Type[] EXCEPTION_TYPES = {Type.getType(Exception.class)};
 private static final Type[] EXCEPTION_TYPES = {};
 
@@ -186,6 +188,13 @@ static
 	a[MAX_POSITIONAL_ARITY] = Type.getType("[Ljava/lang/Object;");
 	ARG_TYPES[MAX_POSITIONAL_ARITY + 1] = a;
 
+	OBJECT_PARAMS = new Class[MAX_POSITIONAL_ARITY + 1][];
+	for(int i = 0; i <= MAX_POSITIONAL_ARITY; ++i)
+		{
+		OBJECT_PARAMS[i] = new Class[i];
+		Arrays.fill(OBJECT_PARAMS[i], Object.class);
+		}
+
 
 	}
 
@@ -220,6 +229,9 @@ static final public Var KEYWORDS = Var.create().setDynamic();
 //var->constid
 static final public Var VARS = Var.create().setDynamic();
 
+//ExternalMeta.Collector, while compiling a file with :lazy-meta
+static final public Var EXTERNAL_META = Var.create(null).setDynamic();
+
 //FnFrame
 static final public Var METHOD = Var.create(null).setDynamic();
 
@@ -257,6 +269,11 @@ static final public Var ADD_ANNOTATIONS = Var.intern(Namespace.findOrCreate(Symb
 static final public Keyword disableLocalsClearingKey = Keyword.intern("disable-locals-clearing");
 static final public Keyword directLinkingKey = Keyword.intern("direct-linking");
 static final public Keyword elideMetaKey = Keyword.intern("elide-meta");
+static final public Keyword guardedLinkingKey = Keyword.intern("guarded-linking");
+static final public Keyword lazyConstantsKey = Keyword.intern("lazy-constants");
+static final public Keyword lazyFnsKey = Keyword.intern("lazy-fns");
+static final public Keyword compactConstantsKey = Keyword.intern("compact-constants");
+static final public Keyword lazyMetaKey = Keyword.intern("lazy-meta");
 
 static final public Var COMPILER_OPTIONS;
 
@@ -408,6 +425,9 @@ static class DefExpr implements Expr{
 	public final Var var;
 	public final Expr init;
 	public final Expr meta;
+	//metadata kept in the file's ExternalMeta resource, or null
+	public final IPersistentMap externalMeta;
+	public final String externalMetaResource;
 	public final boolean initProvided;
 	public final boolean isDynamic;
 	public final boolean shadowsCoreMapping;
@@ -420,14 +440,24 @@ static class DefExpr implements Expr{
 	final static Method setDynamicMethod = Method.getMethod("clojure.lang.Var setDynamic(boolean)");
 	final static Method symintern = Method.getMethod("clojure.lang.Symbol intern(String, String)");
 	final static Method internVar = Method.getMethod("clojure.lang.Var refer(clojure.lang.Symbol, clojure.lang.Var)");
+	final static Method registerExternalMetaMethod =
+			Method.getMethod("void register(clojure.lang.Var, String, Class)");
 
 	public DefExpr(String source, int line, int column, Var var, Expr init, Expr meta, boolean initProvided, boolean isDynamic, boolean shadowsCoreMapping){
+		this(source, line, column, var, init, meta, null, null, initProvided, isDynamic, shadowsCoreMapping);
+	}
+
+	public DefExpr(String source, int line, int column, Var var, Expr init, Expr meta,
+	               IPersistentMap externalMeta, String externalMetaResource,
+	               boolean initProvided, boolean isDynamic, boolean shadowsCoreMapping){
 		this.source = source;
 		this.line = line;
 		this.column = column;
 		this.var = var;
 		this.init = init;
 		this.meta = meta;
+		this.externalMeta = externalMeta;
+		this.externalMetaResource = externalMetaResource;
 		this.isDynamic = isDynamic;
 		this.shadowsCoreMapping = shadowsCoreMapping;
 		this.initProvided = initProvided;
@@ -459,6 +489,11 @@ static class DefExpr implements Expr{
 			if(meta != null)
 				{
                 IPersistentMap metaMap = (IPersistentMap) meta.eval();
+				for(ISeq s = RT.seq(externalMeta); s != null; s = s.next())
+					{
+					IMapEntry e = (IMapEntry) s.first();
+					metaMap = metaMap.assoc(e.key(), e.val());
+					}
                 if (initProvided || true)//includesExplicitMetadata((MapExpr) meta))
 				    var.setMeta(metaMap);
 				}
@@ -502,6 +537,13 @@ static class DefExpr implements Expr{
                 gen.invokeVirtual(VAR_TYPE, setMetaMethod);
                 }
 			}
+		if(externalMeta != null)
+			{
+			gen.dup();
+			gen.push(externalMetaResource);
+			gen.push(objx.objtype);
+			gen.invokeStatic(Type.getType(ExternalMeta.class), registerExternalMetaMethod);
+			}
 		if(initProvided)
 			{
 			gen.dup();
@@ -591,10 +633,16 @@ static class DefExpr implements Expr{
 //					.without(Keyword.intern(null, "added"))
 //					.without(Keyword.intern(null, "static"));
             mm = (IPersistentMap) elideMeta(mm);
-			Expr meta = mm.count()==0 ? null:analyze(context == C.EVAL ? context : C.EXPRESSION, mm);
+			//with :lazy-meta, the entries only tools use are kept out of the class
+			ExternalMeta.Collector collector = (ExternalMeta.Collector) EXTERNAL_META.deref();
+			IPersistentMap externalMeta = collector == null ? null : collector.external(v, mm);
+			for(ISeq s = RT.seq(externalMeta); s != null; s = s.next())
+				mm = mm.without(((IMapEntry) s.first()).key());
+			Expr meta = mm.count()==0 && externalMeta == null ? null:analyze(context == C.EVAL ? context : C.EXPRESSION, mm);
 			return new DefExpr((String) SOURCE.deref(), lineDeref(), columnDeref(),
 			                   v, analyze(context == C.EVAL ? context : C.EXPRESSION, RT.third(form), v.sym.name),
-			                   meta, RT.count(form) == 3, isDynamic, shadowsCoreMapping);
+			                   meta, externalMeta, collector == null ? null : collector.resource,
+			                   RT.count(form) == 3, isDynamic, shadowsCoreMapping);
 		}
 	}
 }
@@ -3611,6 +3659,24 @@ static class StaticInvokeExpr implements Expr, MaybePrimitiveExpr{
 
 }
 
+//a constant for a guarded call of a fn of class c with argcount args,
+//holding c as the class being initialized resolves its name, if that
+//has the call's invokeStatic, else null
+static final class LinkGuard{
+	final Class c;
+	final int argcount;
+
+	LinkGuard(Class c, int argcount){
+		this.c = c;
+		this.argcount = argcount;
+	}
+}
+
+//called by the static inits of classes with guarded calls
+static public Class linkGuard(Class c, int argcount){
+	return InvokeExpr.hasInvokeStatic(c, argcount) ? c : null;
+}
+
 static class InvokeExpr implements Expr{
 	public final Expr fexpr;
 	public final Object tag;
@@ -3623,13 +3689,19 @@ static class InvokeExpr implements Expr{
 	public boolean isDirect = false;
 	public int siteIndex = -1;
 	public Class protocolOn;
+	//with guarded linking, the class of the fn's root when compiled, the
+	//constant holding it as the caller resolves it, and the local holding
+	//whether the root is still of that class
+	public Class guardClass;
+	int guardId = -1;
+	int guardLocal = -1;
 	public java.lang.reflect.Method onMethod;
 	static Keyword onKey = Keyword.intern("on");
 	static Keyword methodMapKey = Keyword.intern("method-map");
     Class jc;
 
     static Object sigTag(int argcount, Var v){
-        Object arglists = RT.get(RT.meta(v), arglistsKey);
+        Object arglists = v.getMetaValue(arglistsKey);
         Object sigTag = null;
         for(ISeq s = RT.seq(arglists); s != null; s = s.next())
             {
@@ -3652,7 +3724,7 @@ static class InvokeExpr implements Expr{
 		if(fexpr instanceof VarExpr)
 			{
 			Var fvar = ((VarExpr)fexpr).var;
-			Var pvar =  (Var)RT.get(fvar.meta(), protocolKey);
+			Var pvar =  (Var)fvar.getMetaValue(protocolKey);
 			if(pvar != null && PROTOCOL_CALLSITES.isBound())
 				{
 				this.isProtocol = true;
@@ -3684,7 +3756,7 @@ static class InvokeExpr implements Expr{
 		    this.tag = tag;
 		} else if (fexpr instanceof VarExpr) {
             Var v = ((VarExpr) fexpr).var;
-		    Object arglists = RT.get(RT.meta(v), arglistsKey);
+		    Object arglists = v.getMetaValue(arglistsKey);
 		    Object sigTag = sigTag(args.count(),v);
 		    this.tag = sigTag == null ? ((VarExpr) fexpr).tag : sigTag;
 		} else {
@@ -3717,9 +3789,11 @@ static class InvokeExpr implements Expr{
 			emitProto(context,objx,gen);
 			}
 
+		else if(guardClass != null)
+			emitGuarded(context, objx, gen);
 		else
 			{
-			fexpr.emit(C.EXPRESSION, objx, gen);
+			emitFn(objx, gen);
 			gen.visitLineNumber(line, gen.mark());
 			gen.checkCast(IFN_TYPE);
 			emitArgsAndCall(0, context,objx,gen);
@@ -3728,9 +3802,90 @@ static class InvokeExpr implements Expr{
 			gen.pop();		
 	}
 
+	//with guarded linking, a call of a Var whose root is a fn of the class
+	//it had when compiled calls its invokeStatic directly, like direct
+	//linking. Redefining the Var gives it a root of another class, which
+	//is called through IFn as usual.
+	//
+	//defn reuses a fn's class name, so the guard compares the root's class
+	//with the one the caller resolved that name to when its constants were
+	//made, a LinkGuard, rather than resolving it at the call. The call's
+	//invokeStatic resolves the name to the same class
+	void linkGuarded(Var v, int local){
+		if(v.isDynamic() || !v.isBound() || args.count() > MAX_POSITIONAL_ARITY)
+			return;
+		Object root = v.deref();
+		if(root == null || !Modifier.isFinal(root.getClass().getModifiers())
+		   || !hasInvokeStatic(root.getClass(), args.count()))
+			return;
+		int id = registerConstant(new LinkGuard(root.getClass(), args.count()));
+		if(id < 0)
+			return;
+		this.guardClass = root.getClass();
+		this.guardId = id;
+		this.guardLocal = local;
+	}
+
+	static boolean hasInvokeStatic(Class c, int argcount){
+		try
+			{
+			java.lang.reflect.Method m = c.getMethod("invokeStatic", OBJECT_PARAMS[argcount]);
+			return Modifier.isStatic(m.getModifiers()) && m.getReturnType() == Object.class;
+			}
+		catch(NoSuchMethodException e)
+			{
+			return false;
+			}
+	}
+
+	void emitFn(ObjExpr objx, GeneratorAdapter gen){
+		if(fexpr instanceof VarExpr)
+			objx.emitVarFn(gen, ((VarExpr) fexpr).var);
+		else
+			fexpr.emit(C.EXPRESSION, objx, gen);
+	}
+
+	void emitGuarded(C context, ObjExpr objx, GeneratorAdapter gen){
+		Label genericLabel = gen.newLabel();
+		Label endLabel = gen.newLabel();
+		Label otherLabel = gen.newLabel();
+		Label storeLabel = gen.newLabel();
+		Type guardType = Type.getType(guardClass);
+
+		emitFn(objx, gen);
+		gen.checkCast(IFN_TYPE); //fn
+		gen.dup();
+		gen.invokeVirtual(OBJECT_TYPE, Method.getMethod("Class getClass()")); //fn, class
+		objx.emitConstant(gen, guardId); //fn, class, guard-class
+		gen.ifCmp(OBJECT_TYPE, GeneratorAdapter.NE, otherLabel); //fn
+		gen.push(true);
+		gen.goTo(storeLabel);
+		gen.mark(otherLabel);
+		gen.push(false);
+		gen.mark(storeLabel); //fn, is-guard-class
+		gen.visitVarInsn(ISTORE, guardLocal); //fn
+		for(int i = 0; i < args.count(); i++)
+			((Expr) args.nth(i)).emit(C.EXPRESSION, objx, gen); //fn, args
+		gen.visitLineNumber(line, gen.mark());
+		if(tailPosition && !objx.canBeDirect)
+			{
+			ObjMethod method = (ObjMethod) METHOD.deref();
+			method.emitClearThis(gen);
+			}
+		gen.visitVarInsn(ILOAD, guardLocal);
+		gen.ifZCmp(GeneratorAdapter.EQ, genericLabel);
+		gen.invokeStatic(guardType, new Method("invokeStatic", OBJECT_TYPE, ARG_TYPES[args.count()])); //fn, ret
+		gen.swap();
+		gen.pop();
+		gen.goTo(endLabel);
+
+		gen.mark(genericLabel); //fn, args
+		gen.invokeInterface(IFN_TYPE, new Method("invoke", OBJECT_TYPE, ARG_TYPES[args.count()]));
+		gen.mark(endLabel);
+	}
+
 	public void emitProto(C context, ObjExpr objx, GeneratorAdapter gen){
 		Label onLabel = gen.newLabel();
-		Label callLabel = gen.newLabel();
 		Label endLabel = gen.newLabel();
 
 		Var v = ((VarExpr)fexpr).var;
@@ -3738,30 +3893,23 @@ static class InvokeExpr implements Expr{
 		Expr e = (Expr) args.nth(0);
 		e.emit(C.EXPRESSION, objx, gen);
 		gen.dup(); //target, target
-		gen.invokeStatic(UTIL_TYPE,Method.getMethod("Class classOf(Object)")); //target,class
-		gen.getStatic(objx.objtype, objx.cachedClassName(siteIndex),CLASS_TYPE); //target,class,cached-class
-		gen.visitJumpInsn(IF_ACMPEQ, callLabel); //target
+		emitProtocolCallSite(objx, gen, v); //target, target, site
+		gen.swap(); //target, site, target
+		gen.invokeVirtual(PROTOCOL_CALLSITE_TYPE, Method.getMethod("clojure.lang.IFn fnFor(Object)")); //target, fn
 		if(protocolOn != null)
 			{
-			gen.dup(); //target, target			
-			gen.instanceOf(Type.getType(protocolOn));
-			gen.ifZCmp(GeneratorAdapter.NE, onLabel);
+			//no fn for targets implementing the protocol interface
+			gen.dup(); //target, fn, fn
+			gen.ifNull(onLabel); //target, fn
 			}
-
-		gen.dup(); //target, target
-		gen.invokeStatic(UTIL_TYPE,Method.getMethod("Class classOf(Object)")); //target,class
-		gen.putStatic(objx.objtype, objx.cachedClassName(siteIndex),CLASS_TYPE); //target
-
-		gen.mark(callLabel); //target
-		objx.emitVar(gen, v);
-		gen.invokeVirtual(VAR_TYPE, Method.getMethod("Object getRawRoot()")); //target, proto-fn
-		gen.swap();
+		gen.swap(); //fn, target
 		emitArgsAndCall(1, context,objx,gen);
 		gen.goTo(endLabel);
 
-		gen.mark(onLabel); //target
+		gen.mark(onLabel); //target, null
 		if(protocolOn != null)
 			{
+			gen.pop(); //target
  			gen.checkCast(Type.getType(protocolOn));
 			MethodExpr.emitTypedArgs(objx, gen, onMethod.getParameterTypes(), RT.subvec(args,1,args.count()));
 			if(context == C.RETURN)
@@ -3776,6 +3924,27 @@ static class InvokeExpr implements Expr{
 		gen.mark(endLabel);
 	}
 
+	//the site's inline cache, made on first use
+	void emitProtocolCallSite(ObjExpr objx, GeneratorAdapter gen, Var v){
+		Label haveSite = gen.newLabel();
+		gen.getStatic(objx.objtype, objx.protocolCallSiteName(siteIndex), PROTOCOL_CALLSITE_TYPE);
+		gen.dup();
+		gen.ifNonNull(haveSite);
+		gen.pop();
+		gen.newInstance(PROTOCOL_CALLSITE_TYPE);
+		gen.dup();
+		objx.emitVar(gen, v);
+		if(protocolOn != null)
+			gen.push(Type.getType(protocolOn));
+		else
+			gen.visitInsn(Opcodes.ACONST_NULL);
+		gen.invokeConstructor(PROTOCOL_CALLSITE_TYPE,
+		                      Method.getMethod("void <init>(clojure.lang.Var,Class)"));
+		gen.dup();
+		gen.putStatic(objx.objtype, objx.protocolCallSiteName(siteIndex), PROTOCOL_CALLSITE_TYPE);
+		gen.mark(haveSite);
+	}
+
 	void emitArgsAndCall(int firstArgToEmit, C context, ObjExpr objx, GeneratorAdapter gen){
 		for(int i = firstArgToEmit; i < Math.min(MAX_POSITIONAL_ARITY, args.count()); i++)
 			{
@@ -3836,13 +4005,13 @@ static class InvokeExpr implements Expr{
            && context != C.EVAL)
 			{
 			Var v = ((VarExpr)fexpr).var;
-            if(!v.isDynamic() && !RT.booleanCast(RT.get(v.meta(), redefKey, false)))
+            if(!v.isDynamic() && !RT.booleanCast(v.getMetaValue(redefKey)))
                 {
                 Symbol formtag = tagOf(form);
-                Object arglists = RT.get(RT.meta(v), arglistsKey);
+                Object arglists = v.getMetaValue(arglistsKey);
                 int arity = RT.count(form.next());
                 Object sigtag = sigTag(arity, v);
-                Object vtag = RT.get(RT.meta(v), RT.TAG_KEY);
+                Object vtag = v.getMetaValue(RT.TAG_KEY);
                 Expr ret = StaticInvokeExpr
                         .parse(v, RT.next(form), formtag != null ? formtag : sigtag != null ? sigtag : vtag, tailPosition);
                 if(ret != null)
@@ -3857,7 +4026,7 @@ static class InvokeExpr implements Expr{
 		if(fexpr instanceof VarExpr && context != C.EVAL)
 			{
 			Var v = ((VarExpr)fexpr).var;
-			Object arglists = RT.get(RT.meta(v), arglistsKey);
+			Object arglists = v.getMetaValue(arglistsKey);
 			int arity = RT.count(form.next());
 			for(ISeq s = RT.seq(arglists); s != null; s = s.next())
 				{
@@ -3882,6 +4051,10 @@ static class InvokeExpr implements Expr{
 			return new KeywordInvokeExpr((String) SOURCE.deref(), lineDeref(), columnDeref(), tagOf(form),
 			                             (KeywordExpr) fexpr, target);
 			}
+		//taken before the args, which may have locals of their own
+		boolean guarded = context != C.EVAL && fexpr instanceof VarExpr && METHOD.deref() != null
+		                  && RT.booleanCast(getCompilerOption(guardedLinkingKey));
+		int guardLocal = guarded ? getAndIncLocalNum() : -1;
 		PersistentVector args = PersistentVector.EMPTY;
 		for(ISeq s = RT.seq(form.next()); s != null; s = s.next())
 			{
@@ -3891,7 +4064,11 @@ static class InvokeExpr implements Expr{
 //			throw new IllegalArgumentException(
 //					String.format("No more than %d args supported", MAX_POSITIONAL_ARITY));
 
-		return new InvokeExpr((String) SOURCE.deref(), lineDeref(), columnDeref(), tagOf(form), fexpr, args, tailPosition);
+		InvokeExpr ret = new InvokeExpr((String) SOURCE.deref(), lineDeref(), columnDeref(), tagOf(form), fexpr, args,
+		                                tailPosition);
+		if(guarded && !ret.isProtocol)
+			ret.linkGuarded(((VarExpr) fexpr).var, guardLocal);
+		return ret;
 	}
 }
 
@@ -4138,18 +4315,23 @@ static public class FnExpr extends ObjExpr{
 	}
 
 	public void emitForDefn(ObjExpr objx, GeneratorAdapter gen){
-//		if(!hasPrimSigs && closes.count() == 0)
-//			{
-//			Type thunkType = Type.getType(FnLoaderThunk.class);
-////			presumes var on stack
-//			gen.dup();
-//			gen.newInstance(thunkType);
-//			gen.dupX1();
-//			gen.swap();
-//			gen.push(internalName.replace('/','.'));
-//			gen.invokeConstructor(thunkType,Method.getMethod("void <init>(clojure.lang.Var,String)"));
-//			}
-//		else
+		//with :lazy-fns, the class of a fn compiled to a file is only loaded
+		//once called. Fns with prim interfaces are called through them
+		if(!hasPrimSigs && !hasMeta && closes.count() == 0
+		   && writesClassFiles()
+		   && RT.booleanCast(getCompilerOption(lazyFnsKey)))
+			{
+			Type thunkType = Type.getType(FnLoaderThunk.class);
+//			presumes var on stack
+			gen.dup();
+			gen.newInstance(thunkType);
+			gen.dupX1();
+			gen.swap();
+			gen.push(objx.objtype);
+			gen.push(internalName.replace('/','.'));
+			gen.invokeConstructor(thunkType,Method.getMethod("void <init>(clojure.lang.Var,Class,String)"));
+			}
+		else
 			emit(C.EXPRESSION,objx,gen);
 	}
 }
@@ -4183,6 +4365,9 @@ static public class ObjExpr implements Expr{
 	int column;
 	PersistentVector constants;
     IPersistentSet usedConstants = PersistentHashSet.EMPTY;
+	//with the lazy-constants option, collection and pattern constants are
+	//built on first use rather than in the static init
+	boolean lazyConstants = false;
 
 	int constantsID;
 	int altCtorDrops = 0;
@@ -4263,6 +4448,13 @@ static public class ObjExpr implements Expr{
 	final static Method getConstantsMethod = Method.getMethod("Object[] getConstants(int)");
 	final static Method readStringMethod = Method.getMethod("Object readString(String)");
 
+	//the number of elements above which a literal collection of plain data
+	//is decoded from a string, unless set by the :compact-constants option
+	final static int COMPACT_CONSTANTS_THRESHOLD = 256;
+	//the most chars in one string constant, well under the 64K bytes the
+	//constant pool allows for any chars
+	final static int CONSTANT_CHUNK = 16384;
+
 	final static Type ILOOKUP_SITE_TYPE = Type.getType(ILookupSite.class);
 	final static Type ILOOKUP_THUNK_TYPE = Type.getType(ILookupThunk.class);
 	final static Type KEYWORD_LOOKUPSITE_TYPE = Type.getType(KeywordLookupSite.class);
@@ -4308,6 +4500,7 @@ static public class ObjExpr implements Expr{
 //		ClassVisitor cv = new TraceClassVisitor(new CheckClassAdapter(cw), new PrintWriter(System.out));
 		//ClassVisitor cv = new TraceClassVisitor(cw, new PrintWriter(System.out));
 		cv.visit(V1_8, ACC_PUBLIC + ACC_SUPER + ACC_FINAL, internalName, null,superName,interfaceNames);
+		lazyConstants = RT.booleanCast(getCompilerOption(lazyConstantsKey));
 //		         superName != null ? superName :
 //		         (isVariadic() ? "clojure/lang/RestFn" : "clojure/lang/AFunction"), null);
 		String source = (String) SOURCE.deref();
@@ -4385,7 +4578,7 @@ static public class ObjExpr implements Expr{
 		//static fields for callsites and thunks
 		for(int i=0;i<protocolCallsites.count();i++)
 			{
-			cv.visitField(ACC_PRIVATE + ACC_STATIC, cachedClassName(i), CLASS_TYPE.getDescriptor(), null, null);
+			cv.visitField(ACC_PRIVATE + ACC_STATIC, protocolCallSiteName(i), PROTOCOL_CALLSITE_TYPE.getDescriptor(), null, null);
 			}
 
  		//ctor that takes closed-overs and inits base + fields
@@ -4583,10 +4776,11 @@ static public class ObjExpr implements Expr{
         for(int i = 0; i < constants.count(); i++)
             {
             if(usedConstants.contains(i))
-                cv.visitField(ACC_PUBLIC + ACC_FINAL
+                cv.visitField(ACC_PUBLIC + (isLazyConstant(i) ? ACC_VOLATILE : ACC_FINAL)
                           + ACC_STATIC, constantName(i), constantType(i).getDescriptor(),
                           null, null);
             }
+        emitLazyConstantInits(cv);
 
         //static fields for lookup sites
         for(int i = 0; i < keywordCallsites.count(); i++)
@@ -4666,7 +4860,7 @@ static public class ObjExpr implements Expr{
 		cv.visitEnd();
 
 		bytecode = cw.toByteArray();
-		if(RT.booleanCast(COMPILE_FILES.deref()))
+		if(writesClassFiles())
 			writeClassFile(internalName, bytecode);
 //		else
 //			getCompiledClass();
@@ -4708,6 +4902,7 @@ static public class ObjExpr implements Expr{
 
 	void emitValue(Object value, GeneratorAdapter gen){
 		boolean partial = true;
+		String compact;
 		//System.out.println(value.getClass().toString());
 
 		if(value == null)
@@ -4743,6 +4938,13 @@ static public class ObjExpr implements Expr{
 				gen.push(((Character) value).charValue());
 				gen.invokeStatic(Type.getType(Character.class), Method.getMethod("Character valueOf(char)"));
 				}
+		else if(value instanceof LinkGuard)
+			{
+			//resolved by the class itself, as its invokeStatic calls are
+			gen.push(Type.getType(((LinkGuard) value).c));
+			gen.push(((LinkGuard) value).argcount);
+			gen.invokeStatic(Type.getType(Compiler.class), Method.getMethod("Class linkGuard(Class,int)"));
+			}
 		else if(value instanceof Class)
 			{
 			Class cc = (Class)value;
@@ -4824,6 +5026,10 @@ static public class ObjExpr implements Expr{
             emitValue(PersistentArrayMap.create((java.util.Map) value), gen);
 			gen.invokeStatic(getType(value.getClass()), createMethod);
 			}
+		else if((compact = compactForm(value)) != null)
+			{
+			emitCompactForm(compact, gen);
+			}
 		else if(value instanceof IPersistentMap)
 			{
 			List entries = new ArrayList();
@@ -4922,6 +5128,40 @@ static public class ObjExpr implements Expr{
 	}
 
 
+	//the encoding of value, when a literal collection of enough plain data
+	//to be better decoded at init than built an element at a time, which
+	//makes <clinit> large and, past 64K of bytecode, too large to compile.
+	//Metadata on value itself is added after, as for other collections
+	static String compactForm(Object value){
+		if(!(value instanceof IPersistentCollection || value instanceof ISeq))
+			return null;
+		Object opt = getCompilerOption(compactConstantsKey);
+		int threshold = opt instanceof Number ? ((Number) opt).intValue()
+		                                      : opt == null || RT.booleanCast(opt) ? COMPACT_CONSTANTS_THRESHOLD : -1;
+		if(threshold < 0)
+			return null;
+		return CompactConstant.encode(value instanceof IObj ? ((IObj) value).withMeta(null) : value, threshold);
+	}
+
+	void emitCompactForm(String s, GeneratorAdapter gen){
+		if(s.length() <= CONSTANT_CHUNK)
+			gen.push(s);
+		else
+			{
+			Type sbType = Type.getType(StringBuilder.class);
+			gen.newInstance(sbType);
+			gen.dup();
+			gen.invokeConstructor(sbType, Method.getMethod("void <init>()"));
+			for(int i = 0; i < s.length(); i += CONSTANT_CHUNK)
+				{
+				gen.push(s.substring(i, Math.min(s.length(), i + CONSTANT_CHUNK)));
+				gen.invokeVirtual(sbType, Method.getMethod("StringBuilder append(String)"));
+				}
+			gen.invokeVirtual(sbType, Method.getMethod("String toString()"));
+			}
+		gen.invokeStatic(Type.getType(CompactConstant.class), Method.getMethod("Object decode(String)"));
+	}
+
 	void emitConstants(GeneratorAdapter clinitgen){
 		try
 			{
@@ -4929,7 +5169,7 @@ static public class ObjExpr implements Expr{
 
 			for(int i = 0; i < constants.count(); i++)
 				{
-                if(usedConstants.contains(i))
+                if(usedConstants.contains(i) && !isLazyConstant(i))
                     {
                     emitValue(constants.nth(i), clinitgen);
                     clinitgen.checkCast(constantType(i));
@@ -4943,6 +5183,57 @@ static public class ObjExpr implements Expr{
 			}
 	}
 
+	//a literal collection or pattern, which can be costly to build and is
+	//left until used. Vars and keywords stay in the static init, as
+	//interning them is cheap and the Vars must exist once loaded
+	boolean isLazyConstant(int id){
+		if(!lazyConstants)
+			return false;
+		Object o = constants.nth(id);
+		if(o instanceof Pattern)
+			return true;
+		return (o instanceof IPersistentCollection || o instanceof ISeq)
+		       && !(o instanceof IRecord) && !(o instanceof IType)
+		       && RT.count(o) > 0;
+	}
+
+	//a synchronized static method per lazy constant, building it once
+	void emitLazyConstantInits(ClassVisitor cv){
+		try
+			{
+			Var.pushThreadBindings(RT.map(RT.PRINT_DUP, RT.T));
+
+			for(int i = 0; i < constants.count(); i++)
+				{
+				if(!usedConstants.contains(i) || !isLazyConstant(i))
+					continue;
+				Type t = constantType(i);
+				GeneratorAdapter gen = new GeneratorAdapter(ACC_PRIVATE + ACC_STATIC + ACC_SYNCHRONIZED,
+				                                            new Method(constantInitName(i), t, new Type[]{}),
+				                                            null,
+				                                            null,
+				                                            cv);
+				gen.visitCode();
+				Label retLabel = gen.newLabel();
+				gen.getStatic(objtype, constantName(i), t);
+				gen.dup();
+				gen.ifNonNull(retLabel);
+				gen.pop();
+				emitValue(constants.nth(i), gen);
+				gen.checkCast(t);
+				gen.dup();
+				gen.putStatic(objtype, constantName(i), t);
+				gen.mark(retLabel);
+				gen.returnValue();
+				gen.endMethod();
+				}
+			}
+		finally
+			{
+			Var.popThreadBindings();
+			}
+	}
+
 	boolean isMutable(LocalBinding lb){
 		return isVolatile(lb) ||
 		       RT.booleanCast(RT.contains(fields, lb.sym)) &&
@@ -5185,16 +5476,16 @@ static public class ObjExpr implements Expr{
 
 	public void emitVarValue(GeneratorAdapter gen, Var v){
 		Integer i = (Integer) vars.valAt(v);
-		if(!v.isDynamic())
-			{
-			emitConstant(gen, i);
-			gen.invokeVirtual(VAR_TYPE, varGetRawMethod);
-			}
-		else
-			{
-			emitConstant(gen, i);
-			gen.invokeVirtual(VAR_TYPE, varGetMethod);
-			}
+		emitConstant(gen, i);
+		gen.invokeVirtual(VAR_TYPE, varGetMethod);
+	}
+
+	//the fn called through v. A call of a Var that isn't dynamic reads its
+	//raw root, which may be a FnLoaderThunk calling through to its fn
+	public void emitVarFn(GeneratorAdapter gen, Var v){
+		Integer i = (Integer) vars.valAt(v);
+		emitConstant(gen, i);
+		gen.invokeVirtual(VAR_TYPE, v.isDynamic() ? varGetMethod : varGetRawMethod);
 	}
 
 	public void emitKeyword(GeneratorAdapter gen, Keyword k){
@@ -5206,6 +5497,15 @@ static public class ObjExpr implements Expr{
 	public void emitConstant(GeneratorAdapter gen, int id){
         usedConstants = (IPersistentSet) usedConstants.cons(id);
 		gen.getStatic(objtype, constantName(id), constantType(id));
+		if(isLazyConstant(id))
+			{
+			Label endLabel = gen.newLabel();
+			gen.dup();
+			gen.ifNonNull(endLabel);
+			gen.pop();
+			gen.invokeStatic(objtype, new Method(constantInitName(id), constantType(id), new Type[]{}));
+			gen.mark(endLabel);
+			}
 	}
 
 
@@ -5213,6 +5513,10 @@ static public class ObjExpr implements Expr{
 		return CONST_PREFIX + id;
 	}
 
+	String constantInitName(int id){
+		return constantName(id) + "__init";
+	}
+
 	String siteName(int n){
 		return "__site__" + n;
 	}
@@ -5225,8 +5529,8 @@ static public class ObjExpr implements Expr{
 		return "__thunk__" + n;
 	}
 
-	String cachedClassName(int n){
-		return "__cached_class__" + n;
+	String protocolCallSiteName(int n){
+		return "__protocol_callsite__" + n;
 	}
 
 	String cachedVarName(int n){
@@ -6920,10 +7224,10 @@ static public IFn isInline(Object op, int arity) {
 			{
 			if(v.ns != currentNS() && !v.isPublic())
 				throw new IllegalStateException("var: " + v + " is not public");
-			IFn ret = (IFn) RT.get(v.meta(), inlineKey);
+			IFn ret = (IFn) v.getMetaValue(inlineKey);
 			if(ret != null)
 				{
-				IFn arityPred = (IFn) RT.get(v.meta(), inlineAritiesKey);
+				IFn arityPred = (IFn) v.getMetaValue(inlineAritiesKey);
 				if(arityPred == null || RT.booleanCast(arityPred.invoke(arity)))
 					return ret;
 				}
@@ -7322,7 +7626,7 @@ private static Expr analyzeSymbol(Symbol sym) {
 		Var v = (Var) o;
 		if(isMacro(v) != null)
 			throw Util.runtimeException("Can't take value of a macro: " + v);
-		if(RT.booleanCast(RT.get(v.meta(),RT.CONST_KEY)))
+		if(RT.booleanCast(v.getMetaValue(RT.CONST_KEY)))
 			return analyze(C.EXPRESSION, RT.list(QUOTE, v.get()));
 		registerVar(v);
 		return new VarExpr(v, tag);
@@ -7494,6 +7798,11 @@ static Var lookupVar(Symbol sym, boolean internNew, boolean registerMacro) {
 				throw Util.runtimeException("Expecting var, but " + sym + " is mapped to " + o);
 				}
 			}
+	if(var != null)
+		{
+		CompileCache.used(var);
+		CompileManifest.used(var);
+		}
 	if(var != null && (!var.isMacro() || registerMacro))
 		registerVar(var);
 	return var;
@@ -7610,6 +7919,7 @@ public static Object load(Reader rdr, String sourcePath, String sourceName) {
 			       SOURCE_PATH, sourcePath,
 			       SOURCE, sourceName,
 			       METHOD, null,
+			       EXTERNAL_META, null,
 			       LOCAL_ENV, null,
 					LOOP_LOCALS, null,
 					NEXT_LOCAL_NUM, 0,
@@ -7656,24 +7966,35 @@ public static Object load(Reader rdr, String sourcePath, String sourceName) {
 	return ret;
 }
 
+//true while the classes compiled are written to *compile-path*: when
+//compiling files, or compiling a file into a CompileCache entry, which
+//leaves *compile-files* false for the code it runs
+static boolean writesClassFiles(){
+	return RT.booleanCast(COMPILE_FILES.deref()) || CompileCache.isCompiling();
+}
+
 static public void writeClassFile(String internalName, byte[] bytecode) throws IOException{
+	writeResourceFile(internalName + ".class", bytecode);
+}
+
+static void writeResourceFile(String name, byte[] bytes) throws IOException{
 	String genPath = (String) COMPILE_PATH.deref();
 	if(genPath == null)
 		throw Util.runtimeException("*compile-path* not set");
-	String[] dirs = internalName.split("/");
+	String[] dirs = name.split("/");
 	String p = genPath;
 	for(int i = 0; i < dirs.length - 1; i++)
 		{
 		p += File.separator + dirs[i];
 		(new File(p)).mkdir();
 		}
-	String path = genPath + File.separator + internalName + ".class";
+	String path = genPath + File.separator + name;
 	File cf = new File(path);
 	cf.createNewFile();
 	FileOutputStream cfs = new FileOutputStream(cf);
 	try
 		{
-		cfs.write(bytecode);
+		cfs.write(bytes);
 		cfs.flush();
 		}
 	finally
@@ -7762,7 +8083,8 @@ public static Object compile(Reader rdr, String sourcePath, String sourceName) t
 			       CONSTANTS, PersistentVector.EMPTY,
 			       CONSTANT_IDS, new IdentityHashMap(),
 			       KEYWORDS, PersistentHashMap.EMPTY,
-			       VARS, PersistentHashMap.EMPTY
+			       VARS, PersistentHashMap.EMPTY,
+			       EXTERNAL_META, null
 					,RT.UNCHECKED_MATH, RT.UNCHECKED_MATH.deref()
 					,RT.WARN_ON_REFLECTION, RT.WARN_ON_REFLECTION.deref()
 					,RT.DATA_READERS, RT.DATA_READERS.deref()
@@ -7777,6 +8099,8 @@ public static Object compile(Reader rdr, String sourcePath, String sourceName) t
 		                  + RT.LOADER_SUFFIX;
 
 		objx.objtype = Type.getObjectType(objx.internalName);
+		if(RT.booleanCast(getCompilerOption(lazyMetaKey)))
+			EXTERNAL_META.set(new ExternalMeta.Collector(objx.internalName));
 		ClassWriter cw = classWriter();
 		ClassVisitor cv = cw;
 		cv.visit(V1_8, ACC_PUBLIC + ACC_SUPER, objx.internalName, null, "java/lang/Object", null);
@@ -7890,6 +8214,8 @@ public static Object compile(Reader rdr, String sourcePath, String sourceName) t
 		cv.visitEnd();
 
 		writeClassFile(objx.internalName, cw.toByteArray());
+		if(EXTERNAL_META.deref() != null)
+			((ExternalMeta.Collector) EXTERNAL_META.deref()).write();
 		}
 	catch(LispReader.ReaderException e)
 		{
@@ -30,6 +30,11 @@ static final URL[] EMPTY_URLS = new URL[]{};
 
 static final ReferenceQueue rq = new ReferenceQueue();
 
+//the index of the classpath for RT.load, see ResourceIndex, and the
+//number of URLs added, telling it when to rebuild
+volatile ResourceIndex resourceIndex;
+volatile int urlsAdded;
+
 public DynamicClassLoader(){
     //pseudo test in lieu of hasContextClassLoader()
 	super(EMPTY_URLS,(Thread.currentThread().getContextClassLoader() == null ||
@@ -91,6 +96,7 @@ public Object[] getConstants(int id){
 
 public void addURL(URL url){
 	super.addURL(url);
+	urlsAdded++;
 }
 
 }
@@ -0,0 +1,185 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Var metadata kept in a resource beside the classes compiled from a file,
+ * rather than in the classes themselves, for the :lazy-meta compiler
+ * option.
+ *
+ * The keys kept there, KEYS, document a Var and give its source, and are
+ * only wanted by tools: the compiler reads the others. A file's loader
+ * class gives each Var it defines its other metadata as usual, and the
+ * ExternalMeta for the resource, which is read when the metadata of one
+ * of its Vars is first asked for.
+ *
+ * The resource is named for the file, with __meta.edn in place of .clj,
+ * and holds a map of each Var's symbol to its metadata for those keys,
+ * one entry to a line. Only the lines are read at first, and an entry is
+ * only read as EDN when its Var's metadata is asked for.
+ */
+public final class ExternalMeta{
+
+static final Keyword ADDED_KEY = Keyword.intern(null, "added");
+static final IPersistentSet KEYS = PersistentHashSet.create(RT.DOC_KEY, RT.FILE_KEY, RT.LINE_KEY,
+                                                            RT.COLUMN_KEY, ADDED_KEY);
+
+static final String SUFFIX = "__meta.edn";
+
+//the ExternalMetas by resource name, for each class registering Vars
+static final ClassValue<ConcurrentHashMap<String, ExternalMeta>> BY_CLASS =
+		new ClassValue<ConcurrentHashMap<String, ExternalMeta>>(){
+			protected ConcurrentHashMap<String, ExternalMeta> computeValue(Class c){
+				return new ConcurrentHashMap<String, ExternalMeta>();
+			}
+		};
+
+final String resource;
+final ClassLoader loader;
+//the text of each entry's map, by the entry's symbol
+volatile Map<String, String> entries;
+
+ExternalMeta(String resource, ClassLoader loader){
+	this.resource = resource;
+	this.loader = loader;
+}
+
+/**
+ * Called by loader classes, giving v the external metadata kept for it
+ * in resource, found by the loader of owner.
+ */
+static public void register(Var v, String resource, Class owner){
+	ConcurrentHashMap<String, ExternalMeta> byName = BY_CLASS.get(owner);
+	ExternalMeta em = byName.get(resource);
+	if(em == null)
+		{
+		em = new ExternalMeta(resource, owner.getClassLoader());
+		ExternalMeta prior = byName.putIfAbsent(resource, em);
+		if(prior != null)
+			em = prior;
+		}
+	v.externalMeta = em;
+}
+
+//the external metadata of the Var named sym
+IPersistentMap metaFor(Symbol sym){
+	Map<String, String> es = entries;
+	if(es == null)
+		entries = es = read();
+	String m = es.get(sym.toString());
+	if(m == null)
+		return PersistentArrayMap.EMPTY;
+	return (IPersistentMap) EdnReader.readString(m, PersistentArrayMap.EMPTY);
+}
+
+Map<String, String> read(){
+	Map<String, String> ret = new HashMap<String, String>();
+	InputStream in = loader == null ? ClassLoader.getSystemResourceAsStream(resource)
+	                                : loader.getResourceAsStream(resource);
+	if(in == null)
+		return ret;
+	try
+		{
+		BufferedReader r = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		try
+			{
+			for(String line = r.readLine(); line != null; line = r.readLine())
+				{
+				int i = line.indexOf(' ');
+				if(i > 0)
+					ret.put(line.substring(0, i), line.substring(i + 1));
+				}
+			return ret;
+			}
+		finally
+			{
+			r.close();
+			}
+		}
+	catch(IOException e)
+		{
+		throw Util.sneakyThrow(e);
+		}
+}
+
+/**
+ * Collects the external metadata of the Vars defined in a file being
+ * compiled, and writes it beside the file's classes.
+ */
+static final class Collector{
+	final String resource;
+	final Map<Symbol, IPersistentMap> metas = new LinkedHashMap<Symbol, IPersistentMap>();
+
+	//internalName is that of the loader class of the file
+	Collector(String internalName){
+		this.resource = internalName.substring(0, internalName.length() - RT.LOADER_SUFFIX.length()) + SUFFIX;
+	}
+
+	/**
+	 * The entries of mm, the metadata of a def of v, to keep externally:
+	 * those for KEYS with literal values. Returns null if there are none.
+	 */
+	IPersistentMap external(Var v, IPersistentMap mm){
+		IPersistentMap ret = PersistentArrayMap.EMPTY;
+		for(ISeq s = RT.seq(mm); s != null; s = s.next())
+			{
+			IMapEntry e = (IMapEntry) s.first();
+			Object val = e.val();
+			if(KEYS.contains(e.key())
+			   && (val instanceof String || val instanceof Integer || val instanceof Long
+			       || val instanceof Keyword || val instanceof Boolean))
+				ret = ret.assoc(e.key(), val);
+			}
+		if(ret.count() == 0)
+			return null;
+		metas.put(Symbol.intern(v.ns.name.name, v.sym.name), ret);
+		return ret;
+	}
+
+	void write() throws IOException{
+		if(metas.isEmpty())
+			return;
+		StringBuilder sb = new StringBuilder("{\n");
+		Var.pushThreadBindings(RT.mapUniqueKeys(RT.PRINT_READABLY, RT.T,
+		                                        RT.PRINT_META, RT.F,
+		                                        RT.PRINT_DUP, RT.F));
+		try
+			{
+			for(Map.Entry<Symbol, IPersistentMap> e : metas.entrySet())
+				{
+				//strings print with their newlines escaped, keeping each entry to a line
+				sb.append(RT.printString(e.getKey())).append(" {");
+				boolean first = true;
+				for(ISeq s = RT.seq(e.getValue()); s != null; s = s.next(), first = false)
+					{
+					IMapEntry me = (IMapEntry) s.first();
+					if(!first)
+						sb.append(", ");
+					sb.append(RT.printString(me.key())).append(' ').append(RT.printString(me.val()));
+					}
+				sb.append("}\n");
+				}
+			}
+		finally
+			{
+			Var.popThreadBindings();
+			}
+		sb.append("}\n");
+		Compiler.writeResourceFile(resource, sb.toString().getBytes("UTF-8"));
+	}
+}
+}
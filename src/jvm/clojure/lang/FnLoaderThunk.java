@@ -12,64 +12,148 @@
 
 package clojure.lang;
 
-public class FnLoaderThunk extends RestFn{
+/**
+ * The root of a Var defined as a fn, standing in for the fn until the
+ * root is first used, when the fn's class is loaded and instantiated, and
+ * the fn replaces the thunk as the Var's root. Code compiled with the
+ * :lazy-fns compiler option binds these, so a namespace's fn classes are
+ * only loaded once used. Calls of the Var read its raw root and go
+ * through the thunk to the fn, while its value, from get and deref, is
+ * the fn.
+ */
+public final class FnLoaderThunk extends AFunction{
 
 final Var v;
 final ClassLoader loader;
 final String fnClassName;
-IFn fn;
+volatile IFn fn;
 
 public FnLoaderThunk(Var v, String fnClassName){
+	this(v, (ClassLoader) RT.FN_LOADER_VAR.get(), fnClassName);
+}
+
+//owner is the class binding the Var, found by the loader of the fn class
+public FnLoaderThunk(Var v, Class owner, String fnClassName){
+	this(v, owner.getClassLoader(), fnClassName);
+}
+
+FnLoaderThunk(Var v, ClassLoader loader, String fnClassName){
 	this.v = v;
-	this.loader = (ClassLoader) RT.FN_LOADER_VAR.get();
+	this.loader = loader;
 	this.fnClassName = fnClassName;
-	fn = null;
+}
+
+IFn fn() {
+	IFn f = fn;
+	return f != null ? f : load();
+}
+
+private IFn load() {
+	IFn f;
+	try
+		{
+		f = (IFn) Class.forName(fnClassName, true, loader).newInstance();
+		}
+	catch(Exception e)
+		{
+		throw Util.sneakyThrow(e);
+		}
+	fn = f;
+	//unless the root has been changed since
+	v.replaceThunk(this, f);
+	return f;
+}
+
+public Object invoke() {
+	return fn().invoke();
 }
 
 public Object invoke(Object arg1) {
-	load();
-	return fn.invoke(arg1);
+	return fn().invoke(arg1);
 }
 
 public Object invoke(Object arg1, Object arg2) {
-	load();
-	return fn.invoke(arg1,arg2);
+	return fn().invoke(arg1, arg2);
 }
 
 public Object invoke(Object arg1, Object arg2, Object arg3) {
-	load();
-	return fn.invoke(arg1,arg2,arg3);
+	return fn().invoke(arg1, arg2, arg3);
 }
 
-protected Object doInvoke(Object args) {
-	load();
-	return fn.applyTo((ISeq) args);
+public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4) {
+	return fn().invoke(arg1, arg2, arg3, arg4);
 }
 
-private void load() {
-	if(fn == null)
-		{
-		try
-			{
-			fn = (IFn) Class.forName(fnClassName,true,loader).newInstance();
-			}
-		catch(Exception e)
-			{
-			throw Util.sneakyThrow(e);
-			}
-		v.root = fn;
-		}
+public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5) {
+	return fn().invoke(arg1, arg2, arg3, arg4, arg5);
+}
+
+public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6) {
+	return fn().invoke(arg1, arg2, arg3, arg4, arg5, arg6);
+}
+
+public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7) {
+	return fn().invoke(arg1, arg2, arg3, arg4, arg5, arg6, arg7);
+}
+
+public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8) {
+	return fn().invoke(arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8);
+}
+
+public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9) {
+	return fn().invoke(arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9);
+}
+
+public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10) {
+	return fn().invoke(arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10);
+}
+
+public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11) {
+	return fn().invoke(arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11);
+}
+
+public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12) {
+	return fn().invoke(arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12);
+}
+
+public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13) {
+	return fn().invoke(arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13);
+}
+
+public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14) {
+	return fn().invoke(arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14);
+}
+
+public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14, Object arg15) {
+	return fn().invoke(arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14, arg15);
+}
+
+public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14, Object arg15, Object arg16) {
+	return fn().invoke(arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14, arg15, arg16);
+}
+
+public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14, Object arg15, Object arg16, Object arg17) {
+	return fn().invoke(arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14, arg15, arg16, arg17);
+}
+
+public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14, Object arg15, Object arg16, Object arg17, Object arg18) {
+	return fn().invoke(arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14, arg15, arg16, arg17, arg18);
+}
+
+public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14, Object arg15, Object arg16, Object arg17, Object arg18, Object arg19) {
+	return fn().invoke(arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14, arg15, arg16, arg17, arg18, arg19);
 }
 
-public int getRequiredArity(){
-	return 0;
+public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14, Object arg15, Object arg16, Object arg17, Object arg18, Object arg19, Object arg20) {
+	return fn().invoke(arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14, arg15, arg16, arg17, arg18, arg19, arg20);
 }
 
-public IObj withMeta(IPersistentMap meta){
-	return this;
+public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object arg5, Object arg6, Object arg7, Object arg8, Object arg9, Object arg10, Object arg11, Object arg12, Object arg13, Object arg14, Object arg15, Object arg16, Object arg17, Object arg18, Object arg19, Object arg20,
+                     Object... args) {
+	return fn().invoke(arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10, arg11, arg12, arg13, arg14, arg15, arg16, arg17, arg18, arg19, arg20, args);
 }
 
-public IPersistentMap meta(){
-	return null;
+public Object applyTo(ISeq arglist) {
+	return fn().applyTo(arglist);
 }
 }
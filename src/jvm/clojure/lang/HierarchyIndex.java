@@ -0,0 +1,169 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lookups over hierarchies made by make-hierarchy and derive, for isa?,
+ * ancestors and multimethod dispatch.
+ *
+ * A hierarchy already holds the transitive :ancestors of every tag, kept
+ * up to date by derive, so tags need no walk. Classes do: their ancestors
+ * are their supers plus whatever any of those derive from. Supers are
+ * cached per class, and the full ancestor set of each class is cached in
+ * an Index for one hierarchy value. A hierarchy is a persistent value, so
+ * an Index is never invalidated, derive just produces a value needing a
+ * new one.
+ */
+public final class HierarchyIndex{
+
+static final Keyword ANCESTORS = Keyword.intern(null, "ancestors");
+
+static final ClassValue<IPersistentSet> SUPERS = new ClassValue<IPersistentSet>(){
+	protected IPersistentSet computeValue(Class c){
+		LinkedHashSet<Class> ret = new LinkedHashSet<Class>();
+		addSupers(ret, c);
+		return ret.isEmpty() ? null : PersistentHashSet.create(new ArrayList(ret));
+	}
+};
+
+static void addSupers(LinkedHashSet<Class> ret, Class c){
+	Class s = c.getSuperclass();
+	if(s != null && ret.add(s))
+		addSupers(ret, s);
+	for(Class i : c.getInterfaces())
+		{
+		if(ret.add(i))
+			addSupers(ret, i);
+		}
+}
+
+/**
+ * The superclasses and interfaces of c, direct and indirect, or null if
+ * there are none.
+ */
+static public IPersistentSet supers(Class c){
+	return c == null ? null : SUPERS.get(c);
+}
+
+//recently used indexes, replaced round robin. Most programs only use
+//the global hierarchy and a few of their own. Racy, but an Index is
+//safely published through its final fields
+static final Index[] recent = new Index[4];
+static int next;
+
+static public Index indexFor(Object h){
+	for(Index idx : recent)
+		{
+		if(idx != null && idx.h == h)
+			return idx;
+		}
+	Index idx = new Index(h);
+	recent[next++ & (recent.length - 1)] = idx;
+	return idx;
+}
+
+static public boolean isa(Object h, Object child, Object parent){
+	return indexFor(h).isa(child, parent);
+}
+
+static public IPersistentSet ancestors(Object h, Object tag){
+	return indexFor(h).ancestors(tag);
+}
+
+public static final class Index{
+	final Object h;
+	final Object tagAncestors;
+	final ConcurrentHashMap<Class, Object> classAncestors = new ConcurrentHashMap<Class, Object>();
+
+	Index(Object h){
+		this.h = h;
+		this.tagAncestors = RT.get(h, ANCESTORS);
+	}
+
+	IPersistentSet derived(Object tag){
+		return (IPersistentSet) RT.get(tagAncestors, tag);
+	}
+
+	/**
+	 * The ancestors of tag, through derive and Java inheritance, or null
+	 * if it has none.
+	 */
+	public IPersistentSet ancestors(Object tag){
+		if(!(tag instanceof Class))
+			{
+			IPersistentSet ret = derived(tag);
+			return ret == null || ret.count() == 0 ? null : ret;
+			}
+		Object ret = classAncestors.get(tag);
+		if(ret == null)
+			{
+			ret = computeClassAncestors((Class) tag);
+			classAncestors.putIfAbsent((Class) tag, ret);
+			}
+		return ret == ANCESTORS ? null : (IPersistentSet) ret;
+	}
+
+	//ANCESTORS stands in for none, as the map can't hold null
+	Object computeClassAncestors(Class c){
+		IPersistentSet supers = supers(c);
+		ITransientCollection ret = PersistentHashSet.EMPTY.asTransient();
+		ret = addAll(ret, supers);
+		ret = addAll(ret, derived(c));
+		for(ISeq s = RT.seq(supers); s != null; s = s.next())
+			ret = addAll(ret, derived(s.first()));
+		IPersistentSet set = (IPersistentSet) ret.persistent();
+		return set.count() == 0 ? ANCESTORS : set;
+	}
+
+	static ITransientCollection addAll(ITransientCollection ret, IPersistentSet s){
+		for(ISeq e = RT.seq(s); e != null; e = e.next())
+			ret = ret.conj(e.first());
+		return ret;
+	}
+
+	public boolean isa(Object child, Object parent){
+		if(Util.equiv(child, parent))
+			return true;
+		if(child instanceof Class)
+			{
+			if(parent instanceof Class && ((Class) parent).isAssignableFrom((Class) child))
+				return true;
+			IPersistentSet a = ancestors(child);
+			if(a != null && a.contains(parent))
+				return true;
+			}
+		else
+			{
+			IPersistentSet a = derived(child);
+			if(a != null && a.contains(parent))
+				return true;
+			}
+		if(parent instanceof IPersistentVector && child instanceof IPersistentVector)
+			{
+			IPersistentVector pv = (IPersistentVector) parent;
+			IPersistentVector cv = (IPersistentVector) child;
+			if(pv.count() != cv.count())
+				return false;
+			for(int i = 0; i < pv.count(); i++)
+				{
+				if(!isa(cv.nth(i), pv.nth(i)))
+					return false;
+				}
+			return true;
+			}
+		return false;
+	}
+}
+}
@@ -0,0 +1,92 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative longs with power-of-two buckets.
+ * Bucket i counts values whose bit length is i, so percentiles are
+ * reported as the upper bound of their bucket (capped at the max seen).
+ */
+final public class Histogram{
+
+static final Keyword COUNT = Keyword.intern(null, "count");
+static final Keyword SUM = Keyword.intern(null, "sum");
+static final Keyword MAX = Keyword.intern(null, "max");
+static final Keyword MEAN = Keyword.intern(null, "mean");
+static final Keyword P50 = Keyword.intern(null, "p50");
+static final Keyword P90 = Keyword.intern(null, "p90");
+static final Keyword P99 = Keyword.intern(null, "p99");
+
+final AtomicLongArray buckets = new AtomicLongArray(65);
+final AtomicLong count = new AtomicLong();
+final AtomicLong sum = new AtomicLong();
+final AtomicLong max = new AtomicLong();
+
+public void record(long v){
+	if(v < 0)
+		v = 0;
+	buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(v));
+	count.incrementAndGet();
+	sum.addAndGet(v);
+	for(long m = max.get(); v > m && !max.compareAndSet(m, v); m = max.get())
+		;
+}
+
+public long count(){
+	return count.get();
+}
+
+public long sum(){
+	return sum.get();
+}
+
+public long max(){
+	return max.get();
+}
+
+public long percentile(double p){
+	long n = count.get();
+	if(n == 0)
+		return 0;
+	long rank = (long) Math.ceil(p * n);
+	long seen = 0;
+	for(int i = 0; i < buckets.length(); i++)
+		{
+		seen += buckets.get(i);
+		if(seen >= rank)
+			return i == 0 ? 0 : Math.min(max.get(), (i == 64 ? Long.MAX_VALUE : (1L << i) - 1));
+		}
+	return max.get();
+}
+
+public void reset(){
+	for(int i = 0; i < buckets.length(); i++)
+		buckets.set(i, 0);
+	count.set(0);
+	sum.set(0);
+	max.set(0);
+}
+
+public IPersistentMap toMap(){
+	long n = count.get();
+	long s = sum.get();
+	return RT.mapUniqueKeys(COUNT, n,
+	                        SUM, s,
+	                        MAX, max.get(),
+	                        MEAN, n == 0 ? 0.0 : (double) s / n,
+	                        P50, percentile(0.50),
+	                        P90, percentile(0.90),
+	                        P99, percentile(0.99));
+}
+}
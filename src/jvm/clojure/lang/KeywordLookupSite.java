@@ -14,22 +14,57 @@ package clojure.lang;
 
 public final class KeywordLookupSite implements ILookupSite, ILookupThunk{
 
+//target classes a call site keeps thunks for before it stops faulting
+//and looks up through RT.get
+static final int MAX_CLASSES = 4;
+
+static final Class[] NO_CLASSES = new Class[0];
+static final ILookupThunk[] NO_THUNKS = new ILookupThunk[0];
+
 final Keyword k;
+//the target classes, and the thunk for each, combined in the thunk last
+//returned by fault. A null thunk looks up through ILookup
+Class[] classes = NO_CLASSES;
+ILookupThunk[] thunks = NO_THUNKS;
+ILookupThunk megamorphic;
 
 public KeywordLookupSite(Keyword k){
 	this.k = k;
 }
 
-public ILookupThunk fault(Object target){
-	if(target instanceof IKeywordLookup)
+//returns a thunk handling target along with the targets seen before, so
+//a call site seeing a few classes of map or record doesn't fault, and
+//replace its thunk, each time the class changes
+public synchronized ILookupThunk fault(Object target){
+	if(megamorphic != null)
+		return megamorphic;
+	Class c = Util.classOf(target);
+	Class[] cs = classes;
+	for(Class x : cs)
 		{
-		return install(target);
+		//lost a race to store the site's thunk
+		if(x == c)
+			return combined(cs, thunks);
 		}
+	if(cs.length == MAX_CLASSES)
+		return megamorphic = megamorphicThunk();
+	ILookupThunk t;
+	if(target instanceof IKeywordLookup)
+		t = ((IKeywordLookup) target).getLookupThunk(k);
 	else if(target instanceof ILookup)
-		{
-		return ilookupThunk(target.getClass());
-		}
-	return this;
+		t = null;
+	else
+		t = this;
+	int n = cs.length;
+	Class[] ncs = new Class[n + 1];
+	ILookupThunk[] nts = new ILookupThunk[n + 1];
+	System.arraycopy(cs, 0, ncs, 0, n);
+	System.arraycopy(thunks, 0, nts, 0, n);
+	ncs[n] = c;
+	nts[n] = t;
+	classes = ncs;
+	thunks = nts;
+	return combined(ncs, nts);
 }
 
 public Object get(Object target){
@@ -38,6 +73,30 @@ public Object get(Object target){
 	return RT.get(target,k);
 }
 
+private ILookupThunk combined(final Class[] cs, final ILookupThunk[] ts){
+	if(cs.length == 1)
+		return ts[0] == null ? ilookupThunk(cs[0]) : ts[0];
+	return new ILookupThunk(){
+			public Object get(Object target){
+				Class c = Util.classOf(target);
+				for(int i = 0; i < cs.length; i++)
+					{
+					if(cs[i] == c)
+						return ts[i] == null ? ((ILookup) target).valAt(k) : ts[i].get(target);
+					}
+				return this;
+			}
+		};
+}
+
+private ILookupThunk megamorphicThunk(){
+	return new ILookupThunk(){
+			public Object get(Object target){
+				return RT.get(target, k);
+			}
+		};
+}
+
 private ILookupThunk ilookupThunk(final Class c){
 	return new ILookupThunk(){
 			public Object get(Object target){
@@ -47,11 +106,4 @@ private ILookupThunk ilookupThunk(final Class c){
 			}
 		};
 }
-
-private ILookupThunk install(Object target){
-	ILookupThunk t = ((IKeywordLookup)target).getLookupThunk(k);
-	if(t != null)
-		return t;
-	return ilookupThunk(target.getClass());
-}
 }
@@ -18,6 +18,7 @@ import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.StampedLock;
 
 @SuppressWarnings({"SynchronizeOnNonFinalField"})
 public class LockingTransaction{
@@ -36,7 +37,11 @@ static final int COMMITTED = 4;
 final static ThreadLocal<LockingTransaction> transaction = new ThreadLocal<LockingTransaction>();
 
 
+//control flow only, so skip the stack trace every transaction would pay for
 static class RetryEx extends Error{
+	public Throwable fillInStackTrace(){
+		return this;
+	}
 }
 
 static class AbortException extends Exception{
@@ -60,6 +65,11 @@ public static class Info{
 	}
 }
 
+//info of attempts that haven't written yet. Until an attempt first
+//writes, nothing can conflict with it, so it needs no status, latch or
+//start point of its own, and one that only reads commits trivially
+static final Info SNAPSHOT = new Info(RUNNING, -1);
+
 static class CFn{
 	final IFn fn;
 	final ISeq args;
@@ -70,24 +80,36 @@ static class CFn{
 	}
 }
 //total order on transactions
-//transactions will consume a point for init, for each retry, and on commit if writing
+//transactions will consume a point when they first write, and on commit if writing
 final private static AtomicLong lastPoint = new AtomicLong();
 
+//every commit up to lastPoint either holds the write locks on its refs
+//or is complete, so reading at it needs no point of our own
 void getReadPoint(){
-	readPoint = lastPoint.incrementAndGet();
+	readPoint = lastPoint.get();
 }
 
 long getCommitPoint(){
 	return lastPoint.incrementAndGet();
 }
 
+//called before the first write of an attempt
+void beginWrite(){
+	if(startPoint < 0)
+		startPoint = lastPoint.incrementAndGet();
+	info = new Info(RUNNING, startPoint);
+}
+
 void stop(int status){
 	if(info != null)
 		{
-		synchronized(info)
+		if(info != SNAPSHOT)
 			{
-			info.status.set(status);
-			info.latch.countDown();
+			synchronized(info)
+				{
+				info.status.set(status);
+				info.latch.countDown();
+				}
 			}
 		info = null;
 		vals.clear();
@@ -111,15 +133,41 @@ final TreeMap<Ref, ArrayList<CFn>> commutes = new TreeMap<Ref, ArrayList<CFn>>()
 final HashSet<Ref> ensures = new HashSet<Ref>();   //all hold readLock
 
 
+//the retry, attributed to the ref whose conflict caused it
+RetryEx retry(Ref ref){
+	if(TransactionStats.enabled)
+		ref.stats().retries.incrementAndGet();
+	return retryex;
+}
+
+void recordLockWait(Ref ref, long start){
+	long nanos = System.nanoTime() - start;
+	ref.stats().lockWait.record(nanos);
+	TransactionStats.recordLockWait(nanos);
+}
+
 void tryWriteLock(Ref ref){
+	tryWriteLock(ref, ref.lock);
+}
+
+//lock is the ref's or one of its cells'. Released with tryUnlockWrite,
+//as the StampedLock stamp isn't carried through to the commit's unlock loop
+void tryWriteLock(Ref ref, StampedLock lock){
+	boolean stats = TransactionStats.enabled;
+	long start = stats ? System.nanoTime() : 0;
 	try
 		{
-		if(!ref.lock.writeLock().tryLock(LOCK_WAIT_MSECS, TimeUnit.MILLISECONDS))
-			throw retryex;
+		if(lock.tryWriteLock(LOCK_WAIT_MSECS, TimeUnit.MILLISECONDS) == 0)
+			throw retry(ref);
 		}
 	catch(InterruptedException e)
 		{
-		throw retryex;
+		throw retry(ref);
+		}
+	finally
+		{
+		if(stats)
+			recordLockWait(ref, start);
 		}
 }
 
@@ -134,33 +182,35 @@ Object lock(Ref ref){
 		tryWriteLock(ref);
 		unlocked = false;
 
-		if(ref.tvals != null && ref.tvals.point > readPoint)
-			throw retryex;
+		if(ref.latestPoint() > readPoint)
+			throw retry(ref);
 		Info refinfo = ref.tinfo;
 
 		//write lock conflict
 		if(refinfo != null && refinfo != info && refinfo.running())
 			{
-			if(!barge(refinfo))
+			if(!barge(ref, refinfo))
 				{
-				ref.lock.writeLock().unlock();
+				ref.lock.tryUnlockWrite();
 				unlocked = true;
-				return blockAndBail(refinfo);
+				return blockAndBail(ref, refinfo);
 				}
 			}
 		ref.tinfo = info;
-		return ref.tvals == null ? null : ref.tvals.val;
+		return ref.latestVal();
 		}
 	finally
 		{
 		if(!unlocked)
-			ref.lock.writeLock().unlock();
+			ref.lock.tryUnlockWrite();
 		}
 }
 
-private Object blockAndBail(Info refinfo){
+private Object blockAndBail(Ref ref, Info refinfo){
 //stop prior to blocking
 	stop(RETRY);
+	boolean stats = TransactionStats.enabled;
+	long start = stats ? System.nanoTime() : 0;
 	try
 		{
 		refinfo.latch.await(LOCK_WAIT_MSECS, TimeUnit.MILLISECONDS);
@@ -169,17 +219,38 @@ private Object blockAndBail(Info refinfo){
 		{
 		//ignore
 		}
-	throw retryex;
+	if(stats)
+		recordLockWait(ref, start);
+	throw retry(ref);
 }
 
 private void releaseIfEnsured(Ref ref){
 	if(ensures.contains(ref))
 		{
 		ensures.remove(ref);
-		ref.lock.readLock().unlock();
+		ref.unlockEnsure();
 		}
 }
 
+//all of ref's cells, for a write through the ref itself
+void lockCells(Ref ref, ArrayList<StampedLock> lockedCells){
+	for(CommuteCells.Cell cell : ref.cells.cells)
+		{
+		tryWriteLock(ref, cell.lock);
+		lockedCells.add(cell.lock);
+		}
+}
+
+//a commute can go through a cell if nothing else needs the ref's value
+//at commit, and there's no writer it should wait for
+boolean canCommuteInCell(Ref ref){
+	Info refinfo = ref.tinfo;
+	return !ensures.contains(ref)
+	       && ref.getValidator() == null
+	       && ref.getWatches().count() == 0
+	       && (refinfo == null || !refinfo.running());
+}
+
 void abort() throws AbortException{
 	stop(KILLED);
 	throw new AbortException();
@@ -189,7 +260,7 @@ private boolean bargeTimeElapsed(){
 	return System.nanoTime() - startTime > BARGE_WAIT_NANOS;
 }
 
-private boolean barge(Info refinfo){
+private boolean barge(Ref ref, Info refinfo){
 	boolean barged = false;
 	//if this transaction is older
 	//  try to abort the other
@@ -197,7 +268,14 @@ private boolean barge(Info refinfo){
 		{
         barged = refinfo.status.compareAndSet(RUNNING, KILLED);
         if(barged)
+			{
             refinfo.latch.countDown();
+			if(TransactionStats.enabled)
+				{
+				ref.stats().barges.incrementAndGet();
+				TransactionStats.recordBarge();
+				}
+			}
 		}
 	return barged;
 }
@@ -241,6 +319,40 @@ static public Object runInTransaction(Callable fn) throws Exception{
 	return ret;
 }
 
+//writes newval to ref outside of any transaction, committing as one that
+//wrote only ref. Fails without waiting if ref no longer holds oldval, or
+//is locked or claimed by a transaction; callers can then retry in one
+static boolean compareAndCommit(Ref ref, Object oldval, Object newval){
+	if(ref.cells != null)
+		return false;
+	long stamp = ref.lock.tryWriteLock();
+	if(stamp == 0)
+		return false;
+	try
+		{
+		Info refinfo = ref.tinfo;
+		if((refinfo != null && refinfo.running()) || ref.latestVal() != oldval)
+			return false;
+		ref.validate(ref.getValidator(), newval);
+		int resized = ref.commitVal(newval, lastPoint.incrementAndGet());
+		if(TransactionStats.enabled)
+			{
+			if(resized > 0)
+				ref.stats().historyGrowth.incrementAndGet();
+			else if(resized < 0)
+				ref.stats().historyShrinks.incrementAndGet();
+			ref.stats().commits.incrementAndGet();
+			}
+		}
+	finally
+		{
+		ref.lock.unlockWrite(stamp);
+		}
+	if(ref.getWatches().count() > 0)
+		ref.notifyWatches(oldval, newval);
+	return true;
+}
+
 static class Notify{
 	final public Ref ref;
 	final public Object oldval;
@@ -257,6 +369,9 @@ Object run(Callable fn) throws Exception{
 	boolean done = false;
 	Object ret = null;
 	ArrayList<Ref> locked = new ArrayList<Ref>();
+	ArrayList<StampedLock> lockedCells = new ArrayList<StampedLock>();
+	//refs committed through one of their cells
+	ArrayList<Ref> celled = new ArrayList<Ref>();
 	ArrayList<Notify> notify = new ArrayList<Notify>();
 
 	for(int i = 0; !done && i < RETRY_LIMIT; i++)
@@ -266,44 +381,72 @@ Object run(Callable fn) throws Exception{
 			getReadPoint();
 			if(i == 0)
 				{
-				startPoint = readPoint;
+				startPoint = -1;
 				startTime = System.nanoTime();
 				}
-			info = new Info(RUNNING, startPoint);
+			info = SNAPSHOT;
 			ret = fn.call();
+			if(info == SNAPSHOT)
+				{
+				//read only, nothing to commit
+				done = true;
+				if(TransactionStats.enabled)
+					TransactionStats.recordCommit(i, System.nanoTime() - startTime);
+				}
 			//make sure no one has killed us before this point, and can't from now on
-			if(info.status.compareAndSet(RUNNING, COMMITTING))
+			else if(info.status.compareAndSet(RUNNING, COMMITTING))
 				{
 				for(Map.Entry<Ref, ArrayList<CFn>> e : commutes.entrySet())
 					{
 					Ref ref = e.getKey();
 					if(sets.contains(ref)) continue;
+
+					if(ref.cells != null && canCommuteInCell(ref))
+						{
+						StampedLock cellLock = ref.cells.cellFor(Thread.currentThread()).lock;
+						tryWriteLock(ref, cellLock);
+						lockedCells.add(cellLock);
+						celled.add(ref);
+						continue;
+						}
 					
 					boolean wasEnsured = ensures.contains(ref);
 					//can't upgrade readLock, so release it
 					releaseIfEnsured(ref);
 					tryWriteLock(ref);
 					locked.add(ref);
-					if(wasEnsured && ref.tvals != null && ref.tvals.point > readPoint)
-						throw retryex;
+					if(ref.cells != null)
+						lockCells(ref, lockedCells);
+					if(wasEnsured && ref.latestPoint() > readPoint)
+						throw retry(ref);
 
 					Info refinfo = ref.tinfo;
 					if(refinfo != null && refinfo != info && refinfo.running())
 						{
-						if(!barge(refinfo))
-							throw retryex;
+						if(!barge(ref, refinfo))
+							throw retry(ref);
 						}
-					Object val = ref.tvals == null ? null : ref.tvals.val;
+					Object val = ref.lockedVal();
 					vals.put(ref, val);
 					for(CFn f : e.getValue())
 						{
 						vals.put(ref, f.fn.applyTo(RT.cons(vals.get(ref), f.args)));
 						}
+					if(TransactionStats.enabled)
+						ref.stats().commuteReruns.addAndGet(e.getValue().size());
 					}
 				for(Ref ref : sets)
 					{
 					tryWriteLock(ref);
 					locked.add(ref);
+					if(ref.cells != null)
+						{
+						lockCells(ref, lockedCells);
+						//cell commutes don't wait for writers, so one may have
+						//landed after our snapshot
+						if(ref.latestPoint() > readPoint)
+							throw retry(ref);
+						}
 					}
 
 				//validate and enqueue notifications
@@ -316,35 +459,41 @@ Object run(Callable fn) throws Exception{
 				//at this point, all values calced, all refs to be written locked
 				//no more client code to be called
 				long commitPoint = getCommitPoint();
+				boolean stats = TransactionStats.enabled;
 				for(Map.Entry<Ref, Object> e : vals.entrySet())
 					{
 					Ref ref = e.getKey();
-					Object oldval = ref.tvals == null ? null : ref.tvals.val;
+					if(ref.cells != null && celled.contains(ref))
+						continue;
+					Object oldval = ref.lockedVal();
 					Object newval = e.getValue();
-					int hcount = ref.histCount();
-
-					if(ref.tvals == null)
+					int resized = 0;
+					if(ref.cells != null)
+						resized += ref.cells.fold(ref);
+					resized += ref.commitVal(newval, commitPoint);
+					if(stats && resized != 0)
 						{
-						ref.tvals = new Ref.TVal(newval, commitPoint);
-						}
-					else if((ref.faults.get() > 0 && hcount < ref.maxHistory)
-							|| hcount < ref.minHistory)
-						{
-						ref.tvals = new Ref.TVal(newval, commitPoint, ref.tvals);
-						ref.faults.set(0);
-						}
-					else
-						{
-						ref.tvals = ref.tvals.next;
-						ref.tvals.val = newval;
-						ref.tvals.point = commitPoint;
+						if(resized > 0)
+							ref.stats().historyGrowth.incrementAndGet();
+						else
+							ref.stats().historyShrinks.incrementAndGet();
 						}
 					if(ref.getWatches().count() > 0)
 						notify.add(new Notify(ref, oldval, newval));
+					if(stats)
+						ref.stats().commits.incrementAndGet();
+					}
+				for(Ref ref : celled)
+					{
+					ref.cells.cellFor(Thread.currentThread()).append(commitPoint, commutes.get(ref));
+					if(stats)
+						ref.stats().commits.incrementAndGet();
 					}
 
 				done = true;
 				info.status.set(COMMITTED);
+				if(stats)
+					TransactionStats.recordCommit(i, System.nanoTime() - startTime);
 				}
 			}
 		catch(RetryEx retry)
@@ -353,14 +502,19 @@ Object run(Callable fn) throws Exception{
 			}
 		finally
 			{
+			for(int k = lockedCells.size() - 1; k >= 0; --k)
+				{
+				lockedCells.get(k).tryUnlockWrite();
+				}
+			lockedCells.clear();
 			for(int k = locked.size() - 1; k >= 0; --k)
 				{
-				locked.get(k).lock.writeLock().unlock();
+				locked.get(k).lock.tryUnlockWrite();
 				}
 			locked.clear();
 			for(Ref r : ensures)
 				{
-				r.lock.readLock().unlock();
+				r.unlockEnsure();
 				}
 			ensures.clear();
 			stop(done ? COMMITTED : RETRY);
@@ -368,6 +522,11 @@ Object run(Callable fn) throws Exception{
 				{
 				if(done) //re-dispatch out of transaction
 					{
+					for(Ref ref : celled)
+						{
+						if(ref.cells.cellFor(Thread.currentThread()).count >= CommuteCells.FOLD_THRESHOLD)
+							ref.cells.tryFold(ref);
+						}
 					for(Notify n : notify)
 						{
 						n.ref.notifyWatches(n.oldval, n.newval);
@@ -380,13 +539,18 @@ Object run(Callable fn) throws Exception{
 				}
 			finally
 				{
+				celled.clear();
 				notify.clear();
 				actions.clear();
 				}
 			}
 		}
 	if(!done)
+		{
+		if(TransactionStats.enabled)
+			TransactionStats.recordRetryLimit();
 		throw Util.runtimeException("Transaction failed after reaching retry limit");
+		}
 	return ret;
 }
 
@@ -399,25 +563,15 @@ Object doGet(Ref ref){
 		throw retryex;
 	if(vals.containsKey(ref))
 		return vals.get(ref);
-	try
-		{
-		ref.lock.readLock().lock();
-		if(ref.tvals == null)
-			throw new IllegalStateException(ref.toString() + " is unbound.");
-		Ref.TVal ver = ref.tvals;
-		do
-			{
-			if(ver.point <= readPoint)
-				return ver.val;
-			} while((ver = ver.prior) != ref.tvals);
-		}
-	finally
-		{
-		ref.lock.readLock().unlock();
-		}
+	//optimistic read: no shared writes unless a commit to ref intervenes
+	Object val = ref.valAt(readPoint);
+	if(val != Ref.FAULT)
+		return val;
 	//no version of val precedes the read point
 	ref.faults.incrementAndGet();
-	throw retryex;
+	if(TransactionStats.enabled)
+		ref.stats().faults.incrementAndGet();
+	throw retry(ref);
 
 }
 
@@ -426,6 +580,8 @@ Object doSet(Ref ref, Object val){
 		throw retryex;
 	if(commutes.containsKey(ref))
 		throw new IllegalStateException("Can't set after commute");
+	if(info == SNAPSHOT)
+		beginWrite();
 	if(!sets.contains(ref))
 		{
 		sets.add(ref);
@@ -438,14 +594,19 @@ Object doSet(Ref ref, Object val){
 void doEnsure(Ref ref){
 	if(!info.running())
 		throw retryex;
-	if(ensures.contains(ref))
+	if(ensures.contains(ref) || sets.contains(ref))
+		return;
+	//a validator or commute fn run at commit already holds the write
+	//locks of the refs committed, which the read lock would wait on
+	if(info.status.get() == COMMITTING && commutes.containsKey(ref))
 		return;
-	ref.lock.readLock().lock();
+	//held until commit to keep writers out
+	ref.lockEnsure();
 
 	//someone completed a write after our snapshot
-	if(ref.tvals != null && ref.tvals.point > readPoint) {
-        ref.lock.readLock().unlock();
-        throw retryex;
+	if(ref.latestPoint() > readPoint) {
+        ref.unlockEnsure();
+        throw retry(ref);
     }
 
 	Info refinfo = ref.tinfo;
@@ -453,11 +614,11 @@ void doEnsure(Ref ref){
 	//writer exists
 	if(refinfo != null && refinfo.running())
 		{
-		ref.lock.readLock().unlock();
+		ref.unlockEnsure();
 
 		if(refinfo != info) //not us, ensure is doomed
 			{
-			blockAndBail(refinfo); 
+			blockAndBail(ref, refinfo); 
 			}
 		}
 	else
@@ -467,19 +628,12 @@ void doEnsure(Ref ref){
 Object doCommute(Ref ref, IFn fn, ISeq args) {
 	if(!info.running())
 		throw retryex;
+	if(info == SNAPSHOT)
+		beginWrite();
 	if(!vals.containsKey(ref))
 		{
-		Object val = null;
-		try
-			{
-			ref.lock.readLock().lock();
-			val = ref.tvals == null ? null : ref.tvals.val;
-			}
-		finally
-			{
-			ref.lock.readLock().unlock();
-			}
-		vals.put(ref, val);
+		//the most recently committed value
+		vals.put(ref, ref.valAt(Long.MAX_VALUE));
 		}
 	ArrayList<CFn> fns = commutes.get(ref);
 	if(fns == null)
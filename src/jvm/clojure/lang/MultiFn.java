@@ -13,140 +13,123 @@
 package clojure.lang;
 
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public class MultiFn extends AFn{
 final public IFn dispatchFn;
 final public Object defaultDispatchVal;
 final public IRef hierarchy;
 final String name;
-final ReentrantReadWriteLock rw;
-volatile IPersistentMap methodTable;
-volatile IPersistentMap preferTable;
-volatile IPersistentMap methodCache;
-volatile Object cachedHierarchy;
+volatile State state;
+
+static final AtomicReferenceFieldUpdater<MultiFn, State> STATE =
+		AtomicReferenceFieldUpdater.newUpdater(MultiFn.class, State.class, "state");
+
+//everything dispatch reads, replaced as a whole so calls need no lock.
+//The cache is only good for the hierarchy value it was built against,
+//and a new method or prefer table always comes with a fresh cache
+static final class State{
+	final IPersistentMap methodTable;
+	final IPersistentMap preferTable;
+	final IPersistentMap methodCache;
+	final Object cachedHierarchy;
+
+	State(IPersistentMap methodTable, IPersistentMap preferTable, IPersistentMap methodCache,
+	      Object cachedHierarchy){
+		this.methodTable = methodTable;
+		this.preferTable = preferTable;
+		this.methodCache = methodCache;
+		this.cachedHierarchy = cachedHierarchy;
+	}
+}
 
 static final Var assoc = RT.var("clojure.core", "assoc");
 static final Var dissoc = RT.var("clojure.core", "dissoc");
-static final Var isa = RT.var("clojure.core", "isa?");
-static final Var parents = RT.var("clojure.core", "parents");
+static final Var globalHierarchy = RT.var("clojure.core", "global-hierarchy");
 
 public MultiFn(String name, IFn dispatchFn, Object defaultDispatchVal, IRef hierarchy) {
-	this.rw = new ReentrantReadWriteLock();
 	this.name = name;
 	this.dispatchFn = dispatchFn;
 	this.defaultDispatchVal = defaultDispatchVal;
-	this.methodTable = PersistentHashMap.EMPTY;
-	this.methodCache = getMethodTable();
-	this.preferTable = PersistentHashMap.EMPTY;
+	this.state = new State(PersistentHashMap.EMPTY, PersistentHashMap.EMPTY, PersistentHashMap.EMPTY, null);
     this.hierarchy = hierarchy;
-	cachedHierarchy = null;
+}
+
+//table changes are serialized, cache fills race them with CAS
+synchronized private MultiFn setTables(IPersistentMap methodTable, IPersistentMap preferTable){
+	state = new State(methodTable, preferTable, methodTable, hierarchy.deref());
+	return this;
 }
 
 public MultiFn reset(){
-	rw.writeLock().lock();
-	try{
-		methodTable = methodCache = preferTable = PersistentHashMap.EMPTY;
-		cachedHierarchy = null;
-		return this;
-	}
-	finally {
-		rw.writeLock().unlock();
-	}
+	return setTables(PersistentHashMap.EMPTY, PersistentHashMap.EMPTY);
 }
 
-public MultiFn addMethod(Object dispatchVal, IFn method) {
-	rw.writeLock().lock();
-	try{
-		methodTable = getMethodTable().assoc(dispatchVal, method);
-		resetCache();
-		return this;
-	}
-	finally {
-		rw.writeLock().unlock();
-	}
+synchronized public MultiFn addMethod(Object dispatchVal, IFn method) {
+	return setTables(getMethodTable().assoc(dispatchVal, method), getPreferTable());
 }
 
-public MultiFn removeMethod(Object dispatchVal) {
-	rw.writeLock().lock();
-	try
-		{
-		methodTable = getMethodTable().without(dispatchVal);
-		resetCache();
-		return this;
-		}
-	finally
-		{
-		rw.writeLock().unlock();
-		}
+synchronized public MultiFn removeMethod(Object dispatchVal) {
+	return setTables(getMethodTable().without(dispatchVal), getPreferTable());
 }
 
-public MultiFn preferMethod(Object dispatchValX, Object dispatchValY) {
-	rw.writeLock().lock();
-	try
-		{
-		if(prefers(dispatchValY, dispatchValX))
-			throw new IllegalStateException(
-					String.format("Preference conflict in multimethod '%s': %s is already preferred to %s",
-					              name, dispatchValY, dispatchValX));
-		preferTable = getPreferTable().assoc(dispatchValX, RT.conj((IPersistentCollection) RT.get(getPreferTable(),
-		                                                                                     dispatchValX,
-		                                                                                     PersistentHashSet.EMPTY),
-		                                                      dispatchValY));
-		resetCache();
-		return this;
-		}
-	finally
-		{
-		rw.writeLock().unlock();
-		}
+synchronized public MultiFn preferMethod(Object dispatchValX, Object dispatchValY) {
+	IPersistentMap pt = getPreferTable();
+	if(prefers(pt, dispatchValY, dispatchValX))
+		throw new IllegalStateException(
+				String.format("Preference conflict in multimethod '%s': %s is already preferred to %s",
+				              name, dispatchValY, dispatchValX));
+	pt = pt.assoc(dispatchValX, RT.conj((IPersistentCollection) RT.get(pt,
+	                                                                    dispatchValX,
+	                                                                    PersistentHashSet.EMPTY),
+	                                     dispatchValY));
+	return setTables(getMethodTable(), pt);
 }
 
-private boolean prefers(Object x, Object y) {
-	IPersistentSet xprefs = (IPersistentSet) getPreferTable().valAt(x);
-	if(xprefs != null && xprefs.contains(y))
+//whether x or an ancestor of x is preferred to y or an ancestor of y, the
+//closure of walking their parents. Ancestry for preferences comes from
+//the global hierarchy
+private static boolean prefers(IPersistentMap pt, Object x, Object y) {
+	if(pt.count() == 0)
+		return false;
+	HierarchyIndex.Index global = HierarchyIndex.indexFor(globalHierarchy.deref());
+	IPersistentSet yancestors = global.ancestors(y);
+	if(prefers(pt, x, y, yancestors))
 		return true;
-	for(ISeq ps = RT.seq(parents.invoke(y)); ps != null; ps = ps.next())
+	for(ISeq s = RT.seq(global.ancestors(x)); s != null; s = s.next())
 		{
-		if(prefers(x, ps.first()))
+		if(prefers(pt, s.first(), y, yancestors))
 			return true;
 		}
-	for(ISeq ps = RT.seq(parents.invoke(x)); ps != null; ps = ps.next())
+	return false;
+}
+
+private static boolean prefers(IPersistentMap pt, Object x, Object y, IPersistentSet yancestors) {
+	IPersistentSet xprefs = (IPersistentSet) pt.valAt(x);
+	if(xprefs == null)
+		return false;
+	if(xprefs.contains(y))
+		return true;
+	for(ISeq s = RT.seq(yancestors); s != null; s = s.next())
 		{
-		if(prefers(ps.first(), y))
+		if(xprefs.contains(s.first()))
 			return true;
 		}
 	return false;
 }
 
-private boolean isA(Object x, Object y) {
-    return RT.booleanCast(isa.invoke(hierarchy.deref(), x, y));
-}
-
-private boolean dominates(Object x, Object y) {
-	return prefers(x, y) || isA(x, y);
+private static boolean dominates(IPersistentMap pt, HierarchyIndex.Index h, Object x, Object y) {
+	return prefers(pt, x, y) || h.isa(x, y);
 }
 
-private IPersistentMap resetCache() {
-	rw.writeLock().lock();
-	try
-		{
-		methodCache = getMethodTable();
-		cachedHierarchy = hierarchy.deref();
-		return methodCache;
-		}
-	finally
+ public IFn getMethod(Object dispatchVal) {
+	State s = state;
+	if(s.cachedHierarchy == hierarchy.deref())
 		{
-		rw.writeLock().unlock();
+		IFn targetFn = (IFn) s.methodCache.valAt(dispatchVal);
+		if(targetFn != null)
+			return targetFn;
 		}
-}
-
- public IFn getMethod(Object dispatchVal) {
-	if(cachedHierarchy != hierarchy.deref())
-		resetCache();
-	IFn targetFn = (IFn) methodCache.valAt(dispatchVal);
-	if(targetFn != null)
-		return targetFn;
 	return findAndCacheBestMethod(dispatchVal);
 }
 
@@ -158,66 +141,44 @@ private IFn getFn(Object dispatchVal) {
 	return targetFn;
 }
 
-private IFn findAndCacheBestMethod(Object dispatchVal) {
-	rw.readLock().lock();
-	Object bestValue;
-	IPersistentMap mt = methodTable;
-	IPersistentMap pt = preferTable;
-	Object ch = cachedHierarchy;
-	try
+private IFn findBestMethod(State s, Object hierarchy, Object dispatchVal) {
+	IPersistentMap pt = s.preferTable;
+	HierarchyIndex.Index h = HierarchyIndex.indexFor(hierarchy);
+	Map.Entry bestEntry = null;
+	for(Object o : s.methodTable)
 		{
-		Map.Entry bestEntry = null;
-		for(Object o : getMethodTable())
+		Map.Entry e = (Map.Entry) o;
+		if(h.isa(dispatchVal, e.getKey()))
 			{
-			Map.Entry e = (Map.Entry) o;
-			if(isA(dispatchVal, e.getKey()))
-				{
-				if(bestEntry == null || dominates(e.getKey(), bestEntry.getKey()))
-					bestEntry = e;
-				if(!dominates(bestEntry.getKey(), e.getKey()))
-					throw new IllegalArgumentException(
-							String.format(
-									"Multiple methods in multimethod '%s' match dispatch value: %s -> %s and %s, and neither is preferred",
-									name, dispatchVal, e.getKey(), bestEntry.getKey()));
-				}
+			if(bestEntry == null || dominates(pt, h, e.getKey(), bestEntry.getKey()))
+				bestEntry = e;
+			if(!dominates(pt, h, bestEntry.getKey(), e.getKey()))
+				throw new IllegalArgumentException(
+						String.format(
+								"Multiple methods in multimethod '%s' match dispatch value: %s -> %s and %s, and neither is preferred",
+								name, dispatchVal, e.getKey(), bestEntry.getKey()));
 			}
-		if(bestEntry == null)
-			{
-			bestValue = methodTable.valAt(defaultDispatchVal);
-		        if(bestValue == null)
-				return null;
-			}
-		else
-			bestValue = bestEntry.getValue();
 		}
-	finally
-		{
-		rw.readLock().unlock();
-		}
-
+	if(bestEntry == null)
+		return (IFn) s.methodTable.valAt(defaultDispatchVal);
+	return (IFn) bestEntry.getValue();
+}
 
-	//ensure basis has stayed stable throughout, else redo
-	rw.writeLock().lock();
-	try
-		{
-		if( mt == methodTable &&
-		    pt == preferTable &&
-		    ch == cachedHierarchy &&
-			cachedHierarchy == hierarchy.deref())
-			{
-			//place in cache
-			methodCache = methodCache.assoc(dispatchVal, bestValue);
-			return (IFn) bestValue;
-			}
-		else
-			{
-			resetCache();
-			return findAndCacheBestMethod(dispatchVal);
-			}
-		}
-	finally
+private IFn findAndCacheBestMethod(Object dispatchVal) {
+	for(;;)
 		{
-		rw.writeLock().unlock();
+		State s = state;
+		Object h = hierarchy.deref();
+		//a stale cache starts over from the method table
+		IPersistentMap cache = s.cachedHierarchy == h ? s.methodCache : s.methodTable;
+		IFn bestValue = (IFn) cache.valAt(dispatchVal);
+		if(bestValue == null)
+			bestValue = findBestMethod(s, h, dispatchVal);
+		if(bestValue == null)
+			return null;
+		//if the state changed meanwhile, redo against the new one
+		if(STATE.compareAndSet(this, s, new State(s.methodTable, s.preferTable, cache.assoc(dispatchVal, bestValue), h)))
+			return bestValue;
 		}
 }
 
@@ -577,10 +538,10 @@ public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4, Object
 }
 
     public IPersistentMap getMethodTable() {
-        return methodTable;
+        return state.methodTable;
     }
 
     public IPersistentMap getPreferTable() {
-        return preferTable;
+        return state.preferTable;
     }
 }
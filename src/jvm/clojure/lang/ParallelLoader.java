@@ -0,0 +1,245 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Loads libs for require's :parallel flag, each on a pool thread once the
+ * libs its ns form requires have loaded.
+ *
+ * Every load of a lib while a ParallelLoader is in use goes through
+ * loadOnce, so a lib is loaded by one thread only, and other threads
+ * needing it, or requiring it once its ns form has marked it loaded,
+ * wait for that load to finish. A thread about to wait for a
+ * load that is itself waiting, directly or not, on the thread fails with
+ * a cyclic dependency error rather than deadlocking. requiring-resolve
+ * doesn't take RT.REQUIRE_LOCK while a ParallelLoader is in use, as
+ * loadOnce already serializes loads, and a thread holding the lock could
+ * otherwise wait on one waiting for it.
+ *
+ * The threads come from a single pool shared by every run, which starts
+ * threads as needed, so a lib requiring others in parallel while loading
+ * doesn't wait on threads that are all busy.
+ */
+public final class ParallelLoader{
+
+static final ExecutorService POOL = Executors.newCachedThreadPool(new ThreadFactory(){
+	public Thread newThread(Runnable r){
+		Thread t = new Thread(r, "clojure-parallel-require");
+		t.setDaemon(true);
+		return t;
+	}
+});
+
+static final class Load{
+	final Object lib;
+	final Thread owner;
+	final CountDownLatch done = new CountDownLatch(1);
+	volatile Throwable error;
+
+	Load(Object lib, Thread owner){
+		this.lib = lib;
+		this.owner = owner;
+	}
+}
+
+//loads a lib on the calling thread
+final IFn loadOne;
+final ConcurrentHashMap<Object, Load> loads = new ConcurrentHashMap<Object, Load>();
+//the load each waiting thread waits for
+final ConcurrentHashMap<Thread, Load> waiting = new ConcurrentHashMap<Thread, Load>();
+
+public ParallelLoader(IFn loadOne){
+	this.loadOne = loadOne;
+}
+
+/**
+ * Loads lib, unless another thread has loaded it or is loading it, when
+ * this waits for that load, failing as it did.
+ */
+public void loadOnce(Object lib) throws InterruptedException{
+	Thread self = Thread.currentThread();
+	Load load = new Load(lib, self);
+	Load prior = loads.putIfAbsent(lib, load);
+	if(prior == null)
+		{
+		try
+			{
+			loadOne.invoke(lib);
+			}
+		catch(Throwable e)
+			{
+			load.error = e;
+			throw Util.sneakyThrow(e);
+			}
+		finally
+			{
+			load.done.countDown();
+			}
+		return;
+		}
+	if(prior.done.getCount() > 0 && prior.owner == self)
+		throw cycle(Collections.singletonList(prior));
+	awaitLoad(self, prior);
+}
+
+/**
+ * Waits for the load of lib by another thread, if one is under way,
+ * failing as it did. A lib's ns form adds it to the loaded libs before
+ * the rest of it has loaded, so require calls this for libs it finds
+ * already loaded.
+ */
+public void await(Object lib) throws InterruptedException{
+	Load load = loads.get(lib);
+	Thread self = Thread.currentThread();
+	if(load != null && load.owner != self)
+		awaitLoad(self, load);
+}
+
+void awaitLoad(Thread self, Load load) throws InterruptedException{
+	if(load.done.getCount() > 0)
+		{
+		//registered before the check, so of two threads about to wait on
+		//each other, at least the later one to look sees the cycle
+		waiting.put(self, load);
+		try
+			{
+			checkCycle(self, load);
+			load.done.await();
+			}
+		finally
+			{
+			waiting.remove(self);
+			}
+		}
+	if(load.error != null)
+		throw Util.sneakyThrow(load.error);
+}
+
+//follows the unfinished loads the owner of load is waiting on, back to
+//self
+void checkCycle(Thread self, Load load){
+	List<Load> chain = new ArrayList<Load>();
+	for(Load l = load; l != null && l.done.getCount() > 0 && chain.size() <= loads.size();
+	    l = waiting.get(l.owner))
+		{
+		chain.add(l);
+		if(l.owner == self)
+			throw cycle(chain);
+		}
+}
+
+static RuntimeException cycle(List<Load> chain){
+	StringBuilder sb = new StringBuilder("Cyclic load dependency: ");
+	for(Load l : chain)
+		sb.append(l.lib).append("->");
+	sb.append(chain.get(0).lib);
+	return Util.runtimeException(sb.toString());
+}
+
+/**
+ * Calls require with each lib in order on up to nThreads threads, each
+ * only once require has returned for the libs deps maps it to. Libs in serial
+ * are required on this thread, in order, while no other lib is loading.
+ * Waits for all the libs, or for those already started when one fails,
+ * and throws the error of the first lib in order that failed.
+ */
+static public void run(IPersistentVector order, IPersistentMap deps, IPersistentSet serial, int nThreads,
+                       final IFn require) throws InterruptedException{
+	final Object frame = Var.cloneThreadBindingFrame();
+	final LinkedBlockingQueue<Object[]> completed = new LinkedBlockingQueue<Object[]>();
+	List<Object> pending = new LinkedList<Object>();
+	for(int i = 0; i < order.count(); i++)
+		pending.add(order.nth(i));
+	Set<Object> done = new HashSet<Object>();
+	Map<Object, Throwable> errors = new HashMap<Object, Throwable>();
+	int running = 0;
+	while(errors.isEmpty() && !pending.isEmpty() || running > 0)
+		{
+		for(Iterator<Object> it = pending.iterator(); errors.isEmpty() && running < nThreads && it.hasNext(); )
+			{
+			final Object lib = it.next();
+			if(!isReady(lib, deps, done))
+				continue;
+			if(serial.contains(lib))
+				{
+				//nothing may start after it until it has loaded
+				if(running == 0)
+					{
+					it.remove();
+					try
+						{
+						require.invoke(lib);
+						done.add(lib);
+						}
+					catch(Throwable e)
+						{
+						errors.put(lib, e);
+						}
+					continue;
+					}
+				break;
+				}
+			it.remove();
+			running++;
+			POOL.execute(new Runnable(){
+				public void run(){
+					//pool threads are reused, so leave them as found
+					Object prior = Var.getThreadBindingFrame();
+					Var.resetThreadBindingFrame(frame);
+					try
+						{
+						require.invoke(lib);
+						completed.add(new Object[]{lib, null});
+						}
+					catch(Throwable e)
+						{
+						completed.add(new Object[]{lib, e});
+						}
+					finally
+						{
+						Var.resetThreadBindingFrame(prior);
+						}
+				}
+			});
+			}
+		if(running > 0)
+			{
+			Object[] c = completed.take();
+			running--;
+			if(c[1] == null)
+				done.add(c[0]);
+			else
+				errors.put(c[0], (Throwable) c[1]);
+			}
+		else if(errors.isEmpty() && !pending.isEmpty())
+			//only for a cyclic graph
+			throw Util.runtimeException("Can't order libs for loading: " + pending);
+		}
+	for(int i = 0; i < order.count(); i++)
+		{
+		Throwable e = errors.get(order.nth(i));
+		if(e != null)
+			throw Util.sneakyThrow(e);
+		}
+}
+
+static boolean isReady(Object lib, IPersistentMap deps, Set<Object> done){
+	for(ISeq s = RT.seq(deps.valAt(lib)); s != null; s = s.next())
+		{
+		if(!done.contains(s.first()) && deps.containsKey(s.first()))
+			return false;
+		}
+	return true;
+}
+}
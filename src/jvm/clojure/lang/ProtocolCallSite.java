@@ -0,0 +1,139 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+/**
+ * The inline cache of a compiled protocol fn call site, held in a static
+ * field of the calling fn's class.
+ *
+ * fnFor gives the call site the fn to call for a target, or null when the
+ * target implements the protocol interface, which the call site calls
+ * directly. The site remembers the answer for up to MAX_CLASSES target
+ * classes, so calls with a few receiver types go straight to the impl
+ * rather than through the protocol fn and its method cache. The entries
+ * are only used while the protocol fn's Var has the root they were found
+ * under, so extend, which resets the protocol's fns, and with-redefs both
+ * start them over. A site seeing more classes than that goes megamorphic
+ * and calls the protocol fn.
+ */
+public final class ProtocolCallSite{
+
+static final int MAX_CLASSES = 4;
+
+static final Keyword EXTEND_VIA_METADATA = Keyword.intern(null, "extend-via-metadata");
+static final Var FIND_PROTOCOL_METHOD = RT.var("clojure.core", "find-protocol-method");
+
+static final Class[] NO_CLASSES = new Class[0];
+static final IFn[] NO_FNS = new IFn[0];
+
+static final class Entries{
+	final Object root;
+	final Class[] classes;
+	//null for a class implementing the interface
+	final IFn[] fns;
+	final boolean megamorphic;
+
+	Entries(Object root, Class[] classes, IFn[] fns, boolean megamorphic){
+		this.root = root;
+		this.classes = classes;
+		this.fns = fns;
+		this.megamorphic = megamorphic;
+	}
+
+	Entries add(Class c, IFn f){
+		if(megamorphic || classes.length >= MAX_CLASSES)
+			return megamorphic();
+		int n = classes.length;
+		Class[] cs = new Class[n + 1];
+		IFn[] fs = new IFn[n + 1];
+		System.arraycopy(classes, 0, cs, 0, n);
+		System.arraycopy(fns, 0, fs, 0, n);
+		cs[n] = c;
+		fs[n] = f;
+		return new Entries(root, cs, fs, false);
+	}
+
+	Entries megamorphic(){
+		return megamorphic ? this : new Entries(root, classes, fns, true);
+	}
+}
+
+final Var v;
+//the protocol interface the call site calls directly, or null
+final Class iface;
+//immutable, so safely read without a lock
+Entries entries;
+
+public ProtocolCallSite(Var v, Class iface){
+	this.v = v;
+	this.iface = iface;
+	this.entries = new Entries(null, NO_CLASSES, NO_FNS, false);
+}
+
+/**
+ * The fn to call with target as its first arg, or null to call the
+ * protocol interface method on it.
+ */
+public IFn fnFor(Object target){
+	Entries e = entries;
+	Object root = v.getRawRoot();
+	if(e.root == root)
+		{
+		Class c = Util.classOf(target);
+		Class[] cs = e.classes;
+		for(int i = 0; i < cs.length; i++)
+			{
+			if(cs[i] == c)
+				return e.fns[i];
+			}
+		if(e.megamorphic)
+			return isIface(target) ? null : (IFn) root;
+		}
+	return relink(root, target);
+}
+
+boolean isIface(Object target){
+	return iface != null && iface.isInstance(target);
+}
+
+synchronized IFn relink(Object root, Object target){
+	Entries e = entries;
+	if(e.root != root)
+		e = new Entries(root, NO_CLASSES, NO_FNS, false);
+	if(isIface(target))
+		{
+		entries = e.add(Util.classOf(target), null);
+		return null;
+		}
+	MethodImplCache cache = cacheOf(root);
+	IFn f = cache == null ? null : (IFn) FIND_PROTOCOL_METHOD.invoke(cache.protocol, cache.methodk, target);
+	if(f == null)
+		{
+		//the protocol fn dispatches via metadata, or reports the missing impl
+		entries = cache == null ? e.megamorphic() : e;
+		return (IFn) root;
+		}
+	entries = e.add(Util.classOf(target), f);
+	return f;
+}
+
+//the method cache of the protocol fn in root, or null if its impls
+//can't be cached per class, as when the protocol can be extended via
+//metadata or the root isn't a protocol fn
+static MethodImplCache cacheOf(Object root){
+	if(!(root instanceof AFunction))
+		return null;
+	MethodImplCache cache = ((AFunction) root).__methodImplCache;
+	if(cache == null || RT.booleanCast(RT.get(cache.protocol, EXTEND_VIA_METADATA)))
+		return null;
+	return cache;
+}
+}
@@ -0,0 +1,88 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+/**
+ * The implementation found for each class by find-protocol-impl, kept in
+ * a protocol's :impl-cache. Misses are cached too, as a class that does
+ * not satisfy a protocol costs the longest search.
+ *
+ * Entries are only valid for the :impls map they were found in. extend
+ * replaces that map, so a lookup against a different one misses, and the
+ * next store starts a fresh table.
+ *
+ * An entry is kept with its class, through a ClassValue, so classes made
+ * by eval, reify or proxy, and their loaders, can still be collected
+ * while the protocol is unchanged.
+ */
+public final class ProtocolImplCache{
+
+//returned by get for a class not yet looked up
+static public final Object MISSING = new Object();
+//stored for a class with no implementation, as the map can't hold null
+static final Object NONE = new Object();
+
+//a class's entry, null until looked up
+static final class Slot{
+	volatile Object impl;
+}
+
+static final class Table{
+	final Object impls;
+	final ClassValue<Slot> map = new ClassValue<Slot>(){
+		protected Slot computeValue(Class c){
+			return new Slot();
+		}
+	};
+	//the class of nil is nil
+	volatile Object nilImpl;
+
+	Table(Object impls){
+		this.impls = impls;
+	}
+}
+
+volatile Table table = new Table(null);
+
+/**
+ * The cached implementation for c under impls, possibly null, or MISSING.
+ */
+public Object get(Object impls, Class c){
+	Table t = table;
+	if(t.impls != impls)
+		return MISSING;
+	Object ret = c == null ? t.nilImpl : t.map.get(c).impl;
+	if(ret == null)
+		return MISSING;
+	return ret == NONE ? null : ret;
+}
+
+/**
+ * Caches impl, possibly null, as the implementation for c under impls.
+ * Returns impl.
+ */
+public Object put(Object impls, Class c, Object impl){
+	Table t = table;
+	if(t.impls != impls)
+		table = t = new Table(impls);
+	Object v = impl == null ? NONE : impl;
+	if(c == null)
+		t.nilImpl = v;
+	else
+		t.map.get(c).impl = v;
+	return impl;
+}
+
+//drops all entries, e.g. when the protocol's methods are reset
+public void reset(){
+	table = new Table(null);
+}
+}
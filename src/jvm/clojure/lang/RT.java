@@ -242,6 +242,7 @@ final static IFn inNamespace = new AFn(){
 		Symbol nsname = (Symbol) arg1;
 		Namespace ns = Namespace.findOrCreate(nsname);
 		CURRENT_NS.set(ns);
+		CompileCache.inNamespace(ns);
 		return ns;
 	}
 };
@@ -404,6 +405,14 @@ static public long lastModified(URL url, String libfile) throws IOException{
 	}
 }
 
+static URL getResource(ResourceIndex index, String name){
+	return index == null ? getResource(baseLoader(), name) : index.getResource(name);
+}
+
+static long lastModified(ResourceIndex index, URL url, String libfile) throws IOException{
+	return index == null ? lastModified(url, libfile) : index.lastModified(url, libfile);
+}
+
 static void compile(String cljfile) throws IOException{
         InputStream ins = resourceAsStream(baseLoader(), cljfile);
 	if(ins != null) {
@@ -425,21 +434,34 @@ static public void load(String scriptbase) throws IOException, ClassNotFoundExce
 }
 
 static public void load(String scriptbase, boolean failIfNotFound) throws IOException, ClassNotFoundException{
+	CompileCache.Loading tracked = CompileCache.startLoad();
+	String file = null;
+	try {
+		file = loadResource(scriptbase, failIfNotFound);
+	}
+	finally {
+		CompileCache.endLoad(tracked, file);
+	}
+}
+
+//the name of the resource scriptbase was loaded from, or null
+static String loadResource(String scriptbase, boolean failIfNotFound) throws IOException, ClassNotFoundException{
 	String classfile = scriptbase + LOADER_SUFFIX + ".class";
 	String cljfile = scriptbase + ".clj";
 	String cljcfile = scriptbase + ".cljc";
 	String scriptfile = cljfile;
-	URL classURL = getResource(baseLoader(),classfile);
-	URL cljURL = getResource(baseLoader(), scriptfile);
+	ResourceIndex index = ResourceIndex.of(baseLoader());
+	URL classURL = getResource(index, classfile);
+	URL cljURL = getResource(index, scriptfile);
 	if(cljURL == null) {
 		scriptfile = cljcfile;
-		cljURL = getResource(baseLoader(), scriptfile);
+		cljURL = getResource(index, scriptfile);
 	}
 	boolean loaded = false;
 
 	if((classURL != null &&
 	    (cljURL == null
-	     || lastModified(classURL, classfile) > lastModified(cljURL, scriptfile)))
+	     || lastModified(index, classURL, classfile) > lastModified(index, cljURL, scriptfile)))
 	   || classURL == null) {
 		try {
 			Var.pushThreadBindings(
@@ -453,7 +475,10 @@ static public void load(String scriptbase, boolean failIfNotFound) throws IOExce
 		}
 	}
 	if(!loaded && cljURL != null) {
-		if(booleanCast(Compiler.COMPILE_FILES.deref()))
+		if(CompileCache.isEnabled()
+		   && (!booleanCast(Compiler.COMPILE_FILES.deref()) || CompileCache.isCompiling()))
+			CompileCache.load(scriptbase, scriptfile, cljURL);
+		else if(booleanCast(Compiler.COMPILE_FILES.deref()))
 			compile(scriptfile);
 		else
 			loadResourceScript(RT.class, scriptfile);
@@ -461,6 +486,7 @@ static public void load(String scriptbase, boolean failIfNotFound) throws IOExce
 	else if(!loaded && failIfNotFound)
 		throw new FileNotFoundException(String.format("Could not locate %s, %s or %s on classpath.%s", classfile, cljfile, cljcfile,
 			scriptbase.contains("_") ? " Please check that namespaces with dashes use underscores in the Clojure file name." : ""));
+	return loaded ? classfile : cljURL != null ? scriptfile : null;
 }
 
 static public void init() {
@@ -12,9 +12,8 @@
 
 package clojure.lang;
 
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 public class Ref extends ARef implements IFn, Comparable<Ref>, IRef{
     public int compareTo(Ref ref) {
@@ -44,36 +43,85 @@ public Ref setMaxHistory(int maxHistory){
 	return this;
 }
 
-public static class TVal{
-	Object val;
-	long point;
-	TVal prior;
-	TVal next;
+//MVCC history ring, newest entry at head. Entries are overwritten in
+//place on commit, the arrays are only replaced when the ring is resized.
+//Only written under the write lock, but also read under optimistic
+//stamps, so indexing must stay in bounds whatever head and count hold
+static final class History{
+	final Object[] vals;
+	final long[] points;
+	int head;
+	int count;
 
-	TVal(Object val, long point, TVal prior){
-		this.val = val;
-		this.point = point;
-		this.prior = prior;
-		this.next = prior.next;
-		this.prior.next = this;
-		this.next.prior = this;
+	History(int capacity){
+		this.vals = new Object[capacity];
+		this.points = new long[capacity];
 	}
 
-	TVal(Object val, long point){
-		this.val = val;
-		this.point = point;
-		this.next = this;
-		this.prior = this;
+	int capacity(){
+		return vals.length;
 	}
 
+	//index of the newest entry no later than point, or -1
+	int indexAt(long point){
+		int len = points.length;
+		int n = Math.min(count, len);
+		for(int i = 0, idx = head; i < n; i++, idx = (idx == 0 ? len : idx) - 1)
+			{
+			if(points[idx] <= point)
+				return idx;
+			}
+		return -1;
+	}
+
+	//overwrites the oldest entry once full
+	void push(Object val, long point){
+		int next = (head + 1) % vals.length;
+		vals[next] = val;
+		points[next] = point;
+		head = next;
+		if(count < vals.length)
+			count++;
+	}
+
+	//a new ring holding the newest entries that fit
+	History resize(int capacity){
+		History h = new History(capacity);
+		int n = Math.min(count, capacity);
+		for(int i = n - 1, idx = head; i >= 0; i--, idx = (idx == 0 ? vals.length : idx) - 1)
+			{
+			h.vals[i] = vals[idx];
+			h.points[i] = points[idx];
+			}
+		h.head = Math.max(n - 1, 0);
+		h.count = n;
+		return h;
+	}
 }
 
-TVal tvals;
-final AtomicInteger faults;
-final ReentrantReadWriteLock lock;
+//fault-free commits after which the history ring is halved
+static final int HISTORY_SHRINK_COMMITS = 1024;
+
+//returned by valAt when history doesn't reach back to the point
+static final Object FAULT = new Object();
+
+//volatile so the history accessors can read it without the lock
+volatile History hist;
+//reads that found no value at or before their read point, never reset
+final AtomicLong faults;
+//faults already accounted for by history sizing, and commits since then
+long faultsSeen;
+int quietCommits;
+//the history ring is only written under the write lock,
+//so readers can use optimistic reads and validate afterwards
+final StampedLock lock;
 LockingTransaction.Info tinfo;
 //IFn validator;
 final long id;
+//created on first use while TransactionStats is enabled
+volatile RefStats stats;
+//set once, for refs whose commutes are declared commutative
+volatile CommuteCells cells;
 
 volatile int minHistory = 0;
 volatile int maxHistory = 10;
@@ -87,28 +135,152 @@ public Ref(Object initVal) {
 public Ref(Object initVal,IPersistentMap meta) {
     super(meta);
     this.id = ids.getAndIncrement();
-	this.faults = new AtomicInteger();
-	this.lock = new ReentrantReadWriteLock();
-	tvals = new TVal(initVal, 0);
+	this.faults = new AtomicLong();
+	this.lock = new StampedLock();
+	this.hist = new History(1);
+	hist.push(initVal, 0);
 }
 
 //the latest val
 
 // ok out of transaction
 Object currentVal(){
+	CommuteCells c = cells;
+	if(c != null)
+		return c.currentVal(this);
+	long stamp = lock.tryOptimisticRead();
+	History h = hist;
+	boolean bound = h.count > 0;
+	Object val = h.vals[h.head];
+	if(!lock.validate(stamp))
+		{
+		stamp = lock.readLock();
+		try
+			{
+			bound = hist.count > 0;
+			val = latestVal();
+			}
+		finally
+			{
+			lock.unlockRead(stamp);
+			}
+		}
+	if(bound)
+		return val;
+	throw new IllegalStateException(this.toString() + " is unbound.");
+}
+
+//the newest val no later than point, or FAULT if history doesn't
+//reach back that far
+Object valAt(long point){
+	CommuteCells c = cells;
+	if(c != null)
+		return c.valAt(this, point);
+	long stamp = lock.tryOptimisticRead();
+	History h = hist;
+	int idx = h.indexAt(point);
+	Object val = idx < 0 ? FAULT : h.vals[idx];
+	if(!lock.validate(stamp))
+		{
+		stamp = lock.readLock();
+		try
+			{
+			h = hist;
+			idx = h.indexAt(point);
+			val = idx < 0 ? FAULT : h.vals[idx];
+			}
+		finally
+			{
+			lock.unlockRead(stamp);
+			}
+		}
+	return val;
+}
+
+//the latest val in history, under the lock
+Object latestVal(){
+	History h = hist;
+	return h.count == 0 ? null : h.vals[h.head];
+}
+
+//the latest val including pending cell commutes. Caller holds
+//the write lock, and those of the cells
+Object lockedVal(){
+	CommuteCells c = cells;
+	return c == null ? latestVal() : c.lockedVal(this);
+}
+
+//point of the latest commit, including cell commutes
+long latestPoint(){
+	History h = hist;
+	long point = h.count == 0 ? -1 : h.points[h.head];
+	CommuteCells c = cells;
+	return c == null ? point : Math.max(point, c.lastPoint());
+}
+
+//ensure holds the read lock until commit, along with those of
+//any cells, released with tryUnlockRead
+void lockEnsure(){
+	lock.readLock();
+	CommuteCells c = cells;
+	if(c != null)
+		c.readLockAll();
+}
+
+void unlockEnsure(){
+	CommuteCells c = cells;
+	if(c != null)
+		c.unlockReadAll();
+	lock.tryUnlockRead();
+}
+
+/**
+ * Declares that every fn this ref is commuted with commutes with the
+ * others, so transactions whose only effect on the ref is commute can
+ * commit through striped cells rather than the ref's write lock.
+ */
+public Ref enableCommuteCells(){
+	long stamp = lock.writeLock();
 	try
 		{
-		lock.readLock().lock();
-		if(tvals != null)
-			return tvals.val;
-		throw new IllegalStateException(this.toString() + " is unbound.");
+		if(cells == null)
+			cells = new CommuteCells();
+		return this;
 		}
 	finally
 		{
-		lock.readLock().unlock();
+		lock.unlockWrite(stamp);
 		}
 }
 
+//called at commit, under the write lock. Faults since the last commit
+//mean readers needed older values than history held, so the ring
+//doubles (up to max-history) and fills on the following commits.
+//A long run of fault-free commits halves it (down to min-history).
+//Returns the change in history capacity
+int commitVal(Object val, long point){
+	History h = hist;
+	int cap = h.capacity();
+	int want = cap;
+	long f = faults.get();
+	if(f != faultsSeen)
+		{
+		faultsSeen = f;
+		quietCommits = 0;
+		want = cap * 2;
+		}
+	else if(++quietCommits >= HISTORY_SHRINK_COMMITS)
+		{
+		quietCommits = 0;
+		want = cap / 2;
+		}
+	want = Math.max(Math.min(want, maxHistory + 1), minHistory + 1);
+	if(want != cap)
+		hist = h = h.resize(want);
+	h.push(val, point);
+	return want - cap;
+}
+
 //*
 
 public Object deref(){
@@ -177,56 +349,62 @@ public void touch(){
 
 //*/
 boolean isBound(){
+	long stamp = lock.tryOptimisticRead();
+	boolean bound = hist.count > 0;
+	if(lock.validate(stamp))
+		return bound;
+	stamp = lock.readLock();
 	try
 		{
-		lock.readLock().lock();
-		return tvals != null;
+		return hist.count > 0;
 		}
 	finally
 		{
-		lock.readLock().unlock();
+		lock.unlockRead(stamp);
 		}
 }
 
 
 public void trimHistory(){
+	long stamp = lock.writeLock();
 	try
 		{
-		lock.writeLock().lock();
-		if(tvals != null)
-			{
-			tvals.next = tvals;
-			tvals.prior = tvals;
-			}
+		hist = hist.resize(1);
 		}
 	finally
 		{
-		lock.writeLock().unlock();
+		lock.unlockWrite(stamp);
 		}
 }
 
+//read without the lock, which isn't reentrant, so that a validator can
+//call this on a ref its own transaction has write locked at commit
 public int getHistoryCount(){
-	try
-		{
-		lock.writeLock().lock();
-		return histCount();
-		}
-	finally
-		{
-		lock.writeLock().unlock();
-		}	
+	return histCount();
+}
+
+RefStats stats(){
+	RefStats s = stats;
+	return s != null ? s : TransactionStats.statsFor(this);
+}
+
+public long getFaultCount(){
+	return faults.get();
+}
+
+//read without the lock, as getHistoryCount is
+public int getHistoryCapacity(){
+	return hist.capacity() - 1;
+}
+
+public IPersistentMap getStats(){
+	RefStats s = stats;
+	return s == null ? null : s.toMap();
 }
 
 int histCount(){
-	if(tvals == null)
-		return 0;
-	else
-		{
-		int count = 0;
-		for(TVal tv = tvals.next;tv != tvals;tv = tv.next)
-			count++;
-		return count;
-		}
+	History h = hist;
+	return Math.max(Math.min(h.count, h.capacity()) - 1, 0);
 }
 
 final public IFn fn(){
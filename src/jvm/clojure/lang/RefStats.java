@@ -0,0 +1,75 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contention counters for a single Ref, created on first use while
+ * TransactionStats is enabled.
+ */
+final public class RefStats{
+
+static final Keyword COMMITS = Keyword.intern(null, "commits");
+static final Keyword RETRIES = Keyword.intern(null, "retries");
+static final Keyword BARGES = Keyword.intern(null, "barges");
+static final Keyword FAULTS = Keyword.intern(null, "faults");
+static final Keyword HISTORY_GROWTH = Keyword.intern(null, "history-growth");
+static final Keyword HISTORY_SHRINKS = Keyword.intern(null, "history-shrinks");
+static final Keyword COMMUTE_RERUNS = Keyword.intern(null, "commute-reruns");
+static final Keyword LOCK_WAIT_NANOS = Keyword.intern(null, "lock-wait-nanos");
+
+//writes committed to the ref
+final AtomicLong commits = new AtomicLong();
+//transaction attempts that retried because of a conflict on the ref
+final AtomicLong retries = new AtomicLong();
+//times a transaction barged the ref's current writer
+final AtomicLong barges = new AtomicLong();
+//reads that found no value at or before their read point
+final AtomicLong faults = new AtomicLong();
+//times the history ring grew, or shrank, on commit
+final AtomicLong historyGrowth = new AtomicLong();
+final AtomicLong historyShrinks = new AtomicLong();
+//commute fns re-run at commit time
+final AtomicLong commuteReruns = new AtomicLong();
+final Histogram lockWait = new Histogram();
+
+public long commits(){
+	return commits.get();
+}
+
+public long retries(){
+	return retries.get();
+}
+
+public long barges(){
+	return barges.get();
+}
+
+public long faults(){
+	return faults.get();
+}
+
+public long contention(){
+	return retries.get() + barges.get() + faults.get();
+}
+
+public IPersistentMap toMap(){
+	return RT.mapUniqueKeys(COMMITS, commits.get(),
+	                        RETRIES, retries.get(),
+	                        BARGES, barges.get(),
+	                        FAULTS, faults.get(),
+	                        HISTORY_GROWTH, historyGrowth.get(),
+	                        HISTORY_SHRINKS, historyShrinks.get(),
+	                        COMMUTE_RERUNS, commuteReruns.get(),
+	                        LOCK_WAIT_NANOS, lockWait.toMap());
+}
+}
@@ -0,0 +1,365 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.*;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * An index of the lib sources and loader classes in the jars on the
+ * classpath of a class loader, for RT.load.
+ *
+ * Without it, finding a lib asks the loader for each of its files in
+ * turn, and the loader searches its jars one at a time. Checking whether
+ * a loader class is older than the source opens a connection into each
+ * jar again. The index is built once from the jars' directories and maps
+ * each .clj, .cljc and __init.class name to the first jar holding it and
+ * that entry's time. Directories on the classpath are not indexed. Files
+ * in them can change at any time, so each directory ahead of the jar is
+ * checked by name on every lookup.
+ *
+ * An index is kept by the loader it was built for, the system class
+ * loader or a DynamicClassLoader with URLs of its own, and is rebuilt when
+ * any loader it covers has gained URLs. Loaders finding resources any
+ * other way, or URLs other than files, aren't indexed, and RT.load asks
+ * the loader. A name the index doesn't hold is only reported missing when
+ * the URLs of every loader it covers were listed by the loader itself;
+ * otherwise, as for the application loader on Java 9 and later, whose
+ * URLs are taken from java.class.path, the loader is asked. Indexing can
+ * be turned off by setting the system property clojure.resource.index to
+ * false.
+ */
+public final class ResourceIndex{
+
+static final boolean ENABLED = !"false".equals(System.getProperty("clojure.resource.index"));
+
+static final String[] SUFFIXES = {".clj", ".cljc", RT.LOADER_SUFFIX + ".class"};
+static final String VERSIONS = "META-INF/versions/";
+
+static final class Entry{
+	//the position of the jar on the classpath
+	final int pos;
+	final long time;
+	//true for a name with other versions in a multi-release jar, which
+	//only the loader can choose between
+	final boolean versioned;
+
+	Entry(int pos, long time, boolean versioned){
+		this.pos = pos;
+		this.time = time;
+		this.versioned = versioned;
+	}
+}
+
+static volatile ResourceIndex systemIndex;
+
+final ClassLoader loader;
+//the loaders the index covers, and what their URLs were when it was built
+final ClassLoader[] chain;
+final Object[] signatures;
+//null when the classpath can't be indexed
+final Map<String, Entry> entries;
+//"jar:...!/" by position, null for a directory
+final List<String> jarURLs;
+final List<File> dirs;
+final List<Integer> dirPositions;
+//true when a name the index doesn't hold can't be found by the loader
+final boolean complete;
+
+ResourceIndex(ClassLoader loader, ClassLoader[] chain){
+	this.loader = loader;
+	this.chain = chain;
+	this.signatures = new Object[chain.length];
+	for(int i = 0; i < chain.length; i++)
+		signatures[i] = signature(chain[i]);
+	Map<String, Entry> entries = new HashMap<String, Entry>();
+	this.jarURLs = new ArrayList<String>();
+	this.dirs = new ArrayList<File>();
+	this.dirPositions = new ArrayList<Integer>();
+	Set<String> seen = new HashSet<String>();
+	boolean complete = true;
+	//the loaders search their parents first
+	for(int i = chain.length - 1; i >= 0 && entries != null; i--)
+		{
+		URL[] urls = urls(chain[i]);
+		complete = complete && isListed(chain[i]);
+		for(int j = 0; entries != null && j < (urls == null ? 1 : urls.length); j++)
+			{
+			if(urls == null || !add(urls[j], entries, seen))
+				entries = null;
+			}
+		}
+	this.entries = entries;
+	this.complete = complete;
+}
+
+/**
+ * The index for the classpath of loader, or null if it can't be indexed.
+ */
+static public ResourceIndex of(ClassLoader loader){
+	if(!ENABLED)
+		return null;
+	if(loader == null)
+		loader = ClassLoader.getSystemClassLoader();
+	//the loaders made to define compiled classes only ask their parents
+	while(loader instanceof DynamicClassLoader && loader.getParent() != null
+	      && ((DynamicClassLoader) loader).urlsAdded == 0)
+		loader = loader.getParent();
+	ResourceIndex index;
+	if(loader instanceof DynamicClassLoader)
+		index = ((DynamicClassLoader) loader).resourceIndex;
+	else if(loader == ClassLoader.getSystemClassLoader())
+		index = systemIndex;
+	else
+		return null;
+	if(index == null || !index.isCurrent())
+		{
+		index = build(loader);
+		if(loader instanceof DynamicClassLoader)
+			((DynamicClassLoader) loader).resourceIndex = index;
+		else
+			systemIndex = index;
+		}
+	return index.entries == null ? null : index;
+}
+
+static ResourceIndex build(ClassLoader loader){
+	List<ClassLoader> chain = new ArrayList<ClassLoader>();
+	ClassLoader system = ClassLoader.getSystemClassLoader();
+	for(ClassLoader l = loader; l != null; l = l.getParent())
+		{
+		chain.add(l);
+		if(l == system)
+			break;
+		}
+	return new ResourceIndex(loader, chain.toArray(new ClassLoader[chain.size()]));
+}
+
+static boolean isAppLoader(ClassLoader l){
+	String name = l.getClass().getName();
+	return name.equals("jdk.internal.loader.ClassLoaders$AppClassLoader")
+	       || name.equals("sun.misc.Launcher$AppClassLoader");
+}
+
+//the URLs of l, or null if it finds resources some other way
+static URL[] urls(ClassLoader l){
+	//resources of the JDK's own loaders aren't libs
+	for(ClassLoader p = ClassLoader.getSystemClassLoader().getParent(); p != null; p = p.getParent())
+		{
+		if(l == p)
+			return new URL[0];
+		}
+	if(l instanceof URLClassLoader
+	   && (l.getClass() == URLClassLoader.class || l instanceof DynamicClassLoader || isAppLoader(l)))
+		return ((URLClassLoader) l).getURLs();
+	if(l == ClassLoader.getSystemClassLoader() && isAppLoader(l))
+		{
+		String[] paths = System.getProperty("java.class.path", "").split(File.pathSeparator);
+		URL[] ret = new URL[paths.length];
+		for(int i = 0; i < paths.length; i++)
+			{
+			try
+				{
+				ret[i] = new File(paths[i].length() == 0 ? "." : paths[i]).toURI().toURL();
+				}
+			catch(MalformedURLException e)
+				{
+				return null;
+				}
+			}
+		return ret;
+		}
+	return null;
+}
+
+//true if the URLs of l are those it searches, as it listed them
+static boolean isListed(ClassLoader l){
+	for(ClassLoader p = ClassLoader.getSystemClassLoader().getParent(); p != null; p = p.getParent())
+		{
+		if(l == p)
+			return true;
+		}
+	return l instanceof URLClassLoader
+	       && (l.getClass() == URLClassLoader.class || l.getClass() == DynamicClassLoader.class || isAppLoader(l));
+}
+
+static Object signature(ClassLoader l){
+	if(l instanceof DynamicClassLoader)
+		return ((DynamicClassLoader) l).urlsAdded;
+	if(l instanceof URLClassLoader)
+		return ((URLClassLoader) l).getURLs().length;
+	return System.getProperty("java.class.path");
+}
+
+boolean isCurrent(){
+	for(int i = 0; i < chain.length; i++)
+		{
+		if(!signature(chain[i]).equals(signatures[i]))
+			return false;
+		}
+	return true;
+}
+
+//adds the entries found at url, as a URLClassLoader would search it,
+//returning false if that can't be done
+boolean add(URL url, Map<String, Entry> entries, Set<String> seen){
+	if(url == null || !"file".equals(url.getProtocol()))
+		return false;
+	if(!seen.add(url.toString()))
+		return true;
+	File f;
+	try
+		{
+		f = new File(url.toURI());
+		}
+	catch(URISyntaxException e)
+		{
+		return false;
+		}
+	catch(IllegalArgumentException e)
+		{
+		return false;
+		}
+	int pos = jarURLs.size();
+	if(url.getPath().endsWith("/"))
+		{
+		jarURLs.add(null);
+		dirs.add(f);
+		dirPositions.add(pos);
+		return true;
+		}
+	//as for the loader, a missing jar is skipped
+	if(!f.isFile())
+		return true;
+	List<URL> classPath = new ArrayList<URL>();
+	try
+		{
+		JarFile jar = new JarFile(f, false);
+		try
+			{
+			Manifest m = jar.getManifest();
+			boolean multiRelease = false;
+			if(m != null)
+				{
+				multiRelease = "true".equalsIgnoreCase(m.getMainAttributes().getValue("Multi-Release"));
+				String cp = m.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+				if(cp != null)
+					{
+					for(String s : cp.trim().split("\\s+"))
+						{
+						if(s.length() > 0)
+							classPath.add(new URL(url, s));
+						}
+					}
+				}
+			jarURLs.add("jar:" + url + "!/");
+			for(Enumeration<JarEntry> es = jar.entries(); es.hasMoreElements(); )
+				{
+				JarEntry je = es.nextElement();
+				String name = je.getName();
+				if(multiRelease && name.startsWith(VERSIONS))
+					{
+					int i = name.indexOf('/', VERSIONS.length());
+					name = i < 0 ? "" : name.substring(i + 1);
+					Entry e = entries.get(name);
+					if(isIndexed(name) && (e == null || e.pos == pos))
+						entries.put(name, new Entry(pos, 0, true));
+					}
+				else if(isIndexed(name))
+					{
+					Entry e = entries.get(name);
+					if(e == null)
+						entries.put(name, new Entry(pos, je.getTime(), false));
+					}
+				}
+			}
+		finally
+			{
+			jar.close();
+			}
+		}
+	catch(IOException e)
+		{
+		return false;
+		}
+	//the jars a jar's manifest names are searched right after it
+	for(URL u : classPath)
+		{
+		if(!add(u, entries, seen))
+			return false;
+		}
+	return true;
+}
+
+static boolean isIndexed(String name){
+	for(String suffix : SUFFIXES)
+		{
+		if(name.endsWith(suffix))
+			return true;
+		}
+	return false;
+}
+
+//the File found in a directory, the Entry found in a jar, or null
+Object locate(String name){
+	Entry e = entries.get(name);
+	int limit = e == null ? Integer.MAX_VALUE : e.pos;
+	for(int i = 0; i < dirs.size() && dirPositions.get(i) < limit; i++)
+		{
+		File f = new File(dirs.get(i), name);
+		if(f.isFile())
+			return f;
+		}
+	return e;
+}
+
+/**
+ * The URL loader's getResource gives for name.
+ */
+public URL getResource(String name){
+	Object r = isIndexed(name) ? locate(name) : loader;
+	if(r == null && !complete)
+		r = loader;
+	try
+		{
+		if(r instanceof File)
+			return ((File) r).toURI().toURL();
+		if(r instanceof Entry && !((Entry) r).versioned)
+			return new URL(jarURLs.get(((Entry) r).pos) + name);
+		}
+	catch(MalformedURLException e)
+		{
+		throw Util.sneakyThrow(e);
+		}
+	return r == null ? null : RT.getResource(loader, name);
+}
+
+/**
+ * The modification time of name, found at url, as RT.lastModified gives it.
+ */
+public long lastModified(URL url, String name) throws IOException{
+	Object r = isIndexed(name) ? locate(name) : null;
+	if(r instanceof File)
+		return ((File) r).lastModified();
+	if(r instanceof Entry && !((Entry) r).versioned)
+		return ((Entry) r).time;
+	return RT.lastModified(url, name);
+}
+}
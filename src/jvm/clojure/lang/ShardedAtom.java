@@ -0,0 +1,478 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A reference to a persistent map whose entries are split across shards
+ * by key hash. swapIn updates one key while holding only its shard's lock,
+ * so writers to unrelated keys don't contend. deref reads every shard's
+ * map at one point in time and returns them as a Snapshot, a map that
+ * looks keys up in the right shard and is only merged if it has to be.
+ * Whole-map updates (swap, reset, compareAndSet) lock every shard.
+ *
+ * Shard locks are not reentrant, so they are only held to store maps.
+ * Update fns and the validator run without them, as they do for an Atom,
+ * and an update is retried if its shards changed meanwhile.
+ */
+public class ShardedAtom extends ARef implements IAtom2{
+
+static final int MAX_SHARDS = 1 << 16;
+static final int DEFAULT_SHARDS = 4 * Runtime.getRuntime().availableProcessors();
+
+static final class Shard{
+	//held while the map is written, readers use optimistic stamps
+	final StampedLock lock = new StampedLock();
+	volatile IPersistentMap map;
+}
+
+final Shard[] shards;
+//shard index is the top bits of the spread hash
+final int shift;
+
+public ShardedAtom(Object m) {
+	this(m, DEFAULT_SHARDS);
+}
+
+public ShardedAtom(Object m, int nshards) {
+	this(m, nshards, null);
+}
+
+public ShardedAtom(Object m, int nshards, IPersistentMap meta) {
+	super(meta);
+	int bits = 1;
+	while((1 << bits) < nshards && (1 << bits) < MAX_SHARDS)
+		bits++;
+	this.shift = 32 - bits;
+	this.shards = new Shard[1 << bits];
+	IPersistentMap[] maps = split(m, shards.length, shift);
+	for(int i = 0; i < shards.length; i++)
+		{
+		shards[i] = new Shard();
+		shards[i].map = maps[i];
+		}
+}
+
+static int indexFor(Object k, int shift){
+	return (Util.hasheq(k) * 0x9E3779B9) >>> shift;
+}
+
+//a map's entries partitioned into n shards
+static IPersistentMap[] split(Object m, int n, int shift){
+	if(m instanceof Snapshot && ((Snapshot) m).maps.length == n)
+		return ((Snapshot) m).maps;
+	if(m != null && !(m instanceof IPersistentMap))
+		throw new IllegalArgumentException("ShardedAtom value must be a map, got: " + m.getClass().getName());
+	ITransientMap[] ts = new ITransientMap[n];
+	for(int i = 0; i < n; i++)
+		ts[i] = PersistentHashMap.EMPTY.asTransient();
+	for(ISeq s = RT.seq(m); s != null; s = s.next())
+		{
+		IMapEntry e = (IMapEntry) s.first();
+		int i = indexFor(e.key(), shift);
+		ts[i] = ts[i].assoc(e.key(), e.val());
+		}
+	IPersistentMap[] maps = new IPersistentMap[n];
+	for(int i = 0; i < n; i++)
+		maps[i] = (IPersistentMap) ts[i].persistent();
+	return maps;
+}
+
+public int shardCount(){
+	return shards.length;
+}
+
+/**
+ * A consistent snapshot of every shard's map.
+ */
+public Object deref(){
+	int n = shards.length;
+	IPersistentMap[] maps = new IPersistentMap[n];
+	long[] stamps = new long[n];
+	boolean valid = true;
+	for(int i = 0; i < n && valid; i++)
+		{
+		stamps[i] = shards[i].lock.tryOptimisticRead();
+		maps[i] = shards[i].map;
+		valid = stamps[i] != 0;
+		}
+	//each shard was unchanged from its read until the checks, so all of
+	//them held their maps at the moment the first check ran
+	for(int i = 0; i < n && valid; i++)
+		valid = shards[i].lock.validate(stamps[i]);
+	if(!valid)
+		{
+		for(int i = 0; i < n; i++)
+			stamps[i] = shards[i].lock.readLock();
+		try
+			{
+			for(int i = 0; i < n; i++)
+				maps[i] = shards[i].map;
+			}
+		finally
+			{
+			for(int i = n - 1; i >= 0; i--)
+				shards[i].lock.unlockRead(stamps[i]);
+			}
+		}
+	return new Snapshot(maps, shift, null);
+}
+
+//every shard's current map, read without any consistency between shards
+IPersistentMap[] racyMaps(){
+	IPersistentMap[] maps = new IPersistentMap[shards.length];
+	for(int i = 0; i < maps.length; i++)
+		maps[i] = shards[i].map;
+	return maps;
+}
+
+static Snapshot with(IPersistentMap[] maps, int i, IPersistentMap map, int shift){
+	IPersistentMap[] ms = maps.clone();
+	ms[i] = map;
+	return new Snapshot(ms, shift, null);
+}
+
+public Object swapIn(Object k, IFn f){
+	return swapIn(k, f, 0, null, null);
+}
+
+public Object swapIn(Object k, IFn f, Object arg){
+	return swapIn(k, f, 1, arg, null);
+}
+
+public Object swapIn(Object k, IFn f, Object x, ISeq args){
+	return swapIn(k, f, 2, x, args);
+}
+
+/**
+ * Sets the value at k to (apply f current-value args), storing it while
+ * holding only k's shard, and returns it. f may be run more than once, if
+ * k's shard changes before it can be stored. A validator is passed the
+ * new map, with the other shards as they are read at the time. Watches
+ * get old and new maps that differ by just this update.
+ */
+Object swapIn(Object k, IFn f, int nargs, Object x, ISeq args){
+	int i = indexFor(k, shift);
+	Shard shard = shards[i];
+	for(;;)
+		{
+		IPersistentMap oldmap = shard.map;
+		Object v = oldmap.valAt(k);
+		Object ret;
+		switch(nargs)
+			{
+			case 0:
+				ret = f.invoke(v);
+				break;
+			case 1:
+				ret = f.invoke(v, x);
+				break;
+			default:
+				ret = f.applyTo(RT.listStar(v, x, args));
+			}
+		IPersistentMap newmap = oldmap.assoc(k, ret);
+		if(getValidator() != null)
+			validate(with(racyMaps(), i, newmap, shift));
+		boolean stored = false;
+		long stamp = shard.lock.writeLock();
+		try
+			{
+			if(shard.map == oldmap)
+				{
+				shard.map = newmap;
+				stored = true;
+				}
+			}
+		finally
+			{
+			shard.lock.unlockWrite(stamp);
+			}
+		if(stored)
+			{
+			if(getWatches().count() > 0)
+				{
+				IPersistentMap[] maps = ((Snapshot) deref()).maps;
+				notifyWatches(with(maps, i, oldmap, shift), with(maps, i, newmap, shift));
+				}
+			return ret;
+			}
+		}
+}
+
+//whole map updates lock every shard, in order
+
+long[] lockAll(){
+	long[] stamps = new long[shards.length];
+	for(int i = 0; i < shards.length; i++)
+		stamps[i] = shards[i].lock.writeLock();
+	return stamps;
+}
+
+void unlockAll(long[] stamps){
+	for(int i = shards.length - 1; i >= 0; i--)
+		shards[i].lock.unlockWrite(stamps[i]);
+}
+
+//true if the shards hold maps, with every shard locked
+boolean holds(IPersistentMap[] maps){
+	for(int i = 0; i < shards.length; i++)
+		{
+		if(shards[i].map != maps[i])
+			return false;
+		}
+	return true;
+}
+
+//stores maps, with every shard locked
+void store(IPersistentMap[] maps){
+	for(int i = 0; i < shards.length; i++)
+		shards[i].map = maps[i];
+}
+
+//validates newv and splits it into shards, without any locks held
+Snapshot prepare(Object newv){
+	validate(newv);
+	return new Snapshot(split(newv, shards.length, shift), shift, null);
+}
+
+IPersistentVector update(IFn f, int nargs, Object x, Object y, ISeq args){
+	for(;;)
+		{
+		Snapshot oldv = (Snapshot) deref();
+		Snapshot newv;
+		switch(nargs)
+			{
+			case 0:
+				newv = prepare(f.invoke(oldv));
+				break;
+			case 1:
+				newv = prepare(f.invoke(oldv, x));
+				break;
+			case 2:
+				newv = prepare(f.invoke(oldv, x, y));
+				break;
+			default:
+				newv = prepare(f.applyTo(RT.listStar(oldv, x, y, args)));
+			}
+		boolean stored = false;
+		long[] stamps = lockAll();
+		try
+			{
+			if(holds(oldv.maps))
+				{
+				store(newv.maps);
+				stored = true;
+				}
+			}
+		finally
+			{
+			unlockAll(stamps);
+			}
+		if(stored)
+			{
+			notifyWatches(oldv, newv);
+			return LazilyPersistentVector.createOwning(oldv, newv);
+			}
+		}
+}
+
+public Object swap(IFn f) {
+	return update(f, 0, null, null, null).nth(1);
+}
+
+public Object swap(IFn f, Object arg) {
+	return update(f, 1, arg, null, null).nth(1);
+}
+
+public Object swap(IFn f, Object arg1, Object arg2) {
+	return update(f, 2, arg1, arg2, null).nth(1);
+}
+
+public Object swap(IFn f, Object x, Object y, ISeq args) {
+	return update(f, 3, x, y, args).nth(1);
+}
+
+public IPersistentVector swapVals(IFn f) {
+	return update(f, 0, null, null, null);
+}
+
+public IPersistentVector swapVals(IFn f, Object arg) {
+	return update(f, 1, arg, null, null);
+}
+
+public IPersistentVector swapVals(IFn f, Object arg1, Object arg2) {
+	return update(f, 2, arg1, arg2, null);
+}
+
+public IPersistentVector swapVals(IFn f, Object x, Object y, ISeq args) {
+	return update(f, 3, x, y, args);
+}
+
+/**
+ * Since every deref returns a new Snapshot, oldv matches if it is a
+ * Snapshot holding the very maps the shards still hold.
+ */
+public boolean compareAndSet(Object oldv, Object newv){
+	if(!(oldv instanceof Snapshot) || ((Snapshot) oldv).maps.length != shards.length)
+		return false;
+	IPersistentMap[] expected = ((Snapshot) oldv).maps;
+	Snapshot stored = prepare(newv);
+	long[] stamps = lockAll();
+	try
+		{
+		if(!holds(expected))
+			return false;
+		store(stored.maps);
+		}
+	finally
+		{
+		unlockAll(stamps);
+		}
+	notifyWatches(oldv, stored);
+	return true;
+}
+
+public Object reset(Object newval){
+	resetVals(newval);
+	return newval;
+}
+
+public IPersistentVector resetVals(Object newv){
+	Snapshot oldv, stored = prepare(newv);
+	long[] stamps = lockAll();
+	try
+		{
+		oldv = new Snapshot(racyMaps(), shift, null);
+		store(stored.maps);
+		}
+	finally
+		{
+		unlockAll(stamps);
+		}
+	notifyWatches(oldv, stored);
+	return LazilyPersistentVector.createOwning(oldv, stored);
+}
+
+/**
+ * The value of a ShardedAtom: its shards' maps, looked up by key hash.
+ * assoc and without replace a single shard, so updating a snapshot and
+ * swapping it back in stays cheap.
+ */
+public static final class Snapshot extends APersistentMap implements IObj{
+	final IPersistentMap[] maps;
+	final int shift;
+	final IPersistentMap _meta;
+
+	Snapshot(IPersistentMap[] maps, int shift, IPersistentMap meta){
+		this.maps = maps;
+		this.shift = shift;
+		this._meta = meta;
+	}
+
+	IPersistentMap mapFor(Object key){
+		return maps[indexFor(key, shift)];
+	}
+
+	public IPersistentMap meta(){
+		return _meta;
+	}
+
+	public Snapshot withMeta(IPersistentMap meta){
+		if(meta() == meta)
+			return this;
+		return new Snapshot(maps, shift, meta);
+	}
+
+	public boolean containsKey(Object key){
+		return mapFor(key).containsKey(key);
+	}
+
+	public IMapEntry entryAt(Object key){
+		return mapFor(key).entryAt(key);
+	}
+
+	public Object valAt(Object key){
+		return mapFor(key).valAt(key);
+	}
+
+	public Object valAt(Object key, Object notFound){
+		return mapFor(key).valAt(key, notFound);
+	}
+
+	public int count(){
+		int n = 0;
+		for(IPersistentMap m : maps)
+			n += m.count();
+		return n;
+	}
+
+	IPersistentMap replace(int i, IPersistentMap m){
+		if(m == maps[i])
+			return this;
+		IPersistentMap[] ms = maps.clone();
+		ms[i] = m;
+		return new Snapshot(ms, shift, _meta);
+	}
+
+	public IPersistentMap assoc(Object key, Object val){
+		int i = indexFor(key, shift);
+		return replace(i, maps[i].assoc(key, val));
+	}
+
+	public IPersistentMap assocEx(Object key, Object val){
+		int i = indexFor(key, shift);
+		return replace(i, maps[i].assocEx(key, val));
+	}
+
+	public IPersistentMap without(Object key){
+		int i = indexFor(key, shift);
+		return replace(i, maps[i].without(key));
+	}
+
+	public IPersistentCollection empty(){
+		return (IPersistentCollection) PersistentHashMap.EMPTY.withMeta(_meta);
+	}
+
+	public ISeq seq(){
+		return RT.chunkIteratorSeq(iterator());
+	}
+
+	public Iterator iterator(){
+		return new Iterator(){
+			int i = 0;
+			Iterator it = ((Iterable) maps[0]).iterator();
+
+			public boolean hasNext(){
+				while(!it.hasNext())
+					{
+					if(i + 1 == maps.length)
+						return false;
+					it = ((Iterable) maps[++i]).iterator();
+					}
+				return true;
+			}
+
+			public Object next(){
+				if(!hasNext())
+					throw new NoSuchElementException();
+				return it.next();
+			}
+
+			public void remove(){
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
+}
@@ -0,0 +1,236 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * STM contention statistics. Collection is off by default and can be
+ * turned on with -Dclojure.stm.stats=true or enable. While enabled,
+ * LockingTransaction records per-transaction histograms here and
+ * per-ref counters in each Ref's RefStats. The statistics are exported
+ * over JMX as clojure.lang:type=TransactionStats.
+ */
+public class TransactionStats implements TransactionStatsMBean{
+
+static final String ENABLED_PROP = "clojure.stm.stats";
+static final String OBJECT_NAME = "clojure.lang:type=TransactionStats";
+static final int HOT_REFS = 10;
+
+static final Keyword ENABLED = Keyword.intern(null, "enabled");
+static final Keyword TRANSACTIONS = Keyword.intern(null, "transactions");
+static final Keyword RETRIES = Keyword.intern(null, "retries");
+static final Keyword BARGES = Keyword.intern(null, "barges");
+static final Keyword RETRY_LIMIT_FAILURES = Keyword.intern(null, "retry-limit-failures");
+static final Keyword RETRIES_PER_TRANSACTION = Keyword.intern(null, "retries-per-transaction");
+static final Keyword COMMIT_NANOS = Keyword.intern(null, "commit-nanos");
+static final Keyword LOCK_WAIT_NANOS = Keyword.intern(null, "lock-wait-nanos");
+static final Keyword HOT_REFS_KEY = Keyword.intern(null, "hot-refs");
+
+static volatile boolean enabled = false;
+static boolean registered = false;
+
+static final AtomicLong transactions = new AtomicLong();
+static final AtomicLong retries = new AtomicLong();
+static final AtomicLong barges = new AtomicLong();
+static final AtomicLong retryLimitFailures = new AtomicLong();
+static final Histogram retriesPerTransaction = new Histogram();
+static final Histogram commitNanos = new Histogram();
+static final Histogram lockWaitNanos = new Histogram();
+
+//refs that have recorded stats, weakly held so stats never keep a ref alive
+static final Map<Ref, RefStats> refs = new WeakHashMap<Ref, RefStats>();
+
+static
+	{
+	if(Boolean.getBoolean(ENABLED_PROP))
+		enable(true);
+	}
+
+static public boolean enabled(){
+	return enabled;
+}
+
+static public void enable(boolean on){
+	if(on)
+		register();
+	enabled = on;
+}
+
+static synchronized void register(){
+	if(registered)
+		return;
+	try
+		{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		server.registerMBean(new TransactionStats(), new ObjectName(OBJECT_NAME));
+		}
+	catch(InstanceAlreadyExistsException e)
+		{
+		//another copy of Clojure in this JVM got there first
+		}
+	catch(Exception e)
+		{
+		throw Util.sneakyThrow(e);
+		}
+	registered = true;
+}
+
+static RefStats statsFor(Ref ref){
+	synchronized(refs)
+		{
+		RefStats s = ref.stats;
+		if(s == null)
+			{
+			s = new RefStats();
+			refs.put(ref, s);
+			ref.stats = s;
+			}
+		return s;
+		}
+}
+
+static void recordCommit(int retryCount, long nanos){
+	transactions.incrementAndGet();
+	retries.addAndGet(retryCount);
+	retriesPerTransaction.record(retryCount);
+	commitNanos.record(nanos);
+}
+
+static void recordBarge(){
+	barges.incrementAndGet();
+}
+
+static void recordLockWait(long nanos){
+	lockWaitNanos.record(nanos);
+}
+
+static void recordRetryLimit(){
+	retryLimitFailures.incrementAndGet();
+}
+
+/**
+ * Returns up to n refs with recorded stats, most contended first.
+ */
+static public IPersistentVector hotRefs(int n){
+	ArrayList<Map.Entry<Ref, RefStats>> entries;
+	synchronized(refs)
+		{
+		entries = new ArrayList<Map.Entry<Ref, RefStats>>(refs.entrySet());
+		}
+	Collections.sort(entries, new Comparator<Map.Entry<Ref, RefStats>>(){
+		public int compare(Map.Entry<Ref, RefStats> a, Map.Entry<Ref, RefStats> b){
+			return Long.compare(b.getValue().contention(), a.getValue().contention());
+		}
+	});
+	ITransientCollection ret = PersistentVector.EMPTY.asTransient();
+	for(int i = 0; i < n && i < entries.size(); i++)
+		{
+		Map.Entry<Ref, RefStats> e = entries.get(i);
+		if(e.getValue().contention() == 0)
+			break;
+		ret = ret.conj(e.getKey());
+		}
+	return (IPersistentVector) ret.persistent();
+}
+
+static public IPersistentMap snapshot(){
+	return RT.mapUniqueKeys(ENABLED, enabled,
+	                        TRANSACTIONS, transactions.get(),
+	                        RETRIES, retries.get(),
+	                        BARGES, barges.get(),
+	                        RETRY_LIMIT_FAILURES, retryLimitFailures.get(),
+	                        RETRIES_PER_TRANSACTION, retriesPerTransaction.toMap(),
+	                        COMMIT_NANOS, commitNanos.toMap(),
+	                        LOCK_WAIT_NANOS, lockWaitNanos.toMap(),
+	                        HOT_REFS_KEY, hotRefs(HOT_REFS));
+}
+
+static public void clear(){
+	synchronized(refs)
+		{
+		for(Ref ref : refs.keySet())
+			ref.stats = null;
+		refs.clear();
+		}
+	transactions.set(0);
+	retries.set(0);
+	barges.set(0);
+	retryLimitFailures.set(0);
+	retriesPerTransaction.reset();
+	commitNanos.reset();
+	lockWaitNanos.reset();
+}
+
+//TransactionStatsMBean
+
+public boolean isEnabled(){
+	return enabled;
+}
+
+public void setEnabled(boolean on){
+	enable(on);
+}
+
+public long getTransactions(){
+	return transactions.get();
+}
+
+public long getRetries(){
+	return retries.get();
+}
+
+public long getBarges(){
+	return barges.get();
+}
+
+public long getRetryLimitFailures(){
+	return retryLimitFailures.get();
+}
+
+public long getCommitTimeP50Nanos(){
+	return commitNanos.percentile(0.50);
+}
+
+public long getCommitTimeP99Nanos(){
+	return commitNanos.percentile(0.99);
+}
+
+public long getLockWaitP99Nanos(){
+	return lockWaitNanos.percentile(0.99);
+}
+
+public String[] getHotRefs(){
+	IPersistentVector hot = hotRefs(HOT_REFS);
+	ArrayList<String> ret = new ArrayList<String>();
+	for(int i = 0; i < hot.count(); i++)
+		{
+		Ref ref = (Ref) hot.nth(i);
+		RefStats s = ref.stats;
+		if(s != null)
+			ret.add("Ref " + ref.id + " " + RT.printString(ref.meta()) + " " + RT.printString(s.toMap()));
+		}
+	return ret.toArray(new String[ret.size()]);
+}
+
+public void reset(){
+	clear();
+}
+}
@@ -0,0 +1,36 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+public interface TransactionStatsMBean{
+
+boolean isEnabled();
+
+void setEnabled(boolean enabled);
+
+long getTransactions();
+
+long getRetries();
+
+long getBarges();
+
+long getRetryLimitFailures();
+
+long getCommitTimeP50Nanos();
+
+long getCommitTimeP99Nanos();
+
+long getLockWaitP99Nanos();
+
+String[] getHotRefs();
+
+void reset();
+}
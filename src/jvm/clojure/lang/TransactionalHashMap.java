@@ -12,51 +12,280 @@
 
 package clojure.lang;
 
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
 import java.util.*;
 
+/**
+ * A ConcurrentMap whose keys are hashed into bins, each a Ref holding a
+ * persistent map. Inside a transaction every operation goes through the
+ * bins' refs, so the map takes part in the transaction like any other
+ * refs. Outside one, single key operations commit straight to their bin
+ * without a LockingTransaction, falling back to one if a transaction is
+ * writing the bin, and reads of more than one bin run as a snapshot.
+ *
+ * Bins split in two once they grow past SPLIT_THRESHOLD entries, using
+ * extendible hashing. A split only writes the bin's own ref, leaving the
+ * halves there, and the directory still leads to the bin. The directory
+ * is only replaced when a split goes deeper than it, doubling its slots,
+ * so concurrent splits of different bins don't conflict.
+ */
 public class TransactionalHashMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>{
-final Ref[] bins;
 
-IPersistentMap mapAt(int bin){
-	return (IPersistentMap) bins[bin].deref();
+static final int SPLIT_THRESHOLD = 32;
+//at most 2^MAX_DEPTH directory slots, bins with colliding hashes stop
+//splitting there
+static final int MAX_DEPTH = 20;
+
+static final class Bin{
+	final Ref ref;
+	//number of low hash bits shared by the bin's keys
+	final int depth;
+
+	Bin(IPersistentMap map, int depth){
+		this.ref = new Ref(map);
+		this.depth = depth;
+	}
+}
+
+//left in a bin's ref once it has been split, dividing its keys on bit
+//depth of their hashes
+static final class Split{
+	final Bin lo;
+	final Bin hi;
+
+	Split(Bin lo, Bin hi){
+		this.lo = lo;
+		this.hi = hi;
+	}
+
+	Bin binFor(int h, int depth){
+		return (h & (1 << depth)) == 0 ? lo : hi;
+	}
+}
+
+//2^depth slots indexed by low hash bits. A bin of depth d fills every
+//slot agreeing with it in the low d bits, so it first appears at the
+//slot numbered by those bits. The bin in a slot may since have been
+//split, leading to those holding its keys
+static final class Dir{
+	final Bin[] bins;
+	final int depth;
+
+	Dir(Bin[] bins, int depth){
+		this.bins = bins;
+		this.depth = depth;
+	}
+
+	boolean isFirst(int i){
+		return i < (1 << bins[i].depth);
+	}
+}
+
+//computes a bin's new map from its current one, and may be rerun.
+//Leaves the operation's result in ret
+static abstract class Update{
+	Object ret;
+
+	abstract IPersistentMap apply(IPersistentMap map);
 }
 
-final int binFor(Object k){
+final Ref dir;
+
+static int hash(Object k){
 	//spread hashes, a la Cliff Click
-	int h = k.hashCode();
+	int h = Util.hasheq(k);
 	h ^= (h >>> 20) ^ (h >>> 12);
 	h ^= (h >>> 7) ^ (h >>> 4);
-	return h % bins.length;
-//	return k.hashCode() % bins.length;
+	return h;
+}
+
+Dir dir(){
+	return (Dir) dir.deref();
+}
+
+//the bin holding k, following any splits since the directory was written
+Bin binFor(Object k){
+	int h = hash(k);
+	Dir d = dir();
+	Bin b = d.bins[h & (d.bins.length - 1)];
+	for(Object cur = b.ref.deref(); cur instanceof Split; cur = b.ref.deref())
+		b = ((Split) cur).binFor(h, b.depth);
+	return b;
+}
+
+IPersistentMap mapFor(Object k){
+	for(;;)
+		{
+		//outside a transaction, a bin can be split after we read it
+		Object map = binFor(k).ref.deref();
+		if(!(map instanceof Split))
+			return (IPersistentMap) map;
+		}
+}
+
+//adds b, or the bins it has been split into, to out
+static void addBins(Bin b, List<Bin> out){
+	Object cur = b.ref.deref();
+	if(cur instanceof Split)
+		{
+		addBins(((Split) cur).lo, out);
+		addBins(((Split) cur).hi, out);
+		}
+	else
+		out.add(b);
+}
+
+//every bin holding keys
+List<Bin> bins(){
+	Dir d = dir();
+	List<Bin> ret = new ArrayList<Bin>();
+	for(int i = 0; i < d.bins.length; i++)
+		{
+		if(d.isFirst(i))
+			addBins(d.bins[i], ret);
+		}
+	return ret;
 }
 
 Entry entryAt(Object k){
-	return mapAt(binFor(k)).entryAt(k);
+	return mapFor(k).entryAt(k);
+}
+
+static Object inTransaction(Callable fn){
+	try
+		{
+		return LockingTransaction.runInTransaction(fn);
+		}
+	catch(Exception e)
+		{
+		throw Util.sneakyThrow(e);
+		}
+}
+
+//applies u to bin b, returning false if b has been split
+boolean updateBin(final Bin b, final Update u){
+	if(LockingTransaction.isRunning())
+		{
+		Object cur = b.ref.deref();
+		if(cur instanceof Split)
+			return false;
+		IPersistentMap map = (IPersistentMap) cur;
+		IPersistentMap nmap = u.apply(map);
+		if(nmap != map)
+			{
+			b.ref.set(nmap);
+			if(nmap.count() > SPLIT_THRESHOLD)
+				split(b);
+			}
+		return true;
+		}
+	for(;;)
+		{
+		Object cur = b.ref.deref();
+		if(cur instanceof Split)
+			return false;
+		IPersistentMap map = (IPersistentMap) cur;
+		IPersistentMap nmap = u.apply(map);
+		if(nmap == map)
+			return true;
+		if(LockingTransaction.compareAndCommit(b.ref, map, nmap))
+			{
+			if(nmap.count() > SPLIT_THRESHOLD)
+				inTransaction(new Callable(){
+					public Object call(){
+						split(b);
+						return null;
+					}
+				});
+			return true;
+			}
+		//unchanged, so a transaction holds the bin
+		if(b.ref.deref() == map)
+			return (Boolean) inTransaction(new Callable(){
+				public Object call(){
+					return updateBin(b, u);
+				}
+			});
+		}
+}
+
+Object update(Object k, Update u){
+	while(!updateBin(binFor(k), u))
+		;
+	return u.ret;
+}
+
+//splits b on its next hash bit, and its halves if they are still too big,
+//doubling the directory if they are deeper than it. Must be called in a
+//transaction
+void split(Bin b){
+	Object cur = b.ref.deref();
+	if(cur instanceof Split || b.depth == MAX_DEPTH || ((IPersistentMap) cur).count() <= SPLIT_THRESHOLD)
+		return;
+	int bit = 1 << b.depth;
+	ITransientMap lo = PersistentHashMap.EMPTY.asTransient();
+	ITransientMap hi = PersistentHashMap.EMPTY.asTransient();
+	for(ISeq s = RT.seq(cur); s != null; s = s.next())
+		{
+		IMapEntry e = (IMapEntry) s.first();
+		if((hash(e.key()) & bit) == 0)
+			lo = lo.assoc(e.key(), e.val());
+		else
+			hi = hi.assoc(e.key(), e.val());
+		}
+	Bin blo = new Bin((IPersistentMap) lo.persistent(), b.depth + 1);
+	Bin bhi = new Bin((IPersistentMap) hi.persistent(), b.depth + 1);
+	b.ref.set(new Split(blo, bhi));
+	if(b.depth + 1 > dir().depth)
+		grow(b.depth + 1);
+	split(blo);
+	split(bhi);
+}
+
+//replaces the directory with one of 2^depth slots, each holding the
+//deepest bin its keys have reached no deeper than that
+void grow(int depth){
+	Dir d = dir();
+	Bin[] bins = new Bin[1 << depth];
+	for(int i = 0; i < bins.length; i++)
+		{
+		Bin b = d.bins[i & (d.bins.length - 1)];
+		for(Object cur = b.ref.deref(); cur instanceof Split && b.depth < depth; cur = b.ref.deref())
+			b = ((Split) cur).binFor(i, b.depth);
+		bins[i] = b;
+		}
+	dir.set(new Dir(bins, depth));
 }
 
 public TransactionalHashMap() {
-	this(421);
+	this(16);
 }
 
 public TransactionalHashMap(int nBins) {
-	bins = new Ref[nBins];
-	for(int i = 0; i < nBins; i++)
-		bins[i] = new Ref(PersistentHashMap.EMPTY);
+	int depth = 0;
+	while((1 << depth) < nBins && depth < MAX_DEPTH)
+		depth++;
+	Bin[] bins = new Bin[1 << depth];
+	for(int i = 0; i < bins.length; i++)
+		bins[i] = new Bin(PersistentHashMap.EMPTY, depth);
+	dir = new Ref(new Dir(bins, depth));
 }
 
 public TransactionalHashMap(Map<? extends K, ? extends V> m) {
-	this(m.size());
+	this(2 * m.size() / SPLIT_THRESHOLD);
 	putAll(m);
 }
 
 public int size(){
-	int n = 0;
-	for(int i = 0; i < bins.length; i++)
-		{
-		n += mapAt(i).count();
+	return (Integer) inTransaction(new Callable(){
+		public Object call(){
+			int n = 0;
+			for(Bin b : bins())
+				n += ((IPersistentMap) b.ref.deref()).count();
+			return n;
 		}
-	return n;
+	});
 }
 
 public boolean isEmpty(){
@@ -74,50 +303,110 @@ public V get(Object k){
 	return null;
 }
 
-public V put(K k, V v){
-	Ref r = bins[binFor(k)];
-	IPersistentMap map = (IPersistentMap) r.deref();
-	Object ret = map.valAt(k);
-	r.set(map.assoc(k, v));
-	return (V) ret;
+public V put(final K k, final V v){
+	return (V) update(k, new Update(){
+		IPersistentMap apply(IPersistentMap map){
+			ret = map.valAt(k);
+			return map.assoc(k, v);
+		}
+	});
 }
 
-public V remove(Object k){
-	Ref r = bins[binFor(k)];
-	IPersistentMap map = (IPersistentMap) r.deref();
-	Object ret = map.valAt(k);
-	r.set(map.without(k));
-	return (V) ret;
+public V remove(final Object k){
+	return (V) update(k, new Update(){
+		IPersistentMap apply(IPersistentMap map){
+			ret = map.valAt(k);
+			return map.without(k);
+		}
+	});
 }
 
+/**
+ * Within a transaction, puts each entry in turn. Outside one, entries
+ * are grouped by bin and each bin is committed once, so the whole map
+ * isn't put atomically.
+ */
 public void putAll(Map<? extends K, ? extends V> map){
-	for(Iterator i = map.entrySet().iterator(); i.hasNext();)
+	if(LockingTransaction.isRunning())
+		{
+		for(Entry<? extends K, ? extends V> e : map.entrySet())
+			put(e.getKey(), e.getValue());
+		return;
+		}
+	HashMap<Bin, ArrayList<Entry<? extends K, ? extends V>>> groups =
+			new HashMap<Bin, ArrayList<Entry<? extends K, ? extends V>>>();
+	for(Entry<? extends K, ? extends V> e : map.entrySet())
+		{
+		Bin b = binFor(e.getKey());
+		ArrayList<Entry<? extends K, ? extends V>> group = groups.get(b);
+		if(group == null)
+			groups.put(b, group = new ArrayList<Entry<? extends K, ? extends V>>());
+		group.add(e);
+		}
+	for(Map.Entry<Bin, ArrayList<Entry<? extends K, ? extends V>>> g : groups.entrySet())
 		{
-		Entry<K, V> e = (Entry) i.next();
-		put(e.getKey(), e.getValue());
+		final ArrayList<Entry<? extends K, ? extends V>> group = g.getValue();
+		boolean done = updateBin(g.getKey(), new Update(){
+			IPersistentMap apply(IPersistentMap map){
+				for(Entry<? extends K, ? extends V> e : group)
+					map = map.assoc(e.getKey(), e.getValue());
+				return map;
+			}
+		});
+		//split since grouping, fall back to single puts
+		if(!done)
+			{
+			for(Entry<? extends K, ? extends V> e : group)
+				put(e.getKey(), e.getValue());
+			}
 		}
 }
 
+/**
+ * Empties each bin. Outside a transaction the bins are cleared one at a
+ * time, so entries put concurrently may survive.
+ */
 public void clear(){
-	for(int i = 0; i < bins.length; i++)
+	for(;;)
 		{
-		Ref r = bins[i];
-		IPersistentMap map = (IPersistentMap) r.deref();
-		if(map.count() > 0)
+		boolean done = true;
+		for(Bin b : bins())
 			{
-			r.set(PersistentHashMap.EMPTY);
+			done &= updateBin(b, new Update(){
+				IPersistentMap apply(IPersistentMap map){
+					return map.count() > 0 ? PersistentHashMap.EMPTY : map;
+				}
+			});
 			}
+		if(done)
+			return;
 		}
 }
 
-public Set<Entry<K, V>> entrySet(){
-	final ArrayList<Map.Entry<K, V>> entries = new ArrayList(bins.length);
-	for(int i = 0; i < bins.length; i++)
-		{
-		IPersistentMap map = mapAt(i);
-		if(map.count() > 0)
-			entries.addAll((Collection) RT.seq(map));
+/**
+ * Returns the contents as a persistent map, read from a single snapshot.
+ */
+public IPersistentMap snapshot(){
+	return (IPersistentMap) inTransaction(new Callable(){
+		public Object call(){
+			ITransientMap ret = PersistentHashMap.EMPTY.asTransient();
+			for(Bin b : bins())
+				{
+				for(ISeq s = RT.seq(b.ref.deref()); s != null; s = s.next())
+					{
+					IMapEntry e = (IMapEntry) s.first();
+					ret = ret.assoc(e.key(), e.val());
+					}
+				}
+			return ret.persistent();
 		}
+	});
+}
+
+public Set<Entry<K, V>> entrySet(){
+	final ArrayList<Map.Entry<K, V>> entries = new ArrayList(size());
+	for(ISeq s = RT.seq(snapshot()); s != null; s = s.next())
+		entries.add((Map.Entry<K, V>) s.first());
 	return new AbstractSet<Entry<K, V>>(){
 		public Iterator iterator(){
 			return Collections.unmodifiableList(entries).iterator();
@@ -129,53 +418,54 @@ public Set<Entry<K, V>> entrySet(){
 	};
 }
 
-public V putIfAbsent(K k, V v){
-	Ref r = bins[binFor(k)];
-	IPersistentMap map = (IPersistentMap) r.deref();
-	Entry e = map.entryAt(k);
-	if(e == null)
-		{
-		r.set(map.assoc(k, v));
-		return null;
+public V putIfAbsent(final K k, final V v){
+	return (V) update(k, new Update(){
+		IPersistentMap apply(IPersistentMap map){
+			Entry e = map.entryAt(k);
+			if(e == null)
+				{
+				ret = null;
+				return map.assoc(k, v);
+				}
+			ret = e.getValue();
+			return map;
 		}
-	else
-		return (V) e.getValue();
+	});
 }
 
-public boolean remove(Object k, Object v){
-	Ref r = bins[binFor(k)];
-	IPersistentMap map = (IPersistentMap) r.deref();
-	Entry e = map.entryAt(k);
-	if(e != null && e.getValue().equals(v))
-		{
-		r.set(map.without(k));
-		return true;
+public boolean remove(final Object k, final Object v){
+	return (Boolean) update(k, new Update(){
+		IPersistentMap apply(IPersistentMap map){
+			Entry e = map.entryAt(k);
+			ret = e != null && Util.equals(e.getValue(), v);
+			return (Boolean) ret ? map.without(k) : map;
 		}
-	return false;
+	});
 }
 
-public boolean replace(K k, V oldv, V newv){
-	Ref r = bins[binFor(k)];
-	IPersistentMap map = (IPersistentMap) r.deref();
-	Entry e = map.entryAt(k);
-	if(e != null && e.getValue().equals(oldv))
-		{
-		r.set(map.assoc(k, newv));
-		return true;
+public boolean replace(final K k, final V oldv, final V newv){
+	return (Boolean) update(k, new Update(){
+		IPersistentMap apply(IPersistentMap map){
+			Entry e = map.entryAt(k);
+			ret = e != null && Util.equals(e.getValue(), oldv);
+			return (Boolean) ret ? map.assoc(k, newv) : map;
 		}
-	return false;
+	});
 }
 
-public V replace(K k, V v){
-	Ref r = bins[binFor(k)];
-	IPersistentMap map = (IPersistentMap) r.deref();
-	Entry e = map.entryAt(k);
-	if(e != null)
-		{
-		r.set(map.assoc(k, v));
-		return (V) e.getValue();
+public V replace(final K k, final V v){
+	return (V) update(k, new Update(){
+		IPersistentMap apply(IPersistentMap map){
+			Entry e = map.entryAt(k);
+			if(e != null)
+				{
+				ret = e.getValue();
+				return map.assoc(k, v);
+				}
+			ret = null;
+			return map;
 		}
-	return null;
+	});
 }
 
 }
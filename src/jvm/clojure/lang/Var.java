@@ -85,6 +85,8 @@ static Keyword nsKey = Keyword.intern(null, "ns");
 volatile Object root;
 
 volatile boolean dynamic = false;
+//metadata not yet read from the resource keeping it, see ExternalMeta
+volatile ExternalMeta externalMeta;
 transient final AtomicBoolean threadBound;
 public final Symbol sym;
 public final Namespace ns;
@@ -183,6 +185,7 @@ Var(Namespace ns, Symbol sym){
 Var(Namespace ns, Symbol sym, Object root){
 	this(ns, sym);
 	this.root = root;
+	markLazyRoot(root);
 	++rev;
 }
 
@@ -197,10 +200,12 @@ final public Object get(){
 }
 
 final public Object deref(){
+	if(!threadBound.get())
+		return root;
 	TBox b = getThreadBinding();
 	if(b != null)
 		return b.val;
-	return root;
+	return rootValue();
 }
 
 public void setValidator(IFn vf){
@@ -240,12 +245,51 @@ public void setMeta(IPersistentMap m) {
     resetMeta(m.assoc(nameKey, sym).assoc(nsKey, ns));
 }
 
+public IPersistentMap meta(){
+	if(externalMeta != null)
+		readExternalMeta();
+	return super.meta();
+}
+
+synchronized void readExternalMeta(){
+	ExternalMeta em = externalMeta;
+	if(em != null)
+		{
+		IPersistentMap m = super.meta();
+		for(ISeq s = RT.seq(em.metaFor(Symbol.intern(ns.name.name, sym.name))); s != null; s = s.next())
+			{
+			IMapEntry e = (IMapEntry) s.first();
+			m = m.assoc(e.key(), e.val());
+			}
+		super.resetMeta(m);
+		externalMeta = null;
+		}
+}
+
+synchronized public IPersistentMap alterMeta(IFn alter, ISeq args){
+	meta();
+	return super.alterMeta(alter, args);
+}
+
+synchronized public IPersistentMap resetMeta(IPersistentMap m){
+	externalMeta = null;
+	return super.resetMeta(m);
+}
+
+//the value of key in the metadata, which only reads metadata kept in an
+//ExternalMeta resource for the keys kept there
+public Object getMetaValue(Object key){
+	if(externalMeta != null && ExternalMeta.KEYS.contains(key))
+		return meta().valAt(key);
+	return super.meta().valAt(key);
+}
+
 public void setMacro() {
-    alterMeta(assoc, RT.list(macroKey, RT.T));
+    super.alterMeta(assoc, RT.list(macroKey, RT.T));
 }
 
 public boolean isMacro(){
-	return RT.booleanCast(meta().valAt(macroKey));
+	return RT.booleanCast(getMetaValue(macroKey));
 }
 
 //public void setExported(boolean state){
@@ -253,19 +297,56 @@ public boolean isMacro(){
 //}
 
 public boolean isPublic(){
-	return !RT.booleanCast(meta().valAt(privateKey));
+	return !RT.booleanCast(getMetaValue(privateKey));
 }
 
+//the root as bound, which is a FnLoaderThunk rather than its fn until
+//the fn is first used
 final public Object getRawRoot(){
 		return root;
 }
 
+//the root, loading the fn a FnLoaderThunk stands in for
+Object rootValue(){
+	Object r = root;
+	if(r instanceof FnLoaderThunk)
+		return ((FnLoaderThunk) r).fn();
+	return r;
+}
+
+//a Var whose root is a FnLoaderThunk is marked thread bound, so get and
+//deref take their slower path, which loads the fn, and other Vars don't
+//check for one
+private void markLazyRoot(Object root){
+	if(root instanceof FnLoaderThunk)
+		threadBound.set(true);
+}
+
+//replaces thunk as the root with its fn, unless the root has changed
+//since. A Var that isn't dynamic has no thread bindings to keep marked
+synchronized void replaceThunk(FnLoaderThunk thunk, IFn fn){
+	if(root == thunk)
+		{
+		root = fn;
+		++rev;
+		if(!dynamic)
+			threadBound.set(false);
+		}
+}
+
+//a FnLoaderThunk's fn is only loaded to show it to watches
+private Object watchedRoot(Object root){
+	if(root instanceof FnLoaderThunk && getWatches().count() > 0)
+		return ((FnLoaderThunk) root).fn();
+	return root;
+}
+
 public Object getTag(){
-	return meta().valAt(RT.TAG_KEY);
+	return getMetaValue(RT.TAG_KEY);
 }
 
 public void setTag(Symbol tag) {
-    alterMeta(assoc, RT.list(RT.TAG_KEY, tag));
+    super.alterMeta(assoc, RT.list(RT.TAG_KEY, tag));
 }
 
 final public boolean hasRoot(){
@@ -276,18 +357,20 @@ final public boolean hasRoot(){
 synchronized public void bindRoot(Object root){
 	validate(getValidator(), root);
 	Object oldroot = this.root;
+	markLazyRoot(root);
 	this.root = root;
 	++rev;
-        alterMeta(dissoc, RT.list(macroKey));
-    notifyWatches(oldroot,this.root);
+        super.alterMeta(dissoc, RT.list(macroKey));
+    notifyWatches(watchedRoot(oldroot),this.root);
 }
 
 synchronized void swapRoot(Object root){
 	validate(getValidator(), root);
 	Object oldroot = this.root;
+	markLazyRoot(root);
 	this.root = root;
 	++rev;
-    notifyWatches(oldroot,root);
+    notifyWatches(watchedRoot(oldroot),root);
 }
 
 synchronized public void unbindRoot(){
@@ -296,18 +379,20 @@ synchronized public void unbindRoot(){
 }
 
 synchronized public void commuteRoot(IFn fn) {
-	Object newRoot = fn.invoke(root);
+	Object oldroot = rootValue();
+	Object newRoot = fn.invoke(oldroot);
 	validate(getValidator(), newRoot);
-	Object oldroot = root;
+	markLazyRoot(newRoot);
 	this.root = newRoot;
 	++rev;
     notifyWatches(oldroot,newRoot);
 }
 
 synchronized public Object alterRoot(IFn fn, ISeq args) {
-	Object newRoot = fn.applyTo(RT.cons(root, args));
+	Object oldroot = rootValue();
+	Object newRoot = fn.applyTo(RT.cons(oldroot, args));
 	validate(getValidator(), newRoot);
-	Object oldroot = root;
+	markLazyRoot(newRoot);
 	this.root = newRoot;
 	++rev;
     notifyWatches(oldroot,newRoot);
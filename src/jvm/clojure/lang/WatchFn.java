@@ -0,0 +1,190 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A watch fn wrapper, added by add-watch when given options, that times
+ * each call of the watch. ARef.notifyWatches calls it like any other watch.
+ *
+ * An async watch only records the notification on the writer's thread
+ * and returns. The watch fn runs later on an executor, one call at a
+ * time, in the order notifications arrive. Notifications that arrive
+ * while one is still waiting to run are coalesced with it, so the watch
+ * sees a single change from the earliest old value to the latest new one.
+ */
+public final class WatchFn extends AFn implements Runnable{
+
+static final Keyword ASYNC = Keyword.intern(null, "async");
+static final Keyword EXECUTOR = Keyword.intern(null, "executor");
+
+static final Keyword NOTIFICATIONS = Keyword.intern(null, "notifications");
+static final Keyword CALLS = Keyword.intern(null, "calls");
+static final Keyword COALESCED = Keyword.intern(null, "coalesced");
+static final Keyword ERRORS = Keyword.intern(null, "errors");
+static final Keyword LAST_ERROR = Keyword.intern(null, "last-error");
+static final Keyword CALL_NANOS = Keyword.intern(null, "call-nanos");
+static final Keyword DELAY_NANOS = Keyword.intern(null, "delay-nanos");
+
+static final class Pending{
+	final Object key;
+	final Object ref;
+	final Object oldval;
+	final Object newval;
+	//when the earliest coalesced notification arrived
+	final long since;
+
+	Pending(Object key, Object ref, Object oldval, Object newval, long since){
+		this.key = key;
+		this.ref = ref;
+		this.oldval = oldval;
+		this.newval = newval;
+		this.since = since;
+	}
+}
+
+final IFn fn;
+//null for a synchronous watch
+final Executor executor;
+
+final AtomicReference<Pending> pending = new AtomicReference<Pending>();
+//set while a run is submitted to, or running on, the executor
+final AtomicBoolean scheduled = new AtomicBoolean();
+
+final LongAdder notifications = new LongAdder();
+final LongAdder calls = new LongAdder();
+final LongAdder coalesced = new LongAdder();
+final LongAdder errors = new LongAdder();
+volatile Throwable lastError;
+final Histogram callNanos = new Histogram();
+final Histogram delayNanos = new Histogram();
+
+WatchFn(IFn fn, Executor executor){
+	this.fn = fn;
+	this.executor = executor;
+}
+
+/**
+ * Wraps fn per opts: :async true runs it on the agent send-off pool,
+ * :executor runs it on the given Executor, otherwise it stays synchronous.
+ */
+static public WatchFn create(IFn fn, IPersistentMap opts){
+	Executor executor = (Executor) RT.get(opts, EXECUTOR);
+	if(executor == null && RT.booleanCast(RT.get(opts, ASYNC)))
+		executor = Agent.soloExecutor;
+	return new WatchFn(fn, executor);
+}
+
+public IFn getFn(){
+	return fn;
+}
+
+public boolean isAsync(){
+	return executor != null;
+}
+
+public Object invoke(Object key, Object ref, Object oldval, Object newval){
+	notifications.increment();
+	if(executor == null)
+		return call(key, ref, oldval, newval);
+	for(;;)
+		{
+		Pending p = pending.get();
+		Pending np = p == null
+		             ? new Pending(key, ref, oldval, newval, System.nanoTime())
+		             : new Pending(key, ref, p.oldval, newval, p.since);
+		if(pending.compareAndSet(p, np))
+			{
+			if(p != null)
+				coalesced.increment();
+			break;
+			}
+		}
+	if(scheduled.compareAndSet(false, true))
+		submit();
+	return null;
+}
+
+void submit(){
+	try
+		{
+		executor.execute(this);
+		}
+	catch(RuntimeException e)
+		{
+		//e.g. rejected after shutdown-agents, let the next notification retry
+		scheduled.set(false);
+		throw e;
+		}
+}
+
+Object call(Object key, Object ref, Object oldval, Object newval){
+	long start = System.nanoTime();
+	try
+		{
+		return fn.invoke(key, ref, oldval, newval);
+		}
+	catch(Throwable e)
+		{
+		errors.increment();
+		lastError = e;
+		throw Util.sneakyThrow(e);
+		}
+	finally
+		{
+		calls.increment();
+		callNanos.record(System.nanoTime() - start);
+		}
+}
+
+//runs the pending notification, then resubmits itself if another has
+//arrived, rather than holding a pooled thread for a busy reference
+public void run(){
+	Pending p = pending.getAndSet(null);
+	if(p != null)
+		{
+		delayNanos.record(System.nanoTime() - p.since);
+		try
+			{
+			call(p.key, p.ref, p.oldval, p.newval);
+			}
+		catch(Throwable e)
+			{
+			//recorded in the stats, there's no caller to throw to
+			}
+		}
+	if(pending.get() != null)
+		{
+		submit();
+		return;
+		}
+	scheduled.set(false);
+	//a notification may have arrived after the check and seen us scheduled
+	if(pending.get() != null && scheduled.compareAndSet(false, true))
+		submit();
+}
+
+public IPersistentMap stats(){
+	IPersistentMap ret = RT.mapUniqueKeys(NOTIFICATIONS, notifications.sum(),
+	                                      CALLS, calls.sum(),
+	                                      ERRORS, errors.sum(),
+	                                      CALL_NANOS, callNanos.toMap());
+	if(lastError != null)
+		ret = ret.assoc(LAST_ERROR, lastError);
+	if(executor != null)
+		ret = ret.assoc(COALESCED, coalesced.sum()).assoc(DELAY_NANOS, delayNanos.toMap());
+	return ret;
+}
+}
@@ -0,0 +1,68 @@
+;   Copyright (c) Rich Hickey. All rights reserved.
+;   The use and distribution terms for this software are covered by the
+;   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;   which can be found in the file epl-v10.html at the root of this distribution.
+;   By using this software in any fashion, you are agreeing to be bound by
+;   the terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+;; Atom contention benchmark. Threads swap assoc/dissoc into an atom
+;; holding a large map, for each :contention mode at increasing thread
+;; counts, and print throughput and atom-stats. The :sharded rows update
+;; the same keys in a sharded-atom with swap-in! instead.
+;;
+;; java -cp clojure.jar clojure.main src/script/bench_atom.clj [map-size] [millis]
+
+(import '[java.util.concurrent CountDownLatch Executors TimeUnit]
+        '[java.util.concurrent.atomic AtomicLong])
+
+(def map-size (Long/parseLong (or (first *command-line-args*) "100000")))
+(def millis (Long/parseLong (or (second *command-line-args*) "2000")))
+(def thread-counts [1 2 4 8 16 32 64])
+
+(defn session-update [m ^java.util.Random rnd]
+  (let [k (.nextInt rnd map-size)]
+    (if (contains? m k)
+      (dissoc m k)
+      (assoc m k {:id k :seen (System/nanoTime)}))))
+
+(defn toggle-session [v k]
+  (when-not v {:id k :seen (System/nanoTime)}))
+
+(defn run [mode nthreads]
+  (let [init (zipmap (range 0 map-size 2) (repeat {}))
+        a (if (= mode :sharded)
+            (sharded-atom init)
+            (atom init :contention mode))
+        op (if (= mode :sharded)
+             (fn [^java.util.Random rnd]
+               (let [k (.nextInt rnd map-size)] (swap-in! a k toggle-session k)))
+             (fn [rnd] (swap! a session-update rnd)))
+        pool (Executors/newFixedThreadPool nthreads)
+        start (CountDownLatch. 1)
+        ops (AtomicLong.)
+        stop (volatile! false)]
+    (dotimes [i nthreads]
+      (.execute pool
+        (fn []
+          (let [rnd (java.util.Random. i)]
+            (.await start)
+            (loop [n 0]
+              (if @stop
+                (.addAndGet ops n)
+                (do (op rnd) (recur (inc n)))))))))
+    (.countDown start)
+    (Thread/sleep millis)
+    (vreset! stop true)
+    (.shutdown pool)
+    (.awaitTermination pool 1 TimeUnit/MINUTES)
+    [(/ (.get ops) (/ millis 1000.0)) (when-not (= mode :sharded) (atom-stats a))]))
+
+(println "map-size:" map-size "millis:" millis)
+(doseq [mode [nil :backoff :combining :sharded]]
+  (run mode 4) ;warmup
+  (doseq [n thread-counts]
+    (let [[ops stats] (run mode n)]
+      (printf "%-10s threads %3d  %,12.0f ops/s  %s%n" mode n (double ops) (dissoc stats :mode))
+      (flush))))
+(shutdown-agents)
@@ -0,0 +1,55 @@
+;   Copyright (c) Rich Hickey. All rights reserved.
+;   The use and distribution terms for this software are covered by the
+;   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;   which can be found in the file epl-v10.html at the root of this distribution.
+;   By using this software in any fashion, you are agreeing to be bound by
+;   the terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+;; Large literal benchmark. Compiles a fn returning a literal table of
+;; maps, built element by element in its class's static init and read
+;; from a string constant (the :compact-constants option), and prints the
+;; size of the class and the ms to load and initialize it, the first time
+;; and on average after, for each. Tables too large to build element by
+;; element fail with "Method code too large".
+;;
+;; java -cp clojure.jar clojure.main src/script/bench_constants.clj [rows]
+
+(require 'clojure.stacktrace)
+
+(def rows (Long/parseLong (or (first *command-line-args*) "300")))
+
+(def table
+  (vec (for [i (range rows)]
+         {:id i :name (str "row-" i) :weight (* 0.5 i) :tags #{:a :b} :path ['api (keyword (str "r" i))]})))
+
+(def root (.toFile (java.nio.file.Files/createTempDirectory
+                     "bench-constants" (make-array java.nio.file.attribute.FileAttribute 0))))
+
+(defn compile-table [option]
+  (let [dir (doto (java.io.File. root (str option)) .mkdirs)]
+    (spit (java.io.File. dir "bench_table.clj")
+          (str "(ns bench-table)\n(defn table [] '" (pr-str table) ")\n"))
+    (try
+      (with-bindings {#'*compile-path* (str dir)
+                      #'*compiler-options* {:compact-constants option}
+                      clojure.lang.Compiler/LOADER (doto (clojure.lang.DynamicClassLoader.)
+                                                     (.addURL (.toURL (.toURI dir))))}
+        (compile 'bench-table))
+      dir
+      (catch Exception e
+        (println (str option ":") (.getMessage (clojure.stacktrace/root-cause e)))))))
+
+(defn load-ms [^java.io.File dir]
+  (let [loader (java.net.URLClassLoader. (into-array [(.toURL (.toURI dir))]) (ClassLoader/getSystemClassLoader))
+        start (System/nanoTime)]
+    (Class/forName "bench_table$table" true loader)
+    (/ (- (System/nanoTime) start) 1e6)))
+
+(doseq [option [false true]]
+  (when-let [dir (compile-table option)]
+    (let [first-ms (load-ms dir)
+          n 20
+          avg-ms (/ (reduce + (repeatedly n #(load-ms dir))) n)]
+      (println (format "%-5s class %7d bytes  first load %7.2f ms  then %7.2f ms"
+                       option (.length (java.io.File. dir "bench_table$table.class")) first-ms avg-ms)))))
@@ -0,0 +1,46 @@
+;   Copyright (c) Rich Hickey. All rights reserved.
+;   The use and distribution terms for this software are covered by the
+;   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;   which can be found in the file epl-v10.html at the root of this distribution.
+;   By using this software in any fashion, you are agreeing to be bound by
+;   the terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+;; Keyword lookup benchmark. Times (:a x) from one call site seeing 1 to 6
+;; classes of target: records, array and hash maps, a java.util.HashMap
+;; and nil, against (get x :a). Prints ns per lookup.
+;;
+;; java -cp clojure.jar clojure.main src/script/bench_keywords.clj [iterations]
+
+(def iterations (Long/parseLong (or (first *command-line-args*) "10000000")))
+
+(defrecord R1 [a])
+(defrecord R2 [b a])
+
+(defn time-lookups [lookup xs]
+  (let [xs (object-array xs)
+        n (alength xs)
+        start (System/nanoTime)]
+    (loop [i 0 acc 0]
+      (if (< i iterations)
+        (recur (inc i) (+ acc (long (or (lookup (aget xs (rem i n))) 0))))
+        (do (when (neg? acc) (println acc))
+            (/ (double (- (System/nanoTime) start)) iterations))))))
+
+(defn kw-lookup [x] (:a x))
+(defn get-lookup [x] (get x :a))
+
+(println "iterations:" iterations)
+(let [targets [(->R1 1)
+               {:a 2}
+               (->R2 0 3)
+               (assoc (zipmap (range 20) (range 20)) :a 4)
+               (java.util.HashMap. {:a 5})
+               nil]]
+  (doseq [k (range 1 (inc (count targets)))]
+    (let [xs (take k targets)]
+      (time-lookups kw-lookup xs)
+      (time-lookups get-lookup xs)
+      (printf "%d target classes  keyword %8.1f ns  get %8.1f ns%n"
+              k (time-lookups kw-lookup xs) (time-lookups get-lookup xs))
+      (flush))))
@@ -0,0 +1,62 @@
+;   Copyright (c) Rich Hickey. All rights reserved.
+;   The use and distribution terms for this software are covered by the
+;   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;   which can be found in the file epl-v10.html at the root of this distribution.
+;   By using this software in any fashion, you are agreeing to be bound by
+;   the terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+;; Multimethod dispatch benchmark. Threads call multimethods dispatching
+;; on a keyword and on a class (resolved through isa? on first call, then
+;; cached) at increasing thread counts, and print calls per second.
+;;
+;; java -cp clojure.jar clojure.main src/script/bench_multifn.clj [millis]
+
+(import '[java.util.concurrent CountDownLatch Executors TimeUnit]
+        '[java.util.concurrent.atomic AtomicLong])
+
+(def millis (Long/parseLong (or (first *command-line-args*) "2000")))
+(def thread-counts [1 2 4 8 16 32])
+
+(defmulti by-key :kind)
+(defmethod by-key :circle [s] (:r s))
+(defmethod by-key :square [s] (:side s))
+(defmethod by-key :default [s] 0)
+
+(defmulti by-class class)
+(defmethod by-class Number [x] 1)
+(defmethod by-class CharSequence [x] 2)
+(defmethod by-class :default [x] 3)
+
+(def shapes [{:kind :circle :r 1} {:kind :square :side 2} {:kind :hexagon}])
+(def things [1 2.0 "three" :four 5N])
+
+(defn run [nthreads]
+  (let [pool (Executors/newFixedThreadPool nthreads)
+        start (CountDownLatch. 1)
+        calls (AtomicLong.)
+        stop (volatile! false)]
+    (dotimes [i nthreads]
+      (.execute pool
+        (fn []
+          (.await start)
+          (loop [n 0 acc 0]
+            (if @stop
+              (do (.addAndGet calls n) acc)
+              (recur (+ n 8)
+                     (+ acc
+                        (by-key (shapes 0)) (by-key (shapes 1)) (by-key (shapes 2))
+                        (by-class (things 0)) (by-class (things 1)) (by-class (things 2))
+                        (by-class (things 3)) (by-class (things 4)))))))))
+    (.countDown start)
+    (Thread/sleep millis)
+    (vreset! stop true)
+    (.shutdown pool)
+    (.awaitTermination pool 1 TimeUnit/MINUTES)
+    (/ (.get calls) (/ millis 1000.0))))
+
+(println "millis:" millis)
+(run 4) ;warmup
+(doseq [n thread-counts]
+  (printf "threads %3d  %,15.0f calls/s%n" n (double (run n)))
+  (flush))
@@ -0,0 +1,91 @@
+;   Copyright (c) Rich Hickey. All rights reserved.
+;   The use and distribution terms for this software are covered by the
+;   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;   which can be found in the file epl-v10.html at the root of this distribution.
+;   By using this software in any fashion, you are agreeing to be bound by
+;   the terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+;; Protocol benchmark. Times satisfies? checks, positive and negative, on
+;; a record implementing the protocol inline, Java classes extended
+;; directly and through a supertype, an unrelated class and nil, with
+;; the protocol's impl cache and without it. Then times protocol fn calls
+;; from one call site seeing 1 to 6 receiver classes, against calling the
+;; protocol fn itself, as the call site does once megamorphic. Prints ns
+;; per check or call.
+;;
+;; java -cp clojure.jar clojure.main src/script/bench_protocols.clj [iterations]
+
+(def iterations (Long/parseLong (or (first *command-line-args*) "10000000")))
+
+(defprotocol Shape
+  (area [s]))
+
+(defrecord Square [side]
+  Shape
+  (area [s] (* side side)))
+
+(defrecord Plain [x])
+
+(extend-protocol Shape
+  String (area [s] (count s))
+  java.util.Collection (area [c] (count c)))
+
+(def cases
+  [["record, inline" (->Square 2)]
+   ["record, not extended" (->Plain 1)]
+   ["String, extended" "abc"]
+   ["ArrayList, via Collection" (java.util.ArrayList.)]
+   ["Long, not extended" 42]
+   ["nil, not extended" nil]])
+
+(defn time-checks [protocol x]
+  (let [start (System/nanoTime)]
+    (loop [i 0 n 0]
+      (if (< i iterations)
+        (recur (inc i) (if (satisfies? protocol x) (inc n) n))
+        (do (when (neg? n) (println n))
+            (/ (double (- (System/nanoTime) start)) iterations))))))
+
+(println "iterations:" iterations)
+(let [uncached (dissoc Shape :impl-cache)]
+  (doseq [[label x] cases]
+    ;warmup
+    (time-checks Shape x)
+    (time-checks uncached x)
+    (printf "%-28s %5s  cached %8.1f ns  uncached %8.1f ns%n"
+            label (satisfies? Shape x) (time-checks Shape x) (time-checks uncached x))
+    (flush)))
+
+(defn time-calls [call xs]
+  (let [xs (object-array xs)
+        n (alength xs)
+        start (System/nanoTime)]
+    (loop [i 0 acc 0]
+      (if (< i iterations)
+        (recur (inc i) (+ acc (long (call (aget xs (rem i n))))))
+        (do (when (neg? acc) (println acc))
+            (/ (double (- (System/nanoTime) start)) iterations))))))
+
+(defprotocol Kind
+  (kind [x]))
+
+(extend-protocol Kind
+  Plain (kind [x] 1)
+  String (kind [x] 2)
+  Long (kind [x] 3)
+  clojure.lang.Keyword (kind [x] 4)
+  Double (kind [x] 5)
+  clojure.lang.PersistentVector (kind [x] 6))
+
+(defn site-call [x] (kind x))
+(defn fn-call [x] ((deref #'kind) x))
+
+(let [receivers [(->Plain 1) "abc" 1 :k 2.0 [1]]]
+  (doseq [k (range 1 (inc (count receivers)))]
+    (let [xs (take k receivers)]
+      (time-calls site-call xs)
+      (time-calls fn-call xs)
+      (printf "%d receiver classes %13s  call site %8.1f ns  protocol fn %8.1f ns%n"
+              k "" (time-calls site-call xs) (time-calls fn-call xs))
+      (flush))))
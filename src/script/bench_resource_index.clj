@@ -0,0 +1,68 @@
+;   Copyright (c) Rich Hickey. All rights reserved.
+;   The use and distribution terms for this software are covered by the
+;   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;   which can be found in the file epl-v10.html at the root of this distribution.
+;   By using this software in any fashion, you are agreeing to be bound by
+;   the terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+;; Classpath lookup benchmark. Writes a classpath of temporary jars, each
+;; holding a lib, and times the lookups RT.load makes to find each lib's
+;; loader class and source and compare their times, asking the class
+;; loader and using the classpath's ResourceIndex. Prints the time to
+;; build the index and us per lib looked up.
+;;
+;; java -cp clojure.jar clojure.main src/script/bench_resource_index.clj [jars]
+
+(def jars (Long/parseLong (or (first *command-line-args*) "300")))
+
+(def root (.toFile (java.nio.file.Files/createTempDirectory
+                     "bench-resource-index" (make-array java.nio.file.attribute.FileAttribute 0))))
+
+(defn write-jar [i]
+  (let [f (java.io.File. root (str "lib" i ".jar"))]
+    (with-open [out (java.util.jar.JarOutputStream. (java.io.FileOutputStream. f))]
+      (doseq [e (concat [(str "lib" i "/core.clj") (str "lib" i "/core__init.class")]
+                        (map #(str "lib" i "/Class" % ".class") (range 50)))]
+        (.putNextEntry out (java.util.jar.JarEntry. ^String e))
+        (.write out (.getBytes ";"))
+        (.closeEntry out)))
+    (.toURL (.toURI f))))
+
+(def loader
+  (let [l (clojure.lang.DynamicClassLoader. (.getParent (ClassLoader/getSystemClassLoader)))]
+    (doseq [i (range jars)]
+      (.addURL l (write-jar i)))
+    l))
+
+(defn lookup-loader [^String base]
+  (let [cls (str base "__init.class")
+        clj (str base ".clj")
+        cls-url (.getResource ^ClassLoader loader cls)
+        clj-url (or (.getResource ^ClassLoader loader clj)
+                    (.getResource ^ClassLoader loader (str base ".cljc")))]
+    (> (clojure.lang.RT/lastModified cls-url cls) (clojure.lang.RT/lastModified clj-url clj))))
+
+(defn lookup-index [^String base]
+  (let [^clojure.lang.ResourceIndex index (clojure.lang.ResourceIndex/of loader)
+        cls (str base "__init.class")
+        clj (str base ".clj")
+        cls-url (.getResource index cls)
+        clj-url (or (.getResource index clj) (.getResource index (str base ".cljc")))]
+    (> (.lastModified index cls-url cls) (.lastModified index clj-url clj))))
+
+(defn time-lookups [lookup]
+  (let [bases (mapv #(str "lib" % "/core") (range jars))
+        start (System/nanoTime)]
+    (doseq [b bases]
+      (lookup b))
+    (/ (double (- (System/nanoTime) start)) 1000 jars)))
+
+(println "jars:" jars)
+(let [start (System/nanoTime)]
+  (clojure.lang.ResourceIndex/of loader)
+  (printf "index built in %.1f ms%n" (/ (double (- (System/nanoTime) start)) 1e6)))
+(dotimes [_ 3]
+  (printf "per lib  loader %8.1f us  index %8.1f us%n"
+          (time-lookups lookup-loader) (time-lookups lookup-index))
+  (flush))
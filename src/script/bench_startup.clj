@@ -0,0 +1,50 @@
+;   Copyright (c) Rich Hickey. All rights reserved.
+;   The use and distribution terms for this software are covered by the
+;   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;   which can be found in the file epl-v10.html at the root of this distribution.
+;   By using this software in any fashion, you are agreeing to be bound by
+;   the terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+;; Startup benchmark. Archives the classes loaded in requiring the given
+;; libs with clojure.lang.ClassArchive, then times new JVMs requiring
+;; them and exiting, with the JDK's default class data sharing archive
+;; only, and with the application archive. Prints the median and minimum
+;; wall clock time of each. The classpath must hold jars only, as for
+;; ClassArchive, and Java must be 10 or later.
+;;
+;; java -cp clojure.jar:spec.alpha.jar:core.specs.alpha.jar clojure.main src/script/bench_startup.clj [runs] [lib ...]
+
+(def runs (Long/parseLong (or (first *command-line-args*) "10")))
+(def libs (or (next *command-line-args*) ["clojure.core"]))
+
+(def java (.getPath (java.io.File. (java.io.File. (System/getProperty "java.home") "bin") "java")))
+(def classpath (System/getProperty "java.class.path"))
+(def requires (str "(require " (apply str (interpose " " (map #(str "'" %) libs))) ")"))
+
+(defn run [& args]
+  (let [p (.start (.inheritIO (ProcessBuilder. ^java.util.List (vec args))))]
+    (when-not (zero? (.waitFor p))
+      (throw (ex-info "Command failed" {:command args})))))
+
+(def archive (doto (java.io.File/createTempFile "bench-startup" ".jsa") .delete .deleteOnExit))
+
+(apply run java (str "-Dclojure.archive.path=" archive) "-cp" classpath "clojure.lang.ClassArchive" libs)
+
+(defn time-start [opts]
+  (let [start (System/nanoTime)]
+    (apply run java (concat opts ["-cp" classpath "clojure.main" "-e" requires]))
+    (/ (double (- (System/nanoTime) start)) 1e6)))
+
+(defn report [label opts]
+  ;warmup the OS file cache
+  (time-start opts)
+  (let [times (sort (repeatedly runs #(time-start opts)))]
+    (printf "%-22s median %8.1f ms  min %8.1f ms%n" label (nth times (quot runs 2)) (first times))
+    (flush)))
+
+(println "runs:" runs "requiring:" requires)
+(report "JDK archive only" [])
+(report "application archive" (cond->> [(str "-XX:SharedArchiveFile=" archive)]
+                                (= "10" (System/getProperty "java.specification.version"))
+                                (cons "-XX:+UseAppCDS")))
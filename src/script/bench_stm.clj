@@ -0,0 +1,71 @@
+;   Copyright (c) Rich Hickey. All rights reserved.
+;   The use and distribution terms for this software are covered by the
+;   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;   which can be found in the file epl-v10.html at the root of this distribution.
+;   By using this software in any fashion, you are agreeing to be bound by
+;   the terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+;; STM contention benchmark. Runs a read-mostly workload over a shared
+;; set of refs at increasing thread counts and prints throughput. Every
+;; write transaction also commutes a shared counter, declared
+;; :commutative when the fourth argument is true. Read transactions also
+;; read the counter as many times as the fifth argument, showing the cost
+;; of reading a ref with many commutes pending.
+;;
+;; java -cp clojure.jar clojure.main src/script/bench_stm.clj [nrefs] [write-pct] [millis] [commutative] [counter-reads]
+
+(import '[java.util.concurrent CountDownLatch Executors TimeUnit]
+        '[java.util.concurrent.atomic AtomicLong])
+
+(def nrefs (Long/parseLong (or (first *command-line-args*) "64")))
+(def write-pct (Long/parseLong (or (second *command-line-args*) "1")))
+(def millis (Long/parseLong (or (nth *command-line-args* 2 nil) "2000")))
+(def commutative (Boolean/parseBoolean (nth *command-line-args* 3 "false")))
+(def counter-reads (Long/parseLong (nth *command-line-args* 4 "0")))
+(def thread-counts [1 2 4 8 16 32 64])
+
+(def refs (vec (repeatedly nrefs #(ref 0))))
+(def counter (ref 0 :commutative commutative))
+(def writes (AtomicLong.))
+
+(defn op [^java.util.Random rnd]
+  (let [a (refs (.nextInt rnd nrefs))
+        b (refs (.nextInt rnd nrefs))
+        n (.nextInt rnd 100)]
+    (cond
+      (< n write-pct) (do (dosync (alter a inc) (alter b dec) (commute counter inc))
+                        (.incrementAndGet ^AtomicLong writes))
+      (< n 50) (dosync (dotimes [_ counter-reads] @counter) (+ @a @b))
+      :else (+ @a @b))))
+
+(defn run [nthreads]
+  (let [pool (Executors/newFixedThreadPool nthreads)
+        start (CountDownLatch. 1)
+        ops (AtomicLong.)
+        stop (volatile! false)]
+    (dotimes [i nthreads]
+      (.execute pool
+        (fn []
+          (let [rnd (java.util.Random. i)]
+            (.await start)
+            (loop [n 0]
+              (if @stop
+                (.addAndGet ops n)
+                (do (op rnd) (recur (inc n)))))))))
+    (.countDown start)
+    (Thread/sleep millis)
+    (vreset! stop true)
+    (.shutdown pool)
+    (.awaitTermination pool 1 TimeUnit/MINUTES)
+    (/ (.get ops) (/ millis 1000.0))))
+
+(println "refs:" nrefs "write%:" write-pct "millis:" millis "commutative:" commutative
+         "counter-reads:" counter-reads)
+(run 4) ;warmup
+(doseq [n thread-counts]
+  (printf "threads %3d  %,15.0f ops/s%n" n (double (run n)))
+  (flush))
+(assert (zero? (reduce + (map deref refs))))
+(assert (= (.get ^AtomicLong writes) @counter))
+(shutdown-agents)
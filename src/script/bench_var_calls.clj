@@ -0,0 +1,42 @@
+;   Copyright (c) Rich Hickey. All rights reserved.
+;   The use and distribution terms for this software are covered by the
+;   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;   which can be found in the file epl-v10.html at the root of this distribution.
+;   By using this software in any fashion, you are agreeing to be bound by
+;   the terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+;; Var call benchmark. Times a loop calling a small fn through its Var,
+;; compiled with no linking option, with :guarded-linking and with
+;; :direct-linking, then again with guarded linking after the Var is
+;; redefined, when its calls go through IFn. Prints ns per call.
+;;
+;; java -cp clojure.jar clojure.main src/script/bench_var_calls.clj [iterations]
+
+(def iterations (Long/parseLong (or (first *command-line-args*) "100000000")))
+
+(defn step [acc i] (+ acc (bit-and i 7)))
+
+(defn compile-loop [opts]
+  (binding [*compiler-options* opts]
+    (eval '(fn [n]
+             (let [start (System/nanoTime)]
+               (loop [i 0 acc 0]
+                 (if (< i n)
+                   (recur (inc i) (step acc i))
+                   (do (when (neg? acc) (println acc))
+                       (/ (double (- (System/nanoTime) start)) n)))))))))
+
+(defn run [label f]
+  ;warmup
+  (f iterations)
+  (printf "%-28s %8.2f ns%n" label (f iterations))
+  (flush))
+
+(println "iterations:" iterations)
+(let [guarded (compile-loop {:guarded-linking true})]
+  (run "regular" (compile-loop {}))
+  (run "guarded" guarded)
+  (run "direct" (compile-loop {:direct-linking true}))
+  (alter-var-root #'step (fn [f] (fn [acc i] (f acc i))))
+  (run "guarded, after redefinition" guarded))
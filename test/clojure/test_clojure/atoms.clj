@@ -42,3 +42,187 @@
 (deftest reset-on-deref-reset-equality
   (let [a (atom :usual-value)]
     (is (= :usual-value (reset! a (first (reset-vals! a :almost-never-seen-value)))))))
+
+(defn- swap-concurrently [a nthreads n]
+  (run! deref (doall (repeatedly nthreads
+                                 #(future (dotimes [_ n] (swap! a inc)))))))
+
+(deftest atom-stats-count-lost-swaps
+  (let [a (atom 0)
+        raced (volatile! false)]
+    (is (nil? (atom-stats a)))
+    (is (= 11 (swap! a (fn [v]
+                         (when-not @raced
+                           (vreset! raced true)
+                           (reset! a 10))
+                         (inc v)))))
+    (is (= {:mode nil :cas-failures 1 :backoff-nanos 0 :combined 0 :combine-passes 0}
+           (atom-stats a)))))
+
+(deftest atom-contention-backoff
+  (let [a (atom 0 :contention :backoff)]
+    (swap-concurrently a 8 1000)
+    (is (= 8000 @a))
+    (is (= :backoff (:mode (atom-stats a))))))
+
+(deftest atom-contention-combining
+  (let [a (atom 0 :contention :combining)
+        watched (atom 0)]
+    (add-watch a :w (fn [_ _ old new] (swap! watched + (- new old))))
+    (swap-concurrently a 8 1000)
+    (is (= 8000 @a @watched))
+    (is (= 8000 (:combined (atom-stats a))))
+    (is (= [8000 8001] (swap-vals! a inc)))
+    (is (= 8003 (swap! a + 1 1)))
+    (is (= [8003 8006] (swap-vals! a + 1 1 1)))
+    (set-validator! a #(< % 9000))
+    (is (thrown? IllegalStateException (swap! a + 1000)))
+    (is (thrown-with-msg? Exception #"boom" (swap! a (fn [_] (throw (Exception. "boom"))))))
+    (is (= 8006 @a))
+    (is (thrown? IllegalArgumentException (atom 0 :contention :unknown)))))
+
+(def ^:dynamic *swapper* nil)
+
+(deftest atom-contention-combining-conveys-bindings
+  (let [a (atom 0 :contention :combining)
+        wrong (atom 0)
+        workers (doall (for [t (range 8)]
+                         (future
+                           (binding [*swapper* t]
+                             (dotimes [_ 1000]
+                               (swap! a (fn [v]
+                                          (when-not (= t *swapper*)
+                                            (swap! wrong inc))
+                                          (inc v))))))))]
+    (run! deref workers)
+    (is (= 8000 @a))
+    (is (= 0 @wrong))))
+
+(deftest atom-contention-combining-nested-swaps
+  (let [a (atom {} :contention :combining)
+        outer (fn [m]
+                (when-not (:inner m)
+                  (swap! a assoc :inner true))
+                (assoc m :outer true))]
+    (is (= {:inner true :outer true} (deref (future (swap! a outer)) 5000 :timeout)))))
+
+(deftest sharded-atom-per-key-updates
+  (let [a (sharded-atom {:x 1} :shards 8)
+        workers (doall (for [t (range 8)]
+                         (future
+                           (dotimes [i 500]
+                             (swap-in! a [t (mod i 50)] (fnil inc 0))
+                             (swap-in! a :total (fnil + 0) 1)))))]
+    (run! deref workers)
+    (is (= 8 (.shardCount a)))
+    (is (= 402 (count @a)))
+    (is (= 4000 (:total @a)))
+    (is (= 10 (get @a [3 7])))
+    (is (= 1 (@a :x)))
+    (is (= 4001 (swap-in! a :total inc)))
+    (is (= 4004 (swap-in! a :total + 1 2)))
+    (is (= (into {} @a) @a))
+    (is (= (hash (into {} @a)) (hash @a)))))
+
+(deftest sharded-atom-whole-map-updates
+  (let [a (sharded-atom {} :shards 4)
+        seen (atom [])]
+    (add-watch a :w (fn [_ _ old new] (swap! seen conj [old new])))
+    (is (= {:a 1} (swap! a assoc :a 1)))
+    (is (instance? clojure.lang.ShardedAtom$Snapshot @a))
+    (is (= [{:a 1} {:a 1 :b 2}] (swap-vals! a assoc :b 2)))
+    (is (= 3 (swap-in! a :a + 2)))
+    (let [snap @a]
+      (swap-in! a :c (constantly 0))
+      (is (not (compare-and-set! a snap {})))
+      (is (compare-and-set! a @a (dissoc @a :c)))
+      (is (not (compare-and-set! a {:a 3 :b 2} {}))))
+    (is (= {:z 26} (reset! a {:z 26})))
+    (is (= [[{} {:a 1}]
+            [{:a 1} {:a 1 :b 2}]
+            [{:a 1 :b 2} {:a 3 :b 2}]
+            [{:a 3 :b 2} {:a 3 :b 2 :c 0}]
+            [{:a 3 :b 2 :c 0} {:a 3 :b 2}]
+            [{:a 3 :b 2} {:z 26}]]
+           @seen))
+    (is (thrown? IllegalArgumentException (reset! a [1 2])))))
+
+(deftest sharded-atom-validators
+  (let [a (sharded-atom {:n 0} :validator #(every? (complement neg?) (vals %)))]
+    (is (= 1 (swap-in! a :n inc)))
+    (is (thrown? IllegalStateException (swap-in! a :n - 5)))
+    (is (thrown? IllegalStateException (swap! a assoc :m -1)))
+    (is (= {:n 1} @a))))
+
+(deftest sharded-atom-fns-can-deref
+  (let [a (sharded-atom {:a 1})]
+    (set-validator! a (fn [m] (<= (count @a) (count m) 10)))
+    (is (= 2 (deref (future (swap-in! a :a (fn [v] (+ v (count @a))))) 5000 :timeout)))
+    (is (= {:a 2 :n 1}
+           (deref (future (swap! a (fn [m] (assoc m :n (count @a))))) 5000 :timeout)))))
+
+(deftest sharded-atom-snapshots-are-consistent
+  (let [a (sharded-atom (zipmap (range 64) (repeat 100)) :shards 16)
+        running (atom true)
+        movers (doall (for [t (range 4)]
+                        (future
+                          (let [rnd (java.util.Random. t)]
+                            (while @running
+                              (swap! a (fn [m]
+                                         (let [x (.nextInt rnd 64) y (.nextInt rnd 64)]
+                                           (-> m (update x dec) (update y inc))))))))))]
+    (try
+      (is (every? #(= 6400 (reduce + (vals %))) (repeatedly 500 #(deref a))))
+      (finally
+        (reset! running false)
+        (run! deref movers)))))
+
+(deftest timed-watches
+  (let [a (atom 0)
+        seen (atom [])]
+    (add-watch a :plain (fn [_ _ _ _]))
+    (add-watch a :timed (fn [_ r old new] (swap! seen conj [old new])) {})
+    (swap! a inc)
+    (swap! a inc)
+    (is (= [[0 1] [1 2]] @seen))
+    (is (= #{:timed} (set (keys (watch-stats a)))))
+    (is (= {:notifications 2 :calls 2 :errors 0}
+           (select-keys (:timed (watch-stats a)) [:notifications :calls :errors])))
+    (is (= 2 (get-in (watch-stats a) [:timed :call-nanos :count])))))
+
+(deftest async-watches-coalesce
+  (let [a (atom 0)
+        gate (java.util.concurrent.CountDownLatch. 1)
+        seen (atom [])
+        done (promise)]
+    (add-watch a :async
+               (fn [_ r old new]
+                 (.await gate)
+                 (swap! seen conj [old new])
+                 (when (= new 100) (deliver done true)))
+               {:async true})
+    (dotimes [_ 100] (swap! a inc))
+    (is (= [] @seen) "the writer doesn't wait for the watch")
+    (.countDown gate)
+    (is (deref done 5000 false))
+    (let [s @seen
+          stats (:async (watch-stats a))]
+      (is (= [0 100] [(ffirst s) (second (peek s))]))
+      (is (every? (fn [[[_ n1] [o2 _]]] (= n1 o2)) (partition 2 1 s))
+          "coalesced changes chain from one call to the next")
+      (is (< (count s) 100))
+      (is (= 100 (:notifications stats)))
+      (is (= 100 (+ (:calls stats) (:coalesced stats)))))))
+
+(deftest async-watches-record-errors
+  (let [a (atom 0)
+        exec (java.util.concurrent.Executors/newSingleThreadExecutor)]
+    (try
+      (add-watch a :bad (fn [_ _ _ _] (throw (Exception. "watch failed"))) {:executor exec})
+      (is (= 1 (swap! a inc)))
+      (.get (.submit exec ^Runnable (fn [])))
+      (let [stats (:bad (watch-stats a))]
+        (is (= 1 (:errors stats)))
+        (is (= "watch failed" (.getMessage ^Exception (:last-error stats)))))
+      (finally
+        (.shutdown exec)))))
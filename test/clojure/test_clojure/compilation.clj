@@ -13,7 +13,8 @@
   (:import (clojure.lang Compiler Compiler$CompilerException))
   (:require [clojure.test.generative :refer (defspec)]
             [clojure.data.generators :as gen]
-            [clojure.test-clojure.compilation.line-number-examples :as line])
+            [clojure.test-clojure.compilation.line-number-examples :as line]
+            [clojure.java.shell :as sh])
   (:use clojure.test
         [clojure.test-helper :only (should-not-reflect should-print-err-message)]))
 
@@ -437,3 +438,332 @@
   (testing "CLJ-2284 Can call static methods on interfaces"
     (is (= 42 (compilation.JDK8InterfaceMethods/staticMethod0 42)))
     (is (= "test" (compilation.JDK8InterfaceMethods/staticMethod1 "test")))))
+
+(defn guarded-target [x] (* x 2))
+(def ^:dynamic *guarded-dynamic* (fn [x] x))
+
+(deftest guarded-linking
+  (let [caller (binding [*compiler-options* {:guarded-linking true}]
+                 (eval '(fn [x] [(clojure.test-clojure.compilation/guarded-target x)
+                                 (clojure.test-clojure.compilation/*guarded-dynamic* x)])))
+        root guarded-target]
+    (testing "calls the root it was compiled against"
+      (is (= [6 3] (caller 3))))
+    (testing "sees redefinition"
+      (with-redefs [guarded-target (fn [x] (+ x 1))]
+        (is (= [4 3] (caller 3))))
+      (is (= [6 3] (caller 3)))
+      (try
+        (alter-var-root #'guarded-target (constantly (fn [x] (- x))))
+        (is (= [-3 3] (caller 3)))
+        (finally
+          (alter-var-root #'guarded-target (constantly root))))
+      (is (= [6 3] (caller 3))))
+    (testing "honors dynamic bindings"
+      (binding [*guarded-dynamic* inc]
+        (is (= [6 4] (caller 3)))))))
+
+(deftest guarded-linking-redefined-before-first-call
+  ;; defn gives the new fn the old one's class name
+  (let [ns (create-ns (gensym "guarded"))]
+    (try
+      (binding [*ns* ns]
+        (refer-clojure)
+        (eval '(defn target [x] [:one x]))
+        (binding [*compiler-options* {:guarded-linking true}]
+          (eval '(defn caller [] (target 1))))
+        (eval '(defn target [& xs] [:rest xs]))
+        (is (= [:rest '(1)] ((ns-resolve ns 'caller))))
+        (binding [*compiler-options* {:guarded-linking true :lazy-constants true}]
+          (eval '(defn lazy-caller [] (target 2))))
+        (eval '(defn target [x] [:two x]))
+        (is (= [:two 2] ((ns-resolve ns 'lazy-caller))))
+        (is (= [:two 1] ((ns-resolve ns 'caller)))))
+      (finally
+        (remove-ns (ns-name ns))))))
+
+(deftest lazy-constants
+  (let [f (binding [*compiler-options* {:lazy-constants true}]
+            (eval '(fn [k] [(get {:a 1 :b [2 3]} k)
+                            '^{:m true} [1 2 3]
+                            #{:x :y}
+                            '(1 2)
+                            #"a+b"
+                            (:a {:a 4})])))
+        [v1 v2] [(f :b) (f :b)]]
+    (is (= [[2 3] [1 2 3] #{:x :y} '(1 2)] (take 4 v1)))
+    (is (= "aab" (re-find (nth v1 4) "caab")))
+    (is (= 4 (nth v1 5)))
+    (is (= 1 (first (f :a))))
+    (testing "built once"
+      (is (every? true? (map identical? (take 5 v1) (take 5 v2)))))
+    (testing "keeps metadata"
+      (is (= {:m true} (meta (nth v1 1)))))))
+
+(defn- delete-tree [^java.io.File f]
+  (doseq [c (.listFiles f)]
+    (delete-tree c))
+  (.delete f))
+
+;; calls f with a map of a new temporary directory, :root, the :src and
+;; :classes directories within it, and a :loader from both, deleting root
+;; after
+(defn- with-lib-dirs [prefix f]
+  (let [root (.toFile (java.nio.file.Files/createTempDirectory
+                        prefix (make-array java.nio.file.attribute.FileAttribute 0)))
+        src (doto (java.io.File. root "src") .mkdirs)
+        classes (doto (java.io.File. root "classes") .mkdirs)
+        loader (doto (clojure.lang.DynamicClassLoader.)
+                 (.addURL (.toURL (.toURI src)))
+                 (.addURL (.toURL (.toURI classes))))]
+    (try
+      (f {:root root :src src :classes classes :loader loader})
+      (finally
+        (delete-tree root)))))
+
+(deftest lazy-fns
+  (with-lib-dirs "lazy-fns"
+    (fn [{:keys [src classes loader]}]
+      (let [dir (doto (java.io.File. src "lazy_fns_test") .mkdirs)
+            root-field (doto (.getDeclaredField clojure.lang.Var "root") (.setAccessible true))
+            root-of #(.get root-field (ns-resolve 'lazy-fns-test.a %))
+            thunk? #(instance? clojure.lang.FnLoaderThunk (root-of %))]
+        (spit (java.io.File. dir "a.clj")
+              "(ns lazy-fns-test.a)
+               (defn f [x] (inc x))
+               (defn g ^long [^long x] (inc x))
+               (def h (let [y 1] (fn [] y)))
+               (defn k [] :k)
+               (defn m [] :m)
+               (defn value-of-m [] m)
+               (defn w [] :w)
+               (defn r [] :r)")
+        (with-bindings {clojure.lang.Compiler/LOADER loader
+                        #'*compile-path* (str classes)
+                        #'*compiler-options* {:lazy-fns true}}
+          (compile 'lazy-fns-test.a))
+        (with-bindings {clojure.lang.Compiler/LOADER loader}
+          (require 'lazy-fns-test.a :reload))
+        (testing "a fn's class is loaded when its Var's root is first used"
+          (is (thunk? 'f))
+          (is (= 2 ((ns-resolve 'lazy-fns-test.a 'f) 1)))
+          (is (not (thunk? 'f)))
+          (is (thunk? 'k))
+          (is (= "lazy_fns_test.a$k" (.getName (class @(ns-resolve 'lazy-fns-test.a 'k)))))
+          (is (not (thunk? 'k))))
+        (testing "code using a Var's value gets the fn"
+          (is (thunk? 'm))
+          (is (= "lazy_fns_test.a$m" (.getName (class ((ns-resolve 'lazy-fns-test.a 'value-of-m)))))))
+        (testing "watches see the fn"
+          (let [v (ns-resolve 'lazy-fns-test.a 'w)
+                seen (atom nil)]
+            (add-watch v :seen (fn [_ _ old new] (reset! seen [old new])))
+            (alter-var-root v identity)
+            (is (= "lazy_fns_test.a$w" (.getName (class (first @seen)))))
+            (is (identical? (first @seen) (second @seen)))))
+        (testing "replacing the thunk is a new revision"
+          (let [rev clojure.lang.Var/rev]
+            (is (= :r ((ns-resolve 'lazy-fns-test.a 'r))))
+            (is (not (thunk? 'r)))
+            (is (< rev clojure.lang.Var/rev))))
+        (testing "fns with prim interfaces or closures are loaded eagerly"
+          (is (not (thunk? 'g)))
+          (is (not (thunk? 'h))))))))
+
+(deftest lazy-meta
+  (with-lib-dirs "lazy-meta"
+    (fn [{:keys [src classes loader]}]
+      (let [dir (doto (java.io.File. src "lazy_meta_test") .mkdirs)
+            em-field (doto (.getDeclaredField clojure.lang.Var "externalMeta") (.setAccessible true))
+            external? #(some? (.get em-field (ns-resolve 'lazy-meta-test.a %)))]
+        (spit (java.io.File. dir "a.clj")
+              "(ns lazy-meta-test.a)
+               (defn f \"Increments x.\" {:added \"1.0\"} [x] (inc x))
+               (defmacro m \"A macro.\" [x] `(f ~x))
+               (def ^:private ^String s \"s\")")
+        (with-bindings {clojure.lang.Compiler/LOADER loader
+                        #'*compile-path* (str classes)
+                        #'*compiler-options* {:lazy-meta true}}
+          (compile 'lazy-meta-test.a))
+        (is (.isFile (java.io.File. classes "lazy_meta_test/a__meta.edn")))
+        (with-bindings {clojure.lang.Compiler/LOADER loader}
+          (require 'lazy-meta-test.a :reload))
+        (testing "the compiler's metadata is kept in the class"
+          (is (external? 'f))
+          (is (= 2 (eval `(lazy-meta-test.a/m 1))))
+          (is (not (.isPublic ^clojure.lang.Var (ns-resolve 'lazy-meta-test.a 's))))
+          (is (= String (.getTag ^clojure.lang.Var (ns-resolve 'lazy-meta-test.a 's))))
+          (is (external? 'f))
+          (is (external? 'm)))
+        (testing "doc and source metadata are read when asked for"
+          (let [mf (meta (ns-resolve 'lazy-meta-test.a 'f))]
+            (is (not (external? 'f)))
+            (is (= "Increments x." (:doc mf)))
+            (is (= "1.0" (:added mf)))
+            (is (= 2 (:line mf)))
+            (is (= "lazy_meta_test/a.clj" (:file mf)))
+            (is (= '([x]) (:arglists mf))))
+          (is (= "A macro." (:doc (meta (ns-resolve 'lazy-meta-test.a 'm)))))
+          (is (:macro (meta (ns-resolve 'lazy-meta-test.a 'm)))))))))
+
+(deftest compact-constants
+  (let [table (vec (for [i (range 5000)]
+                     {:id i :name (str "row-" i) :weight (* 0.5 i) :tag (keyword "t" (str (mod i 7)))}))
+        f (eval `(fn [] '~table))]
+    (testing "literals too large to build in a static init"
+      (is (= table (f)))
+      (is (instance? clojure.lang.PersistentArrayMap (nth (f) 10)))))
+  (let [data [nil true false (int 1) -2 3.5 \c "s" :k :n/k 'y 'n/y 7N 1.5M 1/3
+              '(1 (2)) #{:a :b} {:a [1 2] "b" {:c #{}}} [] ()]
+        f (binding [*compiler-options* {:compact-constants 4}]
+            (eval `(fn [] '~(with-meta data {:m 1}))))
+        v (f)]
+    (testing "keep their types"
+      (is (= data v))
+      (is (= (map class data) (map class v)))
+      (is (= {:m 1} (meta v)))))
+  (testing "with metadata within are built as before"
+    (let [f (binding [*compiler-options* {:compact-constants 1}]
+              (eval `(fn [] '~[1 2 (with-meta [3 4] {:m 1})])))]
+      (is (= {:m 1} (meta (nth (f) 2)))))))
+
+(deftest compile-libs
+  (with-lib-dirs "compile-libs"
+    (fn [{:keys [src classes loader]}]
+      (let [dir (doto (java.io.File. src "compile_libs_test") .mkdirs)
+            reported (atom [])]
+        (doseq [[lib s] {"a" "(ns compile-libs-test.a (:require compile-libs-test.b compile-libs-test.c))"
+                         "b" "(ns compile-libs-test.b (:require compile-libs-test.d))"
+                         "c" "(ns compile-libs-test.c (:require compile-libs-test.d))"
+                         "d" "(ns compile-libs-test.d)"}]
+          (spit (java.io.File. dir (str lib ".clj")) s))
+        (with-bindings {clojure.lang.Compiler/LOADER loader
+                        #'*compile-path* (str classes)}
+          (#'clojure.core/compile-libs '[compile-libs-test.a] 2 #(swap! reported conj [%1 %2])))
+        (testing "compiles libs after those they require"
+          (let [libs (map first @reported)]
+            (is (= '#{compile-libs-test.a compile-libs-test.b compile-libs-test.c compile-libs-test.d}
+                   (set libs)))
+            (is (= 'compile-libs-test.d (first libs)))
+            (is (= 'compile-libs-test.a (last libs)))))
+        (testing "reports the time taken"
+          (is (every? #(instance? Double (second %)) @reported)))
+        (is (every? #(.isFile (java.io.File. classes (str "compile_libs_test/" % "__init.class")))
+                    ["a" "b" "c" "d"]))))))
+
+(deftest compile-manifest
+  (with-lib-dirs "compile-manifest"
+    (fn [{:keys [root src classes loader]}]
+      (let [dir (doto (java.io.File. src "compile_manifest_test") .mkdirs)
+            write (fn [lib s]
+                    (let [f (java.io.File. dir (str lib ".clj"))]
+                      (spit f s)
+                      ;; a new modification time, even within the same second,
+                      ;; older than the classes compiled from it
+                      (.setLastModified f (- (System/currentTimeMillis) 100000 (rand-int 100000)))))
+            compile-all (fn []
+                          (let [cp (str (System/getProperty "java.class.path") java.io.File/pathSeparator
+                                        src java.io.File/pathSeparator classes)
+                                {:keys [exit out err]}
+                                (sh/sh (str (System/getProperty "java.home") "/bin/java")
+                                       "-cp" cp
+                                       (str "-Dclojure.compile.path=" classes)
+                                       (str "-Dclojure.compile.manifest=" (java.io.File. root "manifest.edn"))
+                                       "clojure.lang.Compile" "compile-manifest-test.a")]
+                            (is (= 0 exit) err)
+                            (set (map symbol (re-seq #"(?<=Compiled )compile-manifest-test\.\w" out)))))
+            all '#{compile-manifest-test.a compile-manifest-test.b compile-manifest-test.c}]
+        (write "c" "(ns compile-manifest-test.c) (defmacro m [] 1)")
+        (write "b" "(ns compile-manifest-test.b (:require compile-manifest-test.c)) (defn f [] (compile-manifest-test.c/m))")
+        (write "a" "(ns compile-manifest-test.a (:require compile-manifest-test.b))")
+        (is (= all (compile-all)))
+        (testing "unchanged libs aren't compiled again"
+          (is (= #{} (compile-all))))
+        (testing "a lib is compiled again when a macro it uses changes"
+          (write "c" "(ns compile-manifest-test.c) (defmacro m [] 2)")
+          (is (= all (compile-all))))
+        (testing "only a changed lib is compiled again when nothing depends on it"
+          (write "a" "(ns compile-manifest-test.a (:require compile-manifest-test.b)) (def x 1)")
+          (is (= '#{compile-manifest-test.a} (compile-all))))
+        (testing "a lib is compiled again when a file its dependency loads changes"
+          (write "c" "(ns compile-manifest-test.c) (load \"c_impl\")")
+          (write "c_impl" "(in-ns 'compile-manifest-test.c) (defmacro m [] 3)")
+          (is (= all (compile-all)))
+          (write "c_impl" "(in-ns 'compile-manifest-test.c) (defmacro m [] 4)")
+          (is (= all (compile-all))))
+        (with-bindings {clojure.lang.Compiler/LOADER loader}
+          (require 'compile-manifest-test.b))
+        (is (= 4 ((resolve 'compile-manifest-test.b/f))))))))
+
+(deftest compile-cache
+  (with-lib-dirs "compile-cache"
+    (fn [{:keys [root src loader]}]
+      (let [write (fn [lib s]
+                    (let [f (java.io.File. src (str "compile_cache_test/" lib ".clj"))]
+                      (.mkdirs (.getParentFile f))
+                      (spit f s :append (.exists f))
+                      ;; a new modification time, even within the same millisecond
+                      (.setLastModified f (+ (System/currentTimeMillis) (rand-int 100000)))))
+            load-lib (fn [lib]
+                       (with-bindings {clojure.lang.Compiler/LOADER loader
+                                       clojure.lang.CompileCache/DIR (str (java.io.File. root "cache"))}
+                         (require lib :reload))
+                       @(resolve 'compile-cache-test.a/stamp))]
+        (write "b" "(ns compile-cache-test.b) (defmacro stamp [] (System/nanoTime))")
+        (write "a" "(ns compile-cache-test.a (:require [compile-cache-test.b :as b])) (def stamp (b/stamp))")
+        (let [s1 (load-lib 'compile-cache-test.a)]
+          (testing "an unchanged file loads from the cache"
+            (is (= s1 (load-lib 'compile-cache-test.a))))
+          (testing "a changed file is compiled again"
+            (write "a" "\n;changed")
+            (let [s2 (load-lib 'compile-cache-test.a)]
+              (is (not= s1 s2))
+              (testing "as is one using a changed dependency"
+                (let [b (java.io.File. src "compile_cache_test/b.clj")
+                      b-src (slurp b)]
+                  (write "b" "\n;changed")
+                  (load-lib 'compile-cache-test.b)
+                  (is (not= s2 (load-lib 'compile-cache-test.a)))
+                  (testing "keeping the entry for the dependency as it was"
+                    (spit b b-src)
+                    (.setLastModified b (+ (System/currentTimeMillis) (rand-int 100000)))
+                    (load-lib 'compile-cache-test.b)
+                    (is (= s2 (load-lib 'compile-cache-test.a)))))))))
+        (testing "a dependency changed in a file it loads"
+          (write "d" "(ns compile-cache-test.d) (load \"d_impl\")")
+          (write "d_impl" "(in-ns 'compile-cache-test.d) (defmacro stamp [] (System/nanoTime))")
+          (write "e" "(ns compile-cache-test.e (:require [compile-cache-test.d :as d])) (def stamp (d/stamp))")
+          (let [e-stamp #(do (load-lib 'compile-cache-test.e) @(resolve 'compile-cache-test.e/stamp))
+                s1 (e-stamp)]
+            (is (= s1 (e-stamp)))
+            (write "d_impl" "\n;changed")
+            (is (not= s1 (e-stamp)))))
+        (testing "code sees *compile-files* false whether compiled or loaded from the cache"
+          (write "c" "(ns compile-cache-test.c) (def compiling *compile-files*)")
+          (is (= [false false] (repeatedly 2 #(do (load-lib 'compile-cache-test.c)
+                                                  @(resolve 'compile-cache-test.c/compiling))))))))))
+
+(deftest class-archive-arguments
+  (with-lib-dirs "class-archive"
+    (fn [{:keys [root]}]
+      (let [jar (doto (java.io.File. root "a.jar") .createNewFile)
+            empty-dir (doto (java.io.File. root "empty") .mkdirs)
+            dir (doto (java.io.File. root "dir") .mkdirs)
+            cp (fn [& fs] (apply str (interpose java.io.File/pathSeparator fs)))]
+        (spit (java.io.File. dir "x.clj") "")
+        (testing "java versions"
+          (is (= 8 (clojure.lang.ClassArchive/javaVersion "1.8")))
+          (is (= 17 (clojure.lang.ClassArchive/javaVersion "17"))))
+        (testing "only non-empty directories on the classpath are refused"
+          (is (= [(str dir)] (clojure.lang.ClassArchive/classpathDirectories (cp jar empty-dir dir))))
+          (is (empty? (clojure.lang.ClassArchive/classpathDirectories (cp jar (java.io.File. root "missing.jar"))))))
+        (testing "checks"
+          (is (nil? (clojure.lang.ClassArchive/check "a.jsa" 11 (cp jar))))
+          (is (some? (clojure.lang.ClassArchive/check nil 11 (cp jar))))
+          (is (some? (clojure.lang.ClassArchive/check "a.jsa" 9 (cp jar))))
+          (is (some? (clojure.lang.ClassArchive/check "a.jsa" 11 (cp jar dir)))))
+        (testing "the archiving JVM"
+          (let [cmd (clojure.lang.ClassArchive/javaCommand (cp jar) 11)]
+            (is (= ["-cp" (cp jar)] (take-last 2 cmd)))
+            (is (not-any? #{"-XX:+UseAppCDS"} cmd)))
+          (is (some #{"-XX:+UseAppCDS"} (clojure.lang.ClassArchive/javaCommand (cp jar) 10))))))))
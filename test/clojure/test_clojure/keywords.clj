@@ -23,3 +23,21 @@
       (are [result lookup] (= result (find-keyword this-ns lookup))
            ::foo "foo"
            nil (str absent-keyword-sym)))))
+
+(defrecord KwA [a])
+(defrecord KwB [b a])
+(defn- lookup-a [x] (:a x))
+
+(deftest keyword-lookup-site-targets
+  (let [targets [[1 (->KwA 1)]
+                 [2 {:a 2}]
+                 [3 (->KwB 0 3)]
+                 [nil nil]
+                 [4 (java.util.HashMap. {:a 4})]
+                 [5 (assoc (zipmap (range 20) (range 20)) :a 5)]
+                 [6 (assoc (->KwB 0 0) :a 6)]
+                 [7 (assoc (->KwA 0) :a 7)]
+                 [nil "not a map"]]]
+    ;; the same site, seeing each target class in turn, then all of them again
+    (doseq [[expected x] (concat targets (reverse targets) targets)]
+      (is (= expected (lookup-a x))))))
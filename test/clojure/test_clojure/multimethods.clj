@@ -232,3 +232,54 @@
     (is (fn? (get-method simple3 :b)))
     (is (= :b ((get-method simple3 :b) 1)))
     (is (nil? (get-method simple3 :c)))))
+
+(deftest dispatch-cache-tracks-concurrent-changes
+  (testing "Calls racing method and hierarchy changes never see a stale cache afterwards"
+    (defmulti racy identity)
+    (defmethod racy :default [x] :default)
+    (let [h (atom (make-hierarchy))
+          m (doto (new clojure.lang.MultiFn "racy-h" identity :default h)
+              (.addMethod :default (constantly :default)))
+          running (atom true)
+          callers (doall (for [_ (range 4)]
+                           (future
+                             (while @running
+                               (racy (rand-int 50))
+                               (m ::child)))))]
+      (try
+        (dotimes [i 50]
+          (defmethod racy i [x] [:method x]))
+        (.addMethod m ::parent (constantly :parent))
+        (swap! h derive ::child ::parent)
+        (finally
+          (reset! running false)
+          (run! deref callers)))
+      (is (every? #(= [:method %] (racy %)) (range 50)))
+      (is (= :parent (m ::child))))))
+
+(deftest class-ancestors-include-derived-tags
+  (let [h (-> (make-hierarchy)
+              (derive java.util.Map ::map)
+              (derive ::map ::collection)
+              (derive java.util.RandomAccess ::fast))]
+    (is (= (into #{::map ::collection} (supers java.util.HashMap))
+           (ancestors h java.util.HashMap)))
+    (is (contains? (ancestors h java.util.ArrayList) ::fast))
+    (is (isa? h java.util.HashMap ::collection))
+    (is (isa? h [java.util.HashMap ::map] [::collection ::collection]))
+    (is (not (isa? h java.util.ArrayList ::map)))
+    (testing "a derive makes a new value, seen by the next lookup"
+      (is (isa? (derive h java.util.ArrayList ::list) java.util.ArrayList ::list)))))
+
+(deftest preferences-follow-ancestors
+  (derive ::pref-a ::pref-a-parent)
+  (derive ::pref-b ::pref-b-parent)
+  (defmulti pref-test identity)
+  (defmethod pref-test ::pref-a-parent [x] :a)
+  (defmethod pref-test ::pref-b-parent [x] :b)
+  (derive ::both ::pref-a)
+  (derive ::both ::pref-b)
+  (is (thrown? IllegalArgumentException (pref-test ::both)))
+  (prefer-method pref-test ::pref-a-parent ::pref-b-parent)
+  (is (= :a (pref-test ::both)))
+  (is (thrown? IllegalStateException (prefer-method pref-test ::pref-b ::pref-a))))
@@ -103,3 +103,95 @@
   (is (thrown-with-cause-msg? clojure.lang.Compiler$CompilerException
                         #"defrecord and deftype fields must be symbols, user\.MyType had: :key1"
                         (eval '(deftype MyType [:key1])))))
+
+(def parallel-log (atom []))
+
+(defn- delete-tree [^java.io.File f]
+  (doseq [c (.listFiles f)]
+    (delete-tree c))
+  (.delete f))
+
+(defn- parallel-require-src []
+  (.toFile (java.nio.file.Files/createTempDirectory
+             "parallel-require" (make-array java.nio.file.attribute.FileAttribute 0))))
+
+(deftest parallel-require
+  (let [src (parallel-require-src)
+        write (fn [lib s]
+                (let [f (java.io.File. src (str "parallel_require_test/" lib ".clj"))]
+                  (.mkdirs (.getParentFile f))
+                  (spit f s)))
+        loader (doto (clojure.lang.DynamicClassLoader.) (.addURL (.toURL (.toURI src))))
+        log (doto parallel-log (reset! []))
+        req (fn [& args]
+              (with-bindings {clojure.lang.Compiler/LOADER loader
+                              #'*ns* (create-ns 'parallel-require-test.user)}
+                (apply require args)))
+        logs (fn [lib] (format "(swap! clojure.test-clojure.ns-libs/parallel-log conj '%s)" lib))]
+    (write "d" (str "(ns parallel-require-test.d)" (logs 'd)))
+    (write "b" (str "(ns parallel-require-test.b (:require parallel-require-test.d))" (logs 'b)))
+    (write "c" (str "(ns ^:serial-load parallel-require-test.c (:require [parallel-require-test [d]]))" (logs 'c)))
+    (write "a" (str "(ns parallel-require-test.a (:require [parallel-require-test.b :as b] parallel-require-test.c))"
+                    (logs 'a)))
+    (write "x" "(ns parallel-require-test.x (:require parallel-require-test.y))")
+    (write "y" "(ns parallel-require-test.y (:require parallel-require-test.x))")
+    (write "e" "(ns parallel-require-test.e (:require parallel-require-test.d)) (throw (Exception. \"e failed\"))")
+    (testing "libs load once, after the libs they require"
+      (req '[parallel-require-test.a :as a] :parallel)
+      (is (= 4 (count @log)))
+      (is (= 'd (first @log)))
+      (is (= 'a (last @log)))
+      (is (= 'parallel-require-test.a (ns-name (get (ns-aliases 'parallel-require-test.user) 'a)))))
+    (testing "loaded libs are not loaded again"
+      (req 'parallel-require-test.b :parallel)
+      (is (= 4 (count @log))))
+    (testing "cyclic dependencies"
+      (is (thrown-with-cause-msg? Exception #"Cyclic load dependency"
+            (req 'parallel-require-test.x :parallel))))
+    (testing "errors loading a lib"
+      (is (thrown-with-cause-msg? Exception #"e failed"
+            (req 'parallel-require-test.e :parallel))))
+    (testing "reloading"
+      (is (thrown? Exception (req 'parallel-require-test.a :parallel :reload))))
+    (delete-tree src)))
+
+;; r is loading on one thread, and waits for the lock requiring-resolve
+;; took on the other, which waits for r
+(deftest parallel-require-with-requiring-resolve
+  (let [src (parallel-require-src)
+        write (fn [lib s]
+                (let [f (java.io.File. src (str "parallel_resolve_test/" lib ".clj"))]
+                  (.mkdirs (.getParentFile f))
+                  (spit f s)))
+        loader (doto (clojure.lang.DynamicClassLoader.) (.addURL (.toURL (.toURI src))))
+        libs '[parallel-resolve-test.p parallel-resolve-test.r]]
+    (write "s" "(ns parallel-resolve-test.s) (defn g [] :s)")
+    (write "r" "(ns parallel-resolve-test.r) (Thread/sleep 200) (def f ((requiring-resolve 'parallel-resolve-test.s/g)))")
+    (write "p" "(ns parallel-resolve-test.p) (def f @(requiring-resolve 'parallel-resolve-test.r/f))")
+    (is (= :s (deref (future
+                       (with-bindings {clojure.lang.Compiler/LOADER loader
+                                       #'clojure.core/*parallel-loader*
+                                       (clojure.lang.ParallelLoader. #(#'clojure.core/load-one % false true))}
+                         ;; two threads, whatever the processors
+                         (clojure.lang.ParallelLoader/run libs {} #{} 2 #(require %))
+                         @(resolve 'parallel-resolve-test.p/f)))
+                     10000 :timeout)))
+    (delete-tree src)))
+
+(deftest parallel-loads-waiting-on-each-other
+  ;; each load needs the other, once both have started
+  (let [barrier (java.util.concurrent.CyclicBarrier. 2)
+        self (promise)
+        loader @(deliver self (clojure.lang.ParallelLoader.
+                               (fn [lib]
+                                 (.await barrier)
+                                 (.loadOnce ^clojure.lang.ParallelLoader @self ({:x :y :y :x} lib)))))
+        loads (doall (for [lib [:x :y]]
+                       (future
+                         (try
+                           (.loadOnce loader lib)
+                           :loaded
+                           (catch Exception e (.getMessage e))))))
+        results (map #(deref % 10000 :timeout) loads)]
+    (is (not-any? #{:timeout :loaded} results))
+    (is (some #(re-find #"Cyclic load dependency" %) results))))
@@ -674,3 +674,62 @@
 (deftest test-leading-dashes
   (is (= 10 (-do-dashed (Dashed.))))
   (is (= [10] (map -do-dashed [(Dashed.)]))))
+
+(defprotocol CachedSatisfies
+  (cached-satisfies [x]))
+
+(deftest satisfies-sees-later-extensions
+  (testing "cached misses are dropped by extend"
+    (is (not (satisfies? CachedSatisfies 1)))
+    (is (not (satisfies? CachedSatisfies nil)))
+    (is (not (satisfies? CachedSatisfies (java.util.ArrayList.))))
+    (extend-protocol CachedSatisfies
+      Number (cached-satisfies [x] :number)
+      nil (cached-satisfies [x] :nil))
+    (is (satisfies? CachedSatisfies 1))
+    (is (satisfies? CachedSatisfies nil))
+    (is (= :number (cached-satisfies 1)))
+    (is (not (satisfies? CachedSatisfies (java.util.ArrayList.)))))
+  (testing "an extension to a supertype replaces cached hits through supers"
+    (extend-protocol CachedSatisfies
+      java.util.List (cached-satisfies [x] :list))
+    (is (satisfies? CachedSatisfies (java.util.ArrayList.)))
+    (extend-protocol CachedSatisfies
+      java.util.ArrayList (cached-satisfies [x] :array-list))
+    (is (= :array-list
+           (cached-satisfies (java.util.ArrayList.))
+           ((find-protocol-method CachedSatisfies :cached-satisfies (java.util.ArrayList.))
+            nil)))))
+
+(defprotocol SiteProtocol
+  (site-call [x] [x y]))
+
+(defrecord SiteRecord []
+  SiteProtocol
+  (site-call [x] :record)
+  (site-call [x y] [:record y]))
+
+(extend-protocol SiteProtocol
+  String (site-call ([x] :string) ([x y] [:string y]))
+  nil (site-call ([x] :nil) ([x y] [:nil y])))
+
+(defn- call-site [x] (site-call x))
+(defn- call-site-2 [x] (site-call x 1))
+
+(deftest protocol-call-site-caches
+  (is (= [:record :string :nil :record :string] (map call-site [(->SiteRecord) "a" nil (->SiteRecord) "b"])))
+  (is (= [[:record 1] [:string 1]] (map call-site-2 [(->SiteRecord) "a"])))
+  (is (thrown-with-msg? IllegalArgumentException #"No implementation of method: :site-call"
+                        (call-site 1)))
+  (testing "extend starts the cache over"
+    (extend-protocol SiteProtocol
+      Number (site-call ([x] :number) ([x y] [:number y])))
+    (is (= [:number :string :nil :record] (map call-site [1 "a" nil (->SiteRecord)]))))
+  (testing "with-redefs is seen"
+    (is (= :redef (with-redefs [site-call (fn [x] :redef)] (call-site "a"))))
+    (is (= :string (call-site "a"))))
+  (testing "more classes than the cache holds"
+    (extend-protocol SiteProtocol
+      Object (site-call ([x] :object) ([x y] [:object y])))
+    (is (= [:object :object :object :object :object :number :string :nil :record]
+           (map call-site [:k 'x [] {} #{} 1 "a" nil (->SiteRecord)])))))
@@ -20,3 +20,262 @@
 ; ensure ref-set alter commute
 ; set-validator get-validator
 
+
+(defn with-stm-stats [f]
+  (let [was (clojure.lang.TransactionStats/enabled)]
+    (clojure.lang.TransactionStats/clear)
+    (clojure.lang.TransactionStats/enable true)
+    (try (f)
+      (finally
+        (clojure.lang.TransactionStats/enable was)
+        (clojure.lang.TransactionStats/clear)))))
+
+(deftest stm-stats-record-commits-and-commutes
+  (with-stm-stats
+    (fn []
+      ;; clojure.test's report counters are refs too, so take
+      ;; the global snapshot before asserting anything
+      (let [r (ref 0)
+            unrecorded (ref-stats r)
+            _ (dosync (alter r inc))
+            _ (dosync (commute r + 2) (commute r + 3))
+            stats (stm-stats)
+            s (ref-stats r)]
+        (is (nil? unrecorded))
+        (is (= 6 @r))
+        (is (= 2 (:commits s)))
+        (is (= 2 (:commute-reruns s)))
+        (is (= 0 (:retries s)))
+        (is (= 2 (:transactions stats)))))))
+
+(deftest stm-stats-attribute-read-faults
+  (with-stm-stats
+    (fn []
+      (let [r (ref 0)
+            attempts (atom 0)]
+        (dosync
+          (when (= 1 (swap! attempts inc))
+            ;; commit behind this transaction's read point
+            @(future (dosync (ref-set r 1))))
+          @r)
+        (is (= 2 @attempts))
+        (let [s (ref-stats r)]
+          (is (= 1 (:faults s)))
+          (is (= 1 (:retries s))))
+        (is (= r (first (:hot-refs (stm-stats)))))
+        (is (= 1 (get-in (stm-stats) [:retries-per-transaction :max])))))))
+
+(deftest stm-stats-exported-over-jmx
+  (with-stm-stats
+    (fn []
+      (let [server (java.lang.management.ManagementFactory/getPlatformMBeanServer)
+            name (javax.management.ObjectName. "clojure.lang:type=TransactionStats")]
+        (dosync (ref-set (ref 0) 1))
+        (let [n (.getAttribute server name "Transactions")]
+          (is (.isRegistered server name))
+          (is (= 1 n)))))))
+
+(deftest history-grows-on-faults
+  (let [r (ref 0)
+        attempts (atom 0)]
+    (is (= 0 (ref-history-count r)))
+    (dosync
+      (when (= 1 (swap! attempts inc))
+        @(future (dosync (alter r inc))))
+      @r)
+    (is (= 1 (.getFaultCount r)))
+    ;; the commit after a fault grows history and keeps the prior value
+    (dosync (alter r inc))
+    (is (= 1 (ref-history-count r)))
+    (is (= 2 @r))
+    ;; later commits fill the grown ring without faulting again
+    (dotimes [_ 5] (dosync (alter r inc)))
+    (is (= 1 (.getFaultCount r)))
+    (is (<= 1 (ref-history-count r) (ref-max-history r)))))
+
+(deftest history-respects-min-and-max
+  (let [r (ref 0 :min-history 3 :max-history 5)]
+    (dotimes [_ 10] (dosync (alter r inc)))
+    (is (= 3 (ref-history-count r)))
+    (ref-max-history r 2)
+    (dosync (alter r inc))
+    (is (= 3 (ref-history-count r)) "min-history wins over a lower max")
+    (ref-min-history r 0)
+    (dosync (alter r inc))
+    (is (= 2 (ref-history-count r)))
+    (.trimHistory r)
+    (is (= 0 (ref-history-count r)))
+    (is (= 12 @r))))
+
+(deftest validators-read-history-of-their-own-ref
+  ;; the validator runs at commit, with the ref write locked
+  (let [r (ref 0)]
+    (set-validator! r (fn [_] (<= (ref-history-count r) (ref-max-history r))))
+    (is (= 1 (deref (future (dosync (alter r inc))) 5000 :timeout)))))
+
+(deftest validators-ensure-refs-of-their-transaction
+  ;; the validators run at commit, with a write locked and b's cells locked
+  (let [a (ref 0)
+        b (ref 0 :commutative true)]
+    (doseq [r [a b]]
+      (set-validator! r (fn [_] (when (clojure.lang.LockingTransaction/isRunning) (ensure r)) true)))
+    (is (= [1 1] (deref (future (dosync (alter a inc) (commute b inc) [@a @b])) 5000 :timeout)))
+    (is (= 2 (deref (future (dosync (commute a inc))) 5000 :timeout)))))
+
+(deftest read-only-transactions-see-consistent-snapshots
+  (let [a (ref 0)
+        b (ref 0)
+        running (atom true)
+        writer (future
+                 (while @running
+                   (dosync (alter a inc) (alter b dec))))]
+    (try
+      (is (every? zero? (repeatedly 2000 #(dosync (+ @a @b)))))
+      (finally
+        (reset! running false)
+        @writer))
+    (is (zero? (+ @a @b)))))
+
+(deftest transactions-write-after-reading
+  (let [a (ref 1)
+        b (ref 2)]
+    (is (= 3 (dosync (let [x (+ @a @b)] (ref-set a x) (commute b + x) @a))))
+    (is (= [3 5] [@a @b]))
+    (is (thrown? IllegalStateException (dosync @a (io! :io))))
+    (is (= 6 (dosync (ensure a) (dosync (alter a + @a)))))))
+
+(deftest commutative-refs-count-concurrent-commutes
+  (let [c (ref 0 :commutative true)
+        s (ref #{} :commutative true)
+        workers (doall (for [t (range 8)]
+                         (future
+                           (dotimes [i 100]
+                             (dosync
+                               (commute c + 1)
+                               (commute s conj [t i]))))))]
+    (run! deref workers)
+    (is (= 800 @c))
+    (is (= 800 (count @s)))
+    (is (= 801 (dosync (alter c inc))))
+    (is (= 802 (dosync (commute c inc) (commute c inc) (dec @c))))
+    (is (= 803 @c))))
+
+(deftest commutative-refs-commit-atomically-with-other-refs
+  (let [c (ref 0 :commutative true)
+        r (ref 0)
+        running (atom true)
+        writers (doall (for [_ (range 4)]
+                         (future
+                           (while @running
+                             (dosync (commute c + 1) (alter r inc))))))]
+    (try
+      (is (every? true? (repeatedly 2000 #(dosync (= @c @r)))))
+      (finally
+        (reset! running false)
+        (run! deref writers)))
+    (is (= @c @r))))
+
+(deftest commutative-refs-honor-validators
+  (let [c (ref 0 :commutative true :validator #(< % 3))]
+    (dosync (commute c inc) (commute c inc))
+    (is (thrown? IllegalStateException (dosync (commute c inc))))
+    (is (= 2 @c))))
+
+;; the commits after a transaction's read point, folded into history
+;; while it runs, aren't needed by its reads, so don't fault them
+(deftest commutative-refs-fault-only-for-dropped-reads
+  (let [c (ref 0 :commutative true :min-history 2)
+        r (ref 0)
+        started (promise)
+        go (promise)
+        reads (atom [])
+        reader (future
+                 (dosync
+                   @r
+                   (deliver started true)
+                   @go
+                   (swap! reads conj @c)))]
+    @started
+    ;; twice the entries a cell holds before its committer folds them
+    (dotimes [_ 64]
+      (dosync (commute c inc)))
+    (deliver go true)
+    @reader
+    (is (= [0] @reads))
+    (is (= 0 (.getFaultCount c)))
+    (is (= 64 @c))))
+
+(deftest commutative-refs-reuse-the-latest-value
+  (let [calls (atom 0)
+        c (ref 0 :commutative true)]
+    (dotimes [_ 5]
+      (dosync (commute c (fn [x] (swap! calls inc) (inc x)))))
+    (reset! calls 0)
+    (is (= [5 5 5] [@c @c @c]))
+    (is (<= @calls 5))))
+
+(deftest transactional-hash-map-outside-transactions
+  (let [m (clojure.lang.TransactionalHashMap.)
+        workers (doall (for [t (range 4)]
+                         (future
+                           (dotimes [i 500]
+                             (.put m [t i] i)
+                             (when (odd? i) (.remove m [t i]))))))]
+    (run! deref workers)
+    (is (= 1000 (count m) (.size m)))
+    (is (= 498 (.get m [3 498])))
+    (is (nil? (.get m [3 499])))
+    (is (nil? (.putIfAbsent m :a 1)))
+    (is (= 1 (.putIfAbsent m :a 2)))
+    (is (.replace m :a 1 3))
+    (is (not (.remove m :a 1)))
+    (is (= 3 (.replace m :a 4)))
+    (.putAll m (zipmap (range 200) (range 200)))
+    (is (= 1201 (count (.snapshot m))))
+    (.clear m)
+    (is (.isEmpty m))))
+
+;; bins split in place, so lookups follow splits the directory lags behind
+(deftest transactional-hash-map-grows
+  (let [m (clojure.lang.TransactionalHashMap. 1)
+        workers (doall (for [t (range 4)]
+                         (future
+                           (dotimes [i 5000]
+                             (.put m [t i] i)))))]
+    (run! deref workers)
+    (is (= 20000 (count m)))
+    (is (every? #(= (peek %) (.get m %)) (for [t (range 4) i (range 5000)] [t i])))
+    (is (= 20000 (count (.snapshot m))))
+    (dosync
+      (dotimes [i 1000] (.put m [:tx i] i))
+      (is (= 999 (.get m [:tx 999]))))
+    (is (= 21000 (count m)))))
+
+(deftest transactional-hash-map-in-transactions
+  (let [m (clojure.lang.TransactionalHashMap. (zipmap (range 100) (repeat 10)))
+        running (atom true)
+        movers (doall (for [t (range 4)]
+                        (future
+                          (let [rnd (java.util.Random. t)]
+                            (while @running
+                              (dosync
+                                (let [a (.nextInt rnd 100) b (.nextInt rnd 100)]
+                                  (when-not (= a b)
+                                    (.put m a (dec (.get m a)))
+                                    (.put m b (inc (.get m b)))))))))))
+        adders (doall (for [t (range 2)]
+                        (future
+                          (dotimes [i 300]
+                            (dosync (.put m [t i] 0))))))]
+    (try
+      (run! deref adders)
+      (is (every? #(= 1000 (reduce + (vals %)))
+                  (repeatedly 200 #(.snapshot m))))
+      (finally
+        (reset! running false)
+        (run! deref movers)))
+    (is (= 700 (count m)))
+    (is (= 1000 (reduce + (vals (.snapshot m)))))
+    (is (thrown? Exception
+          (dosync (.put m :x 1) (throw (Exception. "abort")))))
+    (is (not (.containsKey m :x)))))
@@ -103,3 +103,55 @@
                    (.refer ns 'subset? #'clojure.set/intersection)))
       (is (nil? ('subset? (ns-publics ns))))
       (is (= #'clojure.set/subset? ('subset? (ns-refers ns)))))))
+
+(deftest resource-index
+  (let [root (.toFile (java.nio.file.Files/createTempDirectory
+                        "resource-index" (make-array java.nio.file.attribute.FileAttribute 0)))
+        jar (fn [name & entries]
+              (let [f (java.io.File. root name)]
+                (with-open [out (java.util.jar.JarOutputStream. (java.io.FileOutputStream. f))]
+                  (doseq [e entries]
+                    (.putNextEntry out (doto (java.util.jar.JarEntry. ^String e)
+                                         (.setTime (+ 1000000000000 (* 1000 (rand-int 100000))))))
+                    (.write out (.getBytes (str ";" e)))
+                    (.closeEntry out)))
+                (.toURL (.toURI f))))
+        dir (doto (java.io.File. root "dir") .mkdirs)
+        loader (clojure.lang.DynamicClassLoader. (.getParent (ClassLoader/getSystemClassLoader)))
+        names ["ri/a.clj" "ri/b.clj" "ri/b.cljc" "ri/c.clj" "ri/c__init.class" "ri/missing.clj" "ri/a.txt"]
+        same? (fn [names]
+                (let [index (clojure.lang.ResourceIndex/of loader)]
+                  (every? (fn [n]
+                            (let [url (.getResource loader n)]
+                              (and (= (str url) (str (.getResource index n)))
+                                   (or (nil? url)
+                                       (= (clojure.lang.RT/lastModified url n)
+                                          (.lastModified index url n))))))
+                          names)))]
+    (.addURL loader (jar "1.jar" "ri/a.clj" "ri/b.clj" "ri/a.txt"))
+    (.addURL loader (.toURL (.toURI dir)))
+    (.addURL loader (jar "2.jar" "ri/b.clj" "ri/b.cljc" "ri/c.clj" "ri/c__init.class"))
+    (testing "lookups find what the loader finds"
+      (is (some? (clojure.lang.ResourceIndex/of loader)))
+      (is (same? names)))
+    (testing "directories are searched on each lookup"
+      (doseq [n ["ri/a.clj" "ri/c.clj"]]
+        (let [f (java.io.File. dir ^String n)]
+          (.mkdirs (.getParentFile f))
+          (spit f ";dir")))
+      (is (same? names))
+      (is (.startsWith (str (.getResource (clojure.lang.ResourceIndex/of loader) "ri/c.clj")) "file:")))
+    (testing "the index is rebuilt when URLs are added"
+      (.addURL loader (jar "3.jar" "ri/d.clj"))
+      (is (some? (.getResource (clojure.lang.ResourceIndex/of loader) "ri/d.clj")))
+      (is (same? (conj names "ri/d.clj"))))
+    (testing "loaders without URLs use their parent's index"
+      (is (identical? (clojure.lang.ResourceIndex/of loader)
+                      (clojure.lang.ResourceIndex/of (clojure.lang.DynamicClassLoader. loader)))))
+    (testing "loaders finding resources beyond their URLs are asked on a miss"
+      (let [extra (.toURL (.toURI (java.io.File. dir "extra.clj")))
+            loader (proxy [clojure.lang.DynamicClassLoader] [loader]
+                     (findResource [n]
+                       (if (= n "ri/extra.clj") extra (proxy-super findResource n))))]
+        (.addURL loader (jar "4.jar" "ri/e.clj"))
+        (is (= extra (.getResource (clojure.lang.ResourceIndex/of loader) "ri/extra.clj")))))))